@@ -0,0 +1,177 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.*;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * A configured filter graph with one buffersrc and a buffersink per output. With more than
+ * one output the audio is split after any common filters, and each output gets its own
+ * chain of filters.
+ *
+ * @author Kevin Witmer
+ */
+class AudioFilterGraph {
+    AVFilterGraph graph     = new AVFilterGraph(null);
+    AVFilterContext src     = new AVFilterContext(null);
+    final AVFilterContext[] sinks;
+
+    /*
+     * Initialize the filter chain based on the description string, configuring the src and
+     * sinks so that they are compatible with the given input format and the outputs' encoders,
+     * respectively. Packed sinks give the packed variant of each encoder's sample format and
+     * frames of any size; otherwise the frames match the encoder's frame size.
+     */
+    AudioFilterGraph (TranscodeSession session, AVRational time_base, int sample_rate, int sample_fmt,
+                      long channel_layout, String common, List<Output> outputs, List<String> chains,
+                      boolean packed) {
+        AVFilterInOut outputs_io = avfilter_inout_alloc(),
+                      inputs_io  = avfilter_inout_alloc();
+        AVFilterLink outlink, inlink;
+        StringBuilder filters_descr = new StringBuilder();
+        int n = outputs.size();
+
+        sinks = new AVFilterContext[n];
+        graph = session.scope.own( avfilter_graph_alloc(), g -> avfilter_graph_free(g) );
+
+        if (outputs_io.isNull() || inputs_io.isNull() || graph.isNull()) {
+            throw new RuntimeException(my_av_err2str( AVERROR_ENOMEM() ) + ":" + AVERROR_ENOMEM());
+        }
+        /* Slice threaded filters would otherwise take a thread per core, whatever the file was given */
+        graph.nb_threads(session.threads);
+
+        try {
+            /* The buffersrc sample fmt, sample rate, and ch layout should match decoder output */
+            filters_descr.append(String.format(
+                "abuffer@in=time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=0x%x",
+                time_base.num(), time_base.den(), sample_rate,
+                av_get_sample_fmt_name(sample_fmt).getString(), channel_layout
+            ));
+            if (common != null && common.length() > 0) {
+                filters_descr.append(",").append(common);
+            }
+
+            /* Split the audio between the outputs' chains */
+            if (n == 1) {
+                filters_descr.append(",").append( chains.get(0) ).append(",abuffersink@out0");
+            }
+            else {
+                filters_descr.append(",asplit=").append(n);
+
+                for (int i = 0; i < n; i++) {
+                    filters_descr.append("[s").append(i).append("]");
+                }
+                for (int i = 0; i < n; i++) {
+                    filters_descr.append(";[s").append(i).append("]").append( chains.get(i) )
+                        .append(",abuffersink@out").append(i);
+                }
+            }
+
+            /* Add a graph described by a string. */
+            check( avfilter_graph_parse2(graph, filters_descr.toString(), inputs_io, outputs_io) );
+
+            /* Get buffer contexts from parsed graph */
+            src = avfilter_graph_get_filter(graph, "abuffer@in");
+
+            for (int i = 0; i < n; i++) {
+                Output o = outputs.get(i);
+                /* Spooled audio is kept as floats until its gain is applied */
+                int sink_fmt = o.spool != null ? AV_SAMPLE_FMT_FLT
+                    : packed ? av_get_packed_sample_fmt( o.enc_ctx.sample_fmt() ) : o.enc_ctx.sample_fmt();
+
+                sinks[i] = avfilter_graph_get_filter(graph, "abuffersink@out" + i);
+
+                /*
+                 * Some pointers to arrays for setting binary filter options for the buffersink.
+                 * These should match our encoder sample format/ch layout/sample rate. They come
+                 * from av_malloc() rather than JavaCPP, so freeing them also takes them off
+                 * JavaCPP's count of allocated bytes without waiting for the GC.
+                 */
+                BytePointer out_sample_fmts     = new BytePointer( av_malloc(8) ),
+                            out_channel_layouts = new BytePointer( av_malloc(16) ),
+                            out_sample_rates    = new BytePointer( av_malloc(8) );
+
+                /* Set binary options for buffersink. They're copied, so the arrays can go right away. */
+                try {
+                    if (out_sample_fmts.isNull() || out_channel_layouts.isNull() || out_sample_rates.isNull()) {
+                        throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+                    }
+                    out_sample_fmts.putInt(0, sink_fmt);
+                    out_sample_fmts.putInt(4, -1);
+                    out_channel_layouts.putLong(0, o.enc_ctx.channel_layout());
+                    out_channel_layouts.putLong(8, -1);
+                    out_sample_rates.putInt(0, o.out_sr);
+                    out_sample_rates.putInt(4, -1);
+
+                    check( av_opt_set_bin(sinks[i], "sample_fmts", out_sample_fmts, 4, AV_OPT_SEARCH_CHILDREN) );
+                    check( av_opt_set_bin(sinks[i], "channel_layouts", out_channel_layouts, 8, AV_OPT_SEARCH_CHILDREN) );
+                    check( av_opt_set_bin(sinks[i], "sample_rates", out_sample_rates, 4, AV_OPT_SEARCH_CHILDREN) );
+                }
+                finally {
+                    av_free(out_sample_fmts);
+                    av_free(out_channel_layouts);
+                    av_free(out_sample_rates);
+                }
+
+                /* Set correct frame size on buffersink so that it matches that of the encoder */
+                if (!packed && o.spool == null) {
+                    av_buffersink_set_frame_size(sinks[i], o.enc_ctx.frame_size());
+                }
+            }
+
+            /* Check validity and configure all the links and formats in the graph. */
+            check( avfilter_graph_config(graph, null) );
+
+            /* Print summary of the src and sink buffers */
+            inlink = src.outputs(0);
+
+            session.log(
+                "Input: srate:" + inlink.sample_rate() + "Hz fmt:"
+                + ( av_get_sample_fmt_name( inlink.format() ) ).getString()
+                + " Channels num: " + inlink.channels()
+            );
+            for (AVFilterContext sink : sinks) {
+                outlink = sink.inputs(0);
+
+                session.log(
+                    "Output: srate:" + outlink.sample_rate() + "Hz fmt:"
+                    + ( av_get_sample_fmt_name( outlink.format() ) ).getString()
+                    + " Channels num: " + outlink.channels()
+                );
+            }
+        }
+        catch (RuntimeException e) {
+            free();
+            throw e;
+        }
+        finally {
+            avfilter_inout_free(inputs_io);
+            avfilter_inout_free(outputs_io);
+        }
+    }
+
+    /* Free the graph before the session's scope closes */
+    void free () {
+        avfilter_graph_free(graph);
+    }
+}
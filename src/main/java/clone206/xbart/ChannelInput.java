@@ -0,0 +1,286 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * An input file read through a Java FileChannel instead of ffmpeg's file protocol, for
+ * sources where ffmpeg's small sequential reads are slow. The channel is either memory
+ * mapped, which suits local disks, or read ahead of the demuxer in large blocks on
+ * background threads, which keeps several requests in flight on network mounts.
+ *
+ * ffmpeg calls back into the one static read and seek callback for every input, and the
+ * opaque pointer it passes along identifies the input.
+ *
+ * @author Kevin Witmer
+ */
+class ChannelInput {
+    static final List<String> MODES         = Arrays.asList("ffmpeg", "auto", "mmap", "readahead");
+    /* Largest piece of a file mapped at once */
+    static final long MAP_WINDOW            = 1L << 30;
+    /* File systems read ahead rather than mapped in auto mode */
+    static final List<String> NETWORK_FS    = Arrays.asList(
+        "nfs", "nfs4", "cifs", "smbfs", "smb2", "smb3", "afpfs", "fuse.sshfs", "9p", "davfs"
+    );
+
+    /* Inputs by their opaque id */
+    static final Map<Long, ChannelInput> open   = new ConcurrentHashMap<Long, ChannelInput>();
+    static final AtomicLong next_id             = new AtomicLong(1);
+    /* Threads for the read-ahead, shared by all inputs */
+    static final ExecutorService readers        = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "xbart-readahead");
+
+        t.setDaemon(true);
+        return t;
+    });
+
+    static final Read_packet_Pointer_BytePointer_int READ = new Read_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call (Pointer opaque, BytePointer buf, int size) {
+            ChannelInput in = open.get( opaque.address() );
+
+            try {
+                return in == null ? AVERROR_EXTERNAL : in.read(buf, size);
+            }
+            catch (Throwable t) {
+                in.error = t;
+                return AVERROR_EXTERNAL;
+            }
+        }
+    };
+
+    static final Seek_Pointer_long_int SEEK = new Seek_Pointer_long_int() {
+        @Override
+        public long call (Pointer opaque, long offset, int whence) {
+            ChannelInput in = open.get( opaque.address() );
+
+            try {
+                return in == null ? AVERROR_EXTERNAL : in.seek(offset, whence);
+            }
+            catch (Throwable t) {
+                in.error = t;
+                return AVERROR_EXTERNAL;
+            }
+        }
+    };
+
+    /* Stands in for the input in calls back from ffmpeg */
+    static class Id extends Pointer {
+        Id (long id) {
+            address = id;
+        }
+    }
+
+    final TranscodeSession session;
+    final long id                           = next_id.getAndIncrement();
+    final FileChannel channel;
+    final long size;
+    final boolean mapped;
+    final AVIOContext avio;
+    long position                           = 0;
+    /* The mapped piece of the file, and where it starts */
+    MappedByteBuffer window;
+    long window_start                       = 0;
+    /* Blocks being read ahead, in file order, and where the first starts */
+    final ArrayDeque<Future<ByteBuffer>> ahead = new ArrayDeque<Future<ByteBuffer>>();
+    long ahead_start                        = 0;
+    /* Buffers of blocks which have been used up, to read the next ones into */
+    final ArrayDeque<ByteBuffer> spare      = new ArrayDeque<ByteBuffer>();
+    /* Bytes given to ffmpeg and nanoseconds spent giving them, for the log */
+    long bytes_read                         = 0;
+    long read_ns                            = 0;
+    /* What went wrong in a callback, which can only return an error code */
+    volatile Throwable error;
+
+    /*
+     * Open a file and an AVIOContext reading it, owned by the session's scope, in the
+     * given mode: mmap, readahead, or auto to pick by the kind of file system.
+     */
+    ChannelInput (TranscodeSession session, Path p, String mode) throws IOException {
+        BytePointer buffer;
+
+        this.session = session;
+        this.channel = FileChannel.open(p, StandardOpenOption.READ);
+
+        try {
+            this.size = channel.size();
+            this.mapped = mode.equals("mmap") || ( mode.equals("auto") && !networked(p) );
+
+            if ( (buffer = new BytePointer( av_malloc(io_buffer) )).isNull() ) {
+                throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+            }
+            avio = avio_alloc_context(buffer, io_buffer, 0, new Id(id), READ, null, SEEK);
+
+            if (avio == null || avio.isNull()) {
+                av_free(buffer);
+                throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        open.put(id, this);
+        session.scope.own(avio, a -> close());
+    }
+
+    /* Whether a file is on a network mount, going by its file system type */
+    static boolean networked (Path p) {
+        try {
+            return NETWORK_FS.contains( Files.getFileStore(p).type().toLowerCase() );
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* Copy up to size bytes from the current position into ffmpeg's buffer */
+    int read (BytePointer buf, int size) throws IOException, ExecutionException, InterruptedException {
+        long t = System.nanoTime();
+        ByteBuffer dst = buf.capacity(size).asByteBuffer();
+
+        if (position >= this.size) {
+            return AVERROR_EOF;
+        }
+        while ( dst.hasRemaining() && position < this.size ) {
+            ByteBuffer src = mapped ? mappedAt(position) : aheadAt(position);
+            int n = Math.min( dst.remaining(), src.remaining() );
+
+            src.limit( src.position() + n );
+            dst.put(src);
+            position += n;
+        }
+        bytes_read += dst.position();
+        read_ns += System.nanoTime() - t;
+        return dst.position();
+    }
+
+    /* The mapped bytes from a position to the end of its window */
+    ByteBuffer mappedAt (long pos) throws IOException {
+        if (window == null || pos < window_start || pos >= window_start + window.capacity()) {
+            window_start = pos - pos % MAP_WINDOW;
+            window = channel.map( FileChannel.MapMode.READ_ONLY, window_start, Math.min(MAP_WINDOW, size - window_start) );
+        }
+        ByteBuffer b = window.duplicate();
+
+        b.position( (int) (pos - window_start) );
+        return b;
+    }
+
+    /*
+     * The read-ahead bytes from a position to the end of its block, keeping read_ahead blocks
+     * in flight past it. Blocks before the position are dropped, and a position outside of
+     * the blocks in flight starts the read-ahead over from there.
+     */
+    ByteBuffer aheadAt (long pos) throws ExecutionException, InterruptedException {
+        long block = pos / io_buffer * io_buffer;
+
+        if ( pos < ahead_start || pos >= ahead_start + (long) ahead.size() * io_buffer ) {
+            cancelAhead();
+            ahead_start = block;
+        }
+        while (ahead_start < block) {
+            Future<ByteBuffer> done = ahead.poll();
+
+            /* Blocks between seeks may still be being read into */
+            if ( done.isDone() && !done.isCancelled() ) {
+                spare.push( done.get() );
+            }
+            else {
+                done.cancel(false);
+            }
+            ahead_start += io_buffer;
+        }
+        while (ahead.size() < read_ahead && ahead_start + (long) ahead.size() * io_buffer < size) {
+            final long start = ahead_start + (long) ahead.size() * io_buffer;
+            final ByteBuffer b = spare.isEmpty() ? ByteBuffer.allocateDirect(io_buffer) : spare.pop();
+
+            ahead.add( readers.submit(() -> readBlock(b, start)) );
+        }
+        ByteBuffer b = ahead.peek().get().duplicate();
+
+        b.position( (int) (pos - ahead_start) );
+        return b;
+    }
+
+    /* Read a whole block, or up to the end of the file, into a buffer */
+    ByteBuffer readBlock (ByteBuffer b, long start) throws IOException {
+        b.clear();
+        b.limit( (int) Math.min(io_buffer, size - start) );
+
+        while ( b.hasRemaining() && channel.read(b, start + b.position()) >= 0 );
+        b.flip();
+        return b;
+    }
+
+    void cancelAhead () {
+        for (Future<ByteBuffer> f : ahead) {
+            f.cancel(false);
+        }
+        ahead.clear();
+    }
+
+    long seek (long offset, int whence) {
+        switch (whence & ~AVSEEK_FORCE) {
+            case AVSEEK_SIZE:   return size;
+            case 0:             position = offset;
+                                break;
+            case 1:             position += offset;
+                                break;
+            case 2:             position = size + offset;
+                                break;
+            default:            return AVERROR_EXTERNAL;
+        }
+        return position;
+    }
+
+    /* Free the context and its buffer, which ffmpeg may have replaced, and close the file */
+    void close () {
+        open.remove(id);
+        cancelAhead();
+        av_free( avio.buffer() );
+        avio_context_free(avio);
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            session.log("Couldn't close the input: " + e.getMessage());
+        }
+
+        if (bytes_read > 0) {
+            session.log(String.format(
+                "Read %.1f MB %s in %.0f ms, %.1f MB/s%s", bytes_read / 1e6, mapped ? "mapped" : "with read-ahead",
+                read_ns / 1e6, bytes_read / 1e6 / Math.max(read_ns / 1e9, 1e-9),
+                error != null ? " (error: " + error.getMessage() + ")" : ""
+            ));
+        }
+    }
+}
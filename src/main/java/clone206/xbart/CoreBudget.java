@@ -0,0 +1,60 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+/**
+ * The cores a batch may use, split between the files converted at once and the threads
+ * within each one. Every running file holds a core; a file whose decoder can use more threads
+ * is also given its share of whichever cores aren't held, shared with the files which could
+ * start alongside it. A batch of many small files keeps every worker busy and never has
+ * cores to spare, so each file gets a single thread, while a few big files, or the last ones
+ * of a batch, get the cores the idle workers would otherwise leave unused.
+ *
+ * A file keeps the threads it started with: ffmpeg fixes a codec's thread count when it's
+ * opened. Cores given back when a file finishes go to the files started after it.
+ *
+ * @author Kevin Witmer
+ */
+class CoreBudget {
+    final int cores;
+    /* Cores held by the files being converted */
+    int held        = 0;
+
+    CoreBudget (int cores) {
+        this.cores = cores;
+    }
+
+    /*
+     * Claim the cores for a file about to be converted: one, plus up to wanted - 1 more,
+     * out of the free cores shared between it and as many of the queued files as there are
+     * idle workers to start them. Returns the number claimed, at least one even where the
+     * budget has run out.
+     */
+    synchronized int claim (int wanted, int queued, int idle_workers) {
+        int free = cores - held - 1,
+            sharing = 1 + Math.max( 0, Math.min(queued, idle_workers) ),
+            n = 1 + Math.max( 0, Math.min(wanted - 1, free / sharing) );
+
+        held += n;
+        return n;
+    }
+
+    /* Give back the cores a file claimed */
+    synchronized void release (int n) {
+        held -= n;
+    }
+}
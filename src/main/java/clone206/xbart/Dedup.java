@@ -0,0 +1,219 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Finds sources with the same content, so that each one is only converted once per target,
+ * and the outputs of the others are hard links to (or, across file systems, copies of) the
+ * output which was converted.
+ *
+ * Sources are fingerprinted by their whole contents, which is only worth hashing for files
+ * whose size matches another's, in this batch or in the manifest; the manifest then keeps
+ * the hash, so a later run can match a new file against an output made back then. The audio
+ * mode instead hashes the audio packets of every source, which also matches files that only
+ * differ in their tags or container, but only within a batch.
+ *
+ * @author Kevin Witmer
+ */
+class Dedup {
+    static final List<String> MODES = Arrays.asList("file", "audio");
+
+    final Manifest manifest;
+    final boolean audio;
+    /* Outputs linked instead of converted, and their share of the estimated work */
+    final AtomicInteger linked      = new AtomicInteger();
+    final DoubleAdder saved_cost    = new DoubleAdder();
+
+    Dedup (Manifest manifest, String mode) {
+        this.manifest = manifest;
+        this.audio = mode.equals("audio");
+    }
+
+    /*
+     * Fingerprint the planned jobs concurrently and point each output which duplicates
+     * another's at the output to link. The first job in the plan with some content is the
+     * one converted; the rest wait for it, unless a previous run made the output already.
+     */
+    void assign (List<Job> planned, int threads) throws InterruptedException {
+        Map<Job, String> prints = fingerprint(planned, threads);
+        Map<String, Manifest.Entry> made = new HashMap<String, Manifest.Entry>();
+        Map<String, Output> leaders = new HashMap<String, Output>();
+        int found = 0;
+
+        for (Manifest.Entry e : manifest.entries.values()) {
+            if ( !e.hash.equals("-") ) {
+                made.put(e.hash + "\t" + e.target, e);
+            }
+        }
+
+        for (Job job : planned) {
+            String print = prints.get(job);
+            List<Output> encoded = job.encoded();
+
+            if (print == null) {
+                continue;
+            }
+            for (Output o : encoded) {
+                String key = print + "\t" + o.target.key();
+                Manifest.Entry e = audio ? null : made.get(key);
+                Output leader = leaders.get(key);
+
+                if ( e != null && !e.source.equals(Manifest.sourceKey(job.infile)) && e.out_sr == o.out_sr
+                     && Files.exists(Paths.get(e.outfile_path)) ) {
+                    o.dedup_from = e.outfile_path;
+                }
+                else if (leader != null && leader.out_sr == o.out_sr) {
+                    o.dedup_from = leader.outfile_path;
+                    o.dedup_leader = leader;
+                }
+                else {
+                    leaders.put(key, o);
+                    continue;
+                }
+                o.dedup_cost = job.cost / encoded.size();
+                found++;
+            }
+            job.estimateCost();
+        }
+        if (found > 0) {
+            System.err.println(found + " outputs duplicate others and will be linked to them.");
+        }
+    }
+
+    /*
+     * The fingerprint of each job's source which has anything to encode. Whole files are
+     * only hashed where another source, or one in the manifest, is the same size.
+     */
+    Map<Job, String> fingerprint (List<Job> planned, int threads) throws InterruptedException {
+        final Map<Job, String> prints = new ConcurrentHashMap<Job, String>();
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        List<Callable<Void>> hashes = new ArrayList<Callable<Void>>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        if (!audio) {
+            for (Manifest.Entry e : manifest.entries.values()) {
+                if ( !e.hash.equals("-") ) {
+                    sizes.merge(e.size, 1, Integer::sum);
+                }
+            }
+            for (Job job : planned) {
+                if ( !job.encoded().isEmpty() ) {
+                    sizes.merge(size(job.infile), 1, Integer::sum);
+                }
+            }
+        }
+
+        try {
+            for (final Job job : planned) {
+                if ( job.encoded().isEmpty() || (!audio && (size(job.infile) < 0 || sizes.get( size(job.infile) ) < 2)) ) {
+                    continue;
+                }
+                hashes.add(() -> {
+                    try {
+                        prints.put( job, audio ? new TranscodeSession(job.infile).audioHash() : fileHash(job) );
+                    }
+                    catch (Throwable t) {
+                        System.err.println("Couldn't fingerprint " + job.infile + ", converting it anyway: " + t.getMessage());
+                    }
+                    return null;
+                });
+            }
+            pool.invokeAll(hashes);
+        }
+        finally {
+            pool.shutdown();
+        }
+        return prints;
+    }
+
+    /* The size of a file, or -1 if it can't be had, which matches nothing */
+    static long size (Path p) {
+        try {
+            return Files.size(p);
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /* The hash of the whole file, also kept in the manifest entries of its outputs */
+    static String fileHash (Job job) throws IOException {
+        String hash = null;
+
+        for (Output o : job.active()) {
+            if (o.entry != null && !o.entry.hash.equals("-")) {
+                hash = o.entry.hash;
+            }
+        }
+        if (hash == null) {
+            hash = job.hash();
+        }
+        for (Output o : job.active()) {
+            if (o.entry != null) {
+                o.entry.hash = hash;
+            }
+        }
+        return hash;
+    }
+
+    /*
+     * Put an output in place as a hard link to the output it duplicates, or a copy where
+     * the two can't be linked. Returns false if that output was never made, in which case
+     * this one has to be converted after all.
+     */
+    boolean link (TranscodeSession session, Output o) throws IOException {
+        Path from = Paths.get(o.dedup_from),
+             part = o.partPath();
+
+        if ( !Files.exists(from) ) {
+            return false;
+        }
+        Files.deleteIfExists(part);
+
+        try {
+            Files.createLink(part, from);
+            session.log("Linked " + o.outfile_path + " to its duplicate " + from);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            Files.copy(from, part);
+            session.log("Copied " + o.outfile_path + " from its duplicate " + from);
+        }
+        linked.incrementAndGet();
+        saved_cost.add(o.dedup_cost);
+        return true;
+    }
+
+    /* Estimated wall seconds of converting saved, going by how long the converted work took */
+    double savedSeconds (Scheduler scheduler) {
+        double cost = scheduler.encoded_cost.sum();
+
+        return cost > 0 ? saved_cost.sum() * scheduler.encode_ns.get() / 1e9 / cost : 0;
+    }
+
+    void printSummary (Scheduler scheduler) {
+        System.err.println(String.format(
+            "Linked %d duplicate outputs instead of converting them, saving about %.0f seconds of converting.",
+            linked.get(), savedSeconds(scheduler)
+        ));
+    }
+}
@@ -0,0 +1,373 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+/**
+ * Turns raw 1-bit DSD into PCM in Java, in place of ffmpeg's DSD decoder. ffmpeg decodes to
+ * an eighth of the DSD rate and leaves the rest of the decimation to the resampler, in a
+ * second pass over four or eight times as many samples as the output has. This instead
+ * decimates the bit stream straight down to the output rate, or to the nearest rate above it
+ * that the DSD rate divides into by a power of two, in two fused stages.
+ *
+ * The first stage filters the bits down to twice the output rate. It only has to keep what
+ * would alias into the final passband out, so its transition band is wide and the filter
+ * short. Since the input is bits, its taps are applied a byte at a time, by looking up the sum
+ * of each 8 tap stretch for the byte's bit pattern in a table. The second stage is a half band
+ * filter down to the output rate, with its passband to 0.45 and its stopband from 0.55 of the
+ * output rate; half of its taps are zero, and the rest are symmetric. Both are Kaiser windowed
+ * sincs, about 120 dB down, and each computes only the samples the next one uses. Decimating
+ * by just 8 is done by the first stage on its own, with the steep filter.
+ *
+ * This is plain Java, with no ffmpeg calls, so that it can be benchmarked on its own. It's
+ * scalar code, for Java 8, written so that the table rows and sample runs it works on stay in
+ * cache.
+ *
+ * @author Kevin Witmer
+ */
+class DsdDecimator {
+    static final List<String> ENGINES   = Arrays.asList("ffmpeg", "java");
+    /* ffmpeg's raw DSD decoders. DST is compressed, so it's left to ffmpeg. */
+    static final List<String> CODECS    = Arrays.asList("dsd_lsbf", "dsd_msbf", "dsd_lsbf_planar", "dsd_msbf_planar");
+    /* Band edges, as fractions of the output rate, and the Kaiser window's beta for the attenuation */
+    static final double PASS            = 0.45;
+    static final double STOP            = 0.55;
+    static final double ATTENUATION     = 120;
+    static final double BETA            = 0.1102 * (ATTENUATION - 8.7);
+    /* Largest decimation done here; beyond it, the resampler does the rest */
+    static final int MAX_FACTOR         = 128;
+    /* DSD silence, a pattern with as many ones as zeroes */
+    static final byte SILENCE           = 0x69;
+    /* Bytes with their bits in reverse order, for LSB first input */
+    static final byte[] REVERSED        = new byte[256];
+    /* First stage lookup tables by decimation factor, shared by every channel and file */
+    static final Map<Integer, float[]> tables = new ConcurrentHashMap<Integer, float[]>();
+    /* The second stage's centre tap and its non-zero taps on one side, from the centre out */
+    static final double[] HALF_BAND     = halfBand();
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            REVERSED[b] = (byte) (Integer.reverse(b) >>> 24);
+        }
+    }
+
+    final int channels;
+    /* DSD bits per output sample, and bytes per first stage sample */
+    final int factor;
+    final int step;
+    final int out_rate;
+    final boolean two_stage;
+    final boolean planar;
+    final boolean lsb_first;
+    final boolean parallel;
+    /* Bytes under the first stage filter, and samples under the second */
+    final int span;
+    final int span2;
+    /* For each byte position under the first stage filter, then each byte value, the sum of its 8 taps */
+    final float[] table;
+    /* Each channel's bytes still under the first filter, then the new ones, in MSB first order */
+    byte[][] history;
+    int filled;
+    /* Each channel's first stage samples still under the second filter, then the new ones */
+    float[][] mid;
+    int mid_filled;
+    /* Output samples still to drop, to make up for the filters' delay */
+    int delay;
+
+    /*
+     * A decimator for one input, from the DSD rate (in bits per second, per channel) to
+     * the lowest rate it divides into by a power of two that's still at least the given
+     * rate. Channels are decimated concurrently if parallel is set.
+     */
+    DsdDecimator (String codec_name, int channels, int dsd_rate, int min_rate, boolean parallel) {
+        int f = 8;
+
+        while (f < MAX_FACTOR && dsd_rate / (f * 2) >= min_rate && dsd_rate % (f * 2) == 0) {
+            f *= 2;
+        }
+        this.channels = channels;
+        this.factor = f;
+        this.two_stage = f > 8;
+        this.step = two_stage ? f / 16 : 1;
+        this.out_rate = dsd_rate / f;
+        this.planar = codec_name.endsWith("_planar");
+        this.lsb_first = codec_name.startsWith("dsd_lsbf");
+        this.parallel = parallel && channels > 1;
+        this.table = tables.computeIfAbsent(f, DsdDecimator::table);
+        this.span = table.length / 256;
+        this.span2 = two_stage ? 4 * (HALF_BAND.length - 1) - 1 : 1;
+        this.history = new byte[channels][span * 2];
+        this.mid = new float[channels][span2 * 2];
+        this.filled = span - 1;
+        this.mid_filled = span2 - 1;
+        /* Half of each filter, in output samples */
+        this.delay = (int) Math.round( (span * 4.0 + (span2 - 1) / 2.0 * step * 8) / f );
+
+        for (byte[] h : history) {
+            Arrays.fill(h, 0, filled, SILENCE);
+        }
+    }
+
+    /* Whether the engine can decode a codec */
+    static boolean decodes (String codec_name) {
+        return CODECS.contains(codec_name);
+    }
+
+    /* Number of taps for a Kaiser windowed filter with a transition band of the given width, relative to its rate */
+    static int taps (double transition) {
+        return (int) Math.ceil( (ATTENUATION - 8) / (2.285 * 2 * Math.PI * transition) );
+    }
+
+    /* Kaiser windowed sinc tap i of n, with the cutoff relative to the rate */
+    static double sinc (int i, int n, double cutoff) {
+        double x = i - (n - 1) / 2.0,
+               r = 2 * x / (n - 1);
+
+        return (x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x))
+            * bessel0( BETA * Math.sqrt(Math.max(0, 1 - r * r)) ) / bessel0(BETA);
+    }
+
+    /*
+     * The byte lookup table of the first stage filter for a decimation factor, with a DC
+     * gain of 1. Decimating by 8 in one stage needs the steep filter; otherwise it only has
+     * to be steep enough to keep twice the output rate from aliasing into the passband.
+     */
+    static float[] table (int factor) {
+        double cutoff       = factor > 8 ? (2 - STOP + PASS) / 2 / factor : 0.5 / factor,
+               transition   = factor > 8 ? (2 - STOP - PASS) / factor : (STOP - PASS) / factor;
+        int n               = (taps(transition) + 7) / 8 * 8;
+        double[] h          = new double[n];
+        double sum          = 0;
+        float[] t           = new float[n / 8 * 256];
+
+        for (int i = 0; i < n; i++) {
+            h[i] = sinc(i, n, cutoff);
+            sum += h[i];
+        }
+        for (int pos = 0; pos < n / 8; pos++) {
+            for (int b = 0; b < 256; b++) {
+                double s = 0;
+
+                /* The first bit in time is the most significant */
+                for (int k = 0; k < 8; k++) {
+                    s += h[pos * 8 + k] * ( ((b >> (7 - k)) & 1) != 0 ? 1 : -1 );
+                }
+                t[pos * 256 + b] = (float) (s / sum);
+            }
+        }
+        return t;
+    }
+
+    /*
+     * The second stage's half band filter, as its centre tap then the odd taps out from the
+     * centre, with a DC gain of 1. Its length is 3 more than a multiple of 4, so that the
+     * taps at either end aren't zero.
+     */
+    static double[] halfBand () {
+        int n = ( taps( (STOP - PASS) / 2 ) + 1 ) / 4 * 4 + 3,
+            centre = (n - 1) / 2;
+        double[] h = new double[(centre + 1) / 2 + 1];
+        double sum;
+
+        h[0] = sinc(centre, n, 0.25);
+        sum = h[0];
+
+        for (int k = 1; k < h.length; k++) {
+            h[k] = sinc(centre + 2 * k - 1, n, 0.25);
+            sum += 2 * h[k];
+        }
+        for (int k = 0; k < h.length; k++) {
+            h[k] /= sum;
+        }
+        return h;
+    }
+
+    /* Zeroth order modified Bessel function of the first kind, for the Kaiser window */
+    static double bessel0 (double x) {
+        double sum = 1, term = 1;
+
+        for (int k = 1; k < 50 && term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    /*
+     * The most output samples per channel a call with size bytes of input can give. The
+     * filters always keep less than a sample's worth of input beyond what they need.
+     */
+    int maxOutput (int size) {
+        int n1 = (size / channels + step - 1) / step + 1;
+
+        return two_stage ? (n1 + 1) / 2 + 1 : n1;
+    }
+
+    /*
+     * Decimate size bytes of raw DSD laid out as the codec has it, writing PCM samples for
+     * each channel into out, which must hold maxOutput(size) of them. Returns the number of
+     * samples written per channel.
+     */
+    int decimate (byte[] data, int size, float[][] out) {
+        final int per_channel = size / channels;
+        final int[] n = new int[channels];
+
+        grow(per_channel);
+
+        for (int c = 0; c < channels; c++) {
+            byte[] h = history[c];
+            int src = planar ? c * per_channel : c,
+                stride = planar ? 1 : channels;
+
+            for (int i = 0; i < per_channel; i++, src += stride) {
+                h[filled + i] = lsb_first ? REVERSED[data[src] & 0xff] : data[src];
+            }
+        }
+        filled += per_channel;
+
+        if (parallel) {
+            IntStream.range(0, channels).parallel().forEach(c -> n[c] = filter(c, out[c]));
+        }
+        else {
+            for (int c = 0; c < channels; c++) {
+                n[c] = filter(c, out[c]);
+            }
+        }
+        return consume(n[0], out);
+    }
+
+    /* Bytes of silence that push the last of the input through the filters */
+    int flushSize () {
+        return (span / 2 + span2 * step) * channels;
+    }
+
+    /*
+     * Push the last of the input through the filters, writing samples into out, which must
+     * hold maxOutput(flushSize()) of them. Returns the number written.
+     */
+    int flush (float[][] out) {
+        int size = flushSize();
+        byte[] silence = new byte[size];
+
+        Arrays.fill(silence, SILENCE);
+        return decimate(silence, size, out);
+    }
+
+    void grow (int per_channel) {
+        int n1 = (filled + per_channel - span) / step + 1;
+
+        if (filled + per_channel > history[0].length) {
+            for (int c = 0; c < channels; c++) {
+                history[c] = Arrays.copyOf(history[c], filled + per_channel + span);
+            }
+        }
+        if (two_stage && mid_filled + n1 > mid[0].length) {
+            for (int c = 0; c < channels; c++) {
+                mid[c] = Arrays.copyOf(mid[c], mid_filled + n1 + span2);
+            }
+        }
+    }
+
+    /* Filter one channel through both stages, returning the number of output samples */
+    int filter (int c, float[] out) {
+        if (!two_stage) {
+            return first(history[c], out, 0);
+        }
+        return second( mid[c], mid_filled + first(history[c], mid[c], mid_filled), out );
+    }
+
+    /*
+     * Run the first stage over a channel's bytes, one sample per step bytes, into samples
+     * from the given offset, returning how many there were. The loops go a byte position of
+     * the filter at a time over all of the samples, so that only one row of the table needs
+     * to be in cache at once.
+     */
+    int first (byte[] h, float[] samples, int offset) {
+        int n = filled >= span ? (filled - span) / step + 1 : 0;
+
+        Arrays.fill(samples, offset, offset + n, 0f);
+
+        for (int pos = 0; pos < span; pos++) {
+            int row = pos << 8;
+
+            for (int j = offset, i = pos; j < offset + n; j++, i += step) {
+                samples[j] += table[row | (h[i] & 0xff)];
+            }
+        }
+        return n;
+    }
+
+    /* Run the half band filter over the first n of a channel's first stage samples */
+    int second (float[] m, int n, float[] out) {
+        int count = n >= span2 ? (n - span2) / 2 + 1 : 0,
+            centre = (span2 - 1) / 2;
+        float c0 = (float) HALF_BAND[0];
+
+        for (int j = 0, mid_pos = centre; j < count; j++, mid_pos += 2) {
+            out[j] = c0 * m[mid_pos];
+        }
+        for (int k = 1; k < HALF_BAND.length; k++) {
+            float hk = (float) HALF_BAND[k];
+            int off = 2 * k - 1;
+
+            for (int j = 0, mid_pos = centre; j < count; j++, mid_pos += 2) {
+                out[j] += hk * (m[mid_pos - off] + m[mid_pos + off]);
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Drop the bytes and first stage samples the filters have moved past, keeping the ones
+     * still under them, and the output samples which are only the filters' delay. Returns
+     * the samples left.
+     */
+    int consume (int n, float[][] out) {
+        int n1 = filled >= span ? (filled - span) / step + 1 : 0,
+            used = n1 * step;
+
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(history[c], used, history[c], 0, filled - used);
+        }
+        filled -= used;
+
+        if (two_stage) {
+            int mid_used = 2 * n;
+
+            mid_filled += n1;
+
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(mid[c], mid_used, mid[c], 0, mid_filled - mid_used);
+            }
+            mid_filled -= mid_used;
+        }
+
+        if (delay > 0) {
+            int drop = Math.min(delay, n);
+
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(out[c], drop, out[c], 0, n - drop);
+            }
+            delay -= drop;
+            n -= drop;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for each file, so that a recording of a batch shows what
+ * each file cost next to the JVM's own events. Everything touching jdk.jfr stays in here
+ * and only runs if the JVM has it, so older Java 8 runtimes work as before.
+ *
+ * @author Kevin Witmer
+ */
+class JfrEvents {
+    /* Whether this JVM has the jdk.jfr API */
+    static final boolean AVAILABLE = available();
+
+    static boolean available () {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /* Whether a recording is running which wants the file events */
+    static boolean enabled () {
+        return AVAILABLE && Recorder.enabled();
+    }
+
+    /* Start timing a file's conversion, returning the event to pass to converted() */
+    static Object begin () {
+        return AVAILABLE ? Recorder.begin() : null;
+    }
+
+    static void converted (Object event, Job job, Throwable error) {
+        if (event != null) {
+            Recorder.converted(event, job, error);
+        }
+    }
+
+    static void skipped (Job job) {
+        if (AVAILABLE) {
+            Recorder.skipped(job);
+        }
+    }
+
+    /* Only loaded once AVAILABLE is known to be true */
+    static class Recorder {
+        static boolean enabled () {
+            return FlightRecorder.isInitialized() && new FileConverted().isEnabled();
+        }
+
+        static Object begin () {
+            FileConverted e = new FileConverted();
+
+            e.begin();
+            return e;
+        }
+
+        static void converted (Object event, Job job, Throwable error) {
+            FileConverted e = (FileConverted) event;
+            TranscodeStats s = job.stats;
+
+            e.end();
+
+            if ( !e.shouldCommit() ) {
+                return;
+            }
+            e.file = job.infile.toString();
+            e.codec = job.codec_name;
+            e.sampleRate = job.sample_rate;
+            e.audioSeconds = job.duration;
+            e.targets = targets(job);
+            e.error = error != null ? error.getMessage() : null;
+
+            if (s != null) {
+                e.probeTime = s.probe_ns;
+                e.readTime = s.stage_ns.get(TranscodeStats.READ);
+                e.decodeTime = s.stage_ns.get(TranscodeStats.DECODE);
+                e.filterTime = s.stage_ns.get(TranscodeStats.FILTER);
+                e.encodeTime = s.stage_ns.get(TranscodeStats.ENCODE);
+                e.writeTime = s.stage_ns.get(TranscodeStats.WRITE);
+                e.packetsIn = s.counters.get(TranscodeStats.PACKETS_IN);
+                e.bytesIn = s.counters.get(TranscodeStats.BYTES_IN);
+                e.samplesDecoded = s.counters.get(TranscodeStats.SAMPLES_DECODED);
+                e.packetsOut = s.counters.get(TranscodeStats.PACKETS_OUT);
+                e.bytesOut = s.counters.get(TranscodeStats.BYTES_OUT);
+                e.realtime = s.realtime(job.duration);
+            }
+            e.commit();
+        }
+
+        static void skipped (Job job) {
+            for (Output o : job.outputs) {
+                FileSkipped e = new FileSkipped();
+
+                if (o.skip_reason == null) {
+                    continue;
+                }
+                if ( !e.shouldCommit() ) {
+                    return;
+                }
+                e.file = job.infile.toString();
+                e.target = o.target.toString();
+                e.reason = o.skip_reason;
+                e.commit();
+            }
+        }
+
+        static String targets (Job job) {
+            StringBuilder sb = new StringBuilder();
+
+            for (Output o : job.active()) {
+                sb.append(sb.length() > 0 ? " " : "").append(o.target);
+            }
+            return sb.toString();
+        }
+    }
+
+    @Name("clone206.xbart.FileConverted")
+    @Label("File Converted")
+    @Category("xBart")
+    @Description("Conversion of one input file to all of its targets")
+    static class FileConverted extends Event {
+        @Label("File") String file;
+        @Label("Codec") String codec;
+        @Label("Sample Rate") int sampleRate;
+        @Label("Audio Seconds") double audioSeconds;
+        @Label("Targets") String targets;
+        @Label("Error") String error;
+        @Label("Probe Time") @Timespan long probeTime;
+        @Label("Read Time") @Timespan long readTime;
+        @Label("Decode Time") @Timespan long decodeTime;
+        @Label("Filter Time") @Timespan long filterTime;
+        @Label("Encode Time") @Timespan long encodeTime;
+        @Label("Write Time") @Timespan long writeTime;
+        @Label("Packets In") long packetsIn;
+        @Label("Bytes In") @DataAmount long bytesIn;
+        @Label("Samples Decoded") long samplesDecoded;
+        @Label("Packets Out") long packetsOut;
+        @Label("Bytes Out") @DataAmount long bytesOut;
+        @Label("Realtime Factor") double realtime;
+    }
+
+    @Name("clone206.xbart.FileSkipped")
+    @Label("File Skipped")
+    @Category("xBart")
+    @Description("An output which wasn't produced, and why")
+    static class FileSkipped extends Event {
+        @Label("File") String file;
+        @Label("Target") String target;
+        @Label("Reason") String reason;
+    }
+}
@@ -0,0 +1,131 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The planned conversion of one input file to each of the targets, as found by probing it.
+ * The input is decoded once for all of the outputs. Jobs order themselves by estimated cost,
+ * most expensive first, so that long files don't end up as the tail of a batch.
+ *
+ * @author Kevin Witmer
+ */
+class Job implements Comparable<Job> {
+    /* Weight of a job whose outputs are all copies of the input */
+    static final double COPY_WEIGHT = 0.05;
+
+    final Path infile;
+    String codec_name       = "";
+    int sample_rate         = 0;
+    /* Duration of the input in seconds */
+    double duration         = 0;
+    /* One output per target, decoded from the same input */
+    final List<Output> outputs = new ArrayList<Output>();
+    /* Estimated relative cost of converting the file */
+    double cost             = 0;
+    /* The input's audio in the PCM cache, decoded from it by an earlier run, if it's there */
+    Path cached;
+    /* Threads the conversion could keep busy, and the threads it was given */
+    int max_threads         = 1;
+    int threads             = 1;
+    /* Timings and counters, if a report or recording wants them */
+    TranscodeStats stats;
+    /* SHA-1 of the input, once something has needed it */
+    String hash;
+
+    Job (Path infile) {
+        this.infile = infile;
+    }
+
+    /* The input's SHA-1, hashed the first time it's needed, for the manifest and --dedup alike */
+    String hash () throws IOException {
+        if (hash == null) {
+            hash = Manifest.hash(infile);
+        }
+        return hash;
+    }
+
+    /* The outputs which are to be produced */
+    List<Output> active () {
+        List<Output> active = new ArrayList<Output>();
+
+        for (Output o : outputs) {
+            if (o.skip_reason == null) {
+                active.add(o);
+            }
+        }
+        return active;
+    }
+
+    /* The active outputs which have to be encoded, rather than copied from the input or a duplicate */
+    List<Output> encoded () {
+        List<Output> encoded = new ArrayList<Output>();
+
+        for (Output o : active()) {
+            if (!o.passthrough && o.dedup_from == null) {
+                encoded.add(o);
+            }
+        }
+        return encoded;
+    }
+
+    /* Rough relative cost of decoding a second of audio per input sample, by decoder */
+    static double codecWeight (String codec_name) {
+        if (codec_name.equals("dst")) {
+            return 12;
+        }
+        else if (codec_name.startsWith("dsd_")) {
+            return 8;
+        }
+        else if (codec_name.startsWith("pcm_")) {
+            return 0.5;
+        }
+        else if (codec_name.equals("mp3") || codec_name.equals("mp3float")) {
+            return 1.5;
+        }
+        return 1;
+    }
+
+    /* The decoder the conversion goes through: FLAC, where the input's audio is cached */
+    String decoder () {
+        return cached != null ? "flac" : codec_name;
+    }
+
+    /* Estimate the cost as duration x input rate x codec weight, or next to nothing where the outputs are copies */
+    void estimateCost () {
+        boolean copy_only = !active().isEmpty() && encoded().isEmpty();
+
+        cost = duration * sample_rate * (copy_only ? COPY_WEIGHT : codecWeight( decoder() )) / 1e6;
+    }
+
+    /* Whether an output links to one which the batch has yet to make */
+    boolean waitsForDuplicate () {
+        for (Output o : active()) {
+            if (o.dedup_leader != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int compareTo (Job o) {
+        return Double.compare(o.cost, cost);
+    }
+}
@@ -0,0 +1,214 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.nio.*;
+import java.util.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * Measures the true peak and integrated loudness of interleaved float audio as it goes by,
+ * as in ITU-R BS.1770 (and EBU R128, which uses it). Loudness is the K-weighted mean square
+ * over 400 ms blocks, overlapping by 75%, gated at -70 LUFS and then 10 LU below the mean of
+ * what's left. The true peak is the peak of the audio oversampled to at least 176.4k by a
+ * 12 tap per phase interpolator, so that peaks between the samples, which a lower rate or a
+ * lossy encoder can bring out, are counted too.
+ *
+ * @author Kevin Witmer
+ */
+class LoudnessMeter {
+    /* Taps per phase of the true peak interpolator */
+    static final int TAPS               = 12;
+    static final double ABSOLUTE_GATE   = -70;
+    static final double RELATIVE_GATE   = -10;
+    /* The most an auto gain will boost by, for audio which is next to silent */
+    static final double MAX_GAIN        = 40;
+
+    final int channels;
+    final int rate;
+    /* BS.1770 channel weights: the surrounds of 5.1 count for more, and the LFE not at all */
+    final double[] weights;
+    /* The two K-weighting biquads, and each channel's state in them */
+    final double[] shelf, high_pass;
+    final double[][] state;
+    /* Mean squares of the 100 ms quarters of each block */
+    final List<Double> quarters         = new ArrayList<Double>();
+    final int quarter;
+    double sum                          = 0;
+    int in_quarter                      = 0;
+    /* The interpolator's phases and each channel's recent samples */
+    final int oversample;
+    final double[] interpolator;
+    final float[][] history;
+    int pos                             = 0;
+    double peak                         = 0;
+
+    LoudnessMeter (int channels, int rate) {
+        this.channels = channels;
+        this.rate = rate;
+        this.weights = new double[channels];
+        this.state = new double[channels][4];
+        this.quarter = Math.max(1, (int) Math.round(rate * 0.1));
+        this.oversample = rate < 88200 ? 4 : rate < 176400 ? 2 : 1;
+        this.interpolator = interpolator(oversample);
+        this.history = new float[channels][TAPS];
+
+        for (int c = 0; c < channels; c++) {
+            weights[c] = channels != 6 ? 1 : c == 3 ? 0 : c >= 4 ? 1.41 : 1;
+        }
+
+        /* The K-weighting filters' analogue prototypes, mapped to the rate (as libebur128 does) */
+        double k = Math.tan(Math.PI * 1681.974450955533 / rate),
+               q = 0.7071752369554196,
+               vh = Math.pow(10, 3.999843853973347 / 20),
+               vb = Math.pow(vh, 0.4996667741545416),
+               a0 = 1 + k / q + k * k;
+
+        shelf = new double[] {
+            (vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+            2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0
+        };
+        k = Math.tan(Math.PI * 38.13547087602444 / rate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        high_pass = new double[] { 1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0 };
+    }
+
+    /*
+     * A windowed sinc interpolator, as TAPS taps for each of the phases, each phase scaled
+     * to a DC gain of 1.
+     */
+    static double[] interpolator (int phases) {
+        int n = TAPS * phases;
+        double[] h = new double[n];
+
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+
+            for (int t = 0; t < TAPS; t++) {
+                int i = t * phases + p;
+                double x = (i - (n - 1) / 2.0) / phases;
+
+                h[p * TAPS + t] = (x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x))
+                    * (0.5 - 0.5 * Math.cos( 2 * Math.PI * (i + 1) / (n + 1) ));
+                sum += h[p * TAPS + t];
+            }
+            for (int t = 0; t < TAPS; t++) {
+                h[p * TAPS + t] /= sum;
+            }
+        }
+        return h;
+    }
+
+    /* Measure the next frames of interleaved audio */
+    void process (FloatBuffer audio, int frames) {
+        for (int f = 0; f < frames; f++) {
+            pos = pos == 0 ? TAPS - 1 : pos - 1;
+
+            for (int c = 0; c < channels; c++) {
+                float x = audio.get(f * channels + c);
+                double[] s = state[c];
+                double y, z;
+
+                /* Direct form II transposed, one biquad then the other */
+                y = shelf[0] * x + s[0];
+                s[0] = shelf[1] * x - shelf[3] * y + s[1];
+                s[1] = shelf[2] * x - shelf[4] * y;
+                z = y + s[2];
+                s[2] = -2 * y - high_pass[3] * z + s[3];
+                s[3] = y - high_pass[4] * z;
+                sum += weights[c] * z * z;
+
+                history[c][pos] = x;
+                truePeak(history[c]);
+            }
+            if (++in_quarter == quarter) {
+                quarters.add(sum / quarter);
+                sum = 0;
+                in_quarter = 0;
+            }
+        }
+    }
+
+    /* Take in the peaks of a channel's newest sample and those interpolated before it */
+    void truePeak (float[] h) {
+        for (int p = 0; p < oversample; p++) {
+            double y = 0;
+
+            for (int t = 0, i = pos; t < TAPS; t++, i = i + 1 == TAPS ? 0 : i + 1) {
+                y += interpolator[p * TAPS + t] * h[i];
+            }
+            peak = Math.max( peak, Math.abs(y) );
+        }
+        peak = Math.max( peak, Math.abs(h[pos]) );
+    }
+
+    /* The true peak, in dB relative to full scale (dBTP) */
+    double truePeak () {
+        return 20 * Math.log10(peak);
+    }
+
+    /* The gated integrated loudness, in LUFS, or -Infinity where it's all below the absolute gate */
+    double integrated () {
+        List<Double> blocks = new ArrayList<Double>();
+        double total = 0, relative;
+        int counted = 0;
+
+        for (int i = 3; i < quarters.size(); i++) {
+            double ms = ( quarters.get(i - 3) + quarters.get(i - 2) + quarters.get(i - 1) + quarters.get(i) ) / 4;
+
+            if ( loudness(ms) > ABSOLUTE_GATE ) {
+                blocks.add(ms);
+                total += ms;
+            }
+        }
+        if ( blocks.isEmpty() ) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        relative = loudness( total / blocks.size() ) + RELATIVE_GATE;
+        total = 0;
+
+        for (double ms : blocks) {
+            if (loudness(ms) > relative) {
+                total += ms;
+                counted++;
+            }
+        }
+        return loudness(total / counted);
+    }
+
+    static double loudness (double mean_square) {
+        return -0.691 + 10 * Math.log10(mean_square);
+    }
+
+    /*
+     * The gain, in dB, which brings the true peak up (or down) to --gain-ceiling, or the
+     * loudness to --loudness where that's lower. Silence is left alone.
+     */
+    static double gain (double true_peak, double integrated) {
+        double g = gain_ceiling - true_peak;
+
+        if (true_peak == Double.NEGATIVE_INFINITY) {
+            return 0;
+        }
+        if ( !Double.isNaN(target_loudness) && integrated != Double.NEGATIVE_INFINITY ) {
+            g = Math.min(g, target_loudness - integrated);
+        }
+        return Math.min(g, MAX_GAIN);
+    }
+}
@@ -0,0 +1,582 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Record of previous conversions, kept in the output directory so that later runs can tell
+ * which sources are unchanged without opening them with ffmpeg.
+ *
+ * Entries are keyed by the absolute source path plus the target settings, and written as
+ * one tab separated line per entry.
+ *
+ * The manifest is only written out at the end of a batch, so in between, each output is
+ * also appended to a journal as it's produced, along with checkpoints of long conversions.
+ * If the run is cut short, the next one replays the journal, so only the files which
+ * weren't finished are converted again, and those with a checkpoint carry on from it.
+ *
+ * Processes of a shared run each journal to their own file, named after them, and merge
+ * what they've recorded into the manifest as it is on disk when they save, holding the
+ * run's lease on it. A journal left by one which died is picked up by the next to load.
+ *
+ * Alongside the outputs, the manifest keeps the loudness measured for auto gain targets,
+ * per source and output rate, as lines starting with "loudness", so that converting a
+ * source to another auto gain target needs no measuring.
+ *
+ * @author Kevin Witmer
+ */
+class Manifest {
+    static final String FILE_NAME   = ".xbart_manifest";
+    static final String HEADER      = "# xbart manifest v1";
+    static final String JOURNAL_NAME    = ".xbart_journal";
+    static final String JOURNAL_HEADER  = "# xbart journal v1";
+
+    /* A single converted (or already present) output and the source state it was made from */
+    static class Entry {
+        String source;
+        String target;
+        long size;
+        long mtime;
+        /* Content hash of the source, or "-" if hashing was off */
+        String hash;
+        int sample_rate;
+        int bits;
+        int out_sr;
+        String outfile_path;
+
+        String key () {
+            return key(source, target);
+        }
+
+        static String key (String source, String target) {
+            return source + "\t" + target;
+        }
+    }
+
+    /*
+     * How far the conversion of a source to a target had got: samples and bytes of the
+     * output written under its part name, as of the source's size and date
+     */
+    static class Checkpoint {
+        String source;
+        String target;
+        long size;
+        long mtime;
+        String outfile_path;
+        long samples;
+        long bytes;
+
+        String key () {
+            return Entry.key(source, target);
+        }
+    }
+
+    /* The true peak and integrated loudness of a source, resampled to a rate, as of its size and date */
+    static class Loudness {
+        String source;
+        long size;
+        long mtime;
+        int out_sr;
+        double true_peak;
+        double integrated;
+
+        String key () {
+            return source + "\t" + out_sr;
+        }
+    }
+
+    final Path file;
+    final Path journal;
+    final boolean hashing;
+    final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /* The latest checkpoint of each conversion in progress, or cut short by the last run */
+    final ConcurrentMap<String, Checkpoint> checkpoints = new ConcurrentHashMap<String, Checkpoint>();
+    final ConcurrentMap<String, Loudness> loudness = new ConcurrentHashMap<String, Loudness>();
+    /* Open for appending while there's anything in the journal */
+    BufferedWriter journal_out;
+    /* What this run has changed, which saving keeps over what other processes have saved */
+    final Set<String> changed           = ConcurrentHashMap.newKeySet();
+    final Set<String> removed           = ConcurrentHashMap.newKeySet();
+    final Set<String> loudness_changed  = ConcurrentHashMap.newKeySet();
+    final Set<String> loudness_removed  = ConcurrentHashMap.newKeySet();
+    /* Journals of earlier runs picked up, to be deleted once saved */
+    final List<Path> replayed           = new ArrayList<Path>();
+
+    Manifest (Path file, boolean hashing) {
+        this.file = file;
+        this.journal = file.resolveSibling( Xbart.shared != null ? JOURNAL_NAME + "." + Xbart.shared.worker : JOURNAL_NAME );
+        this.hashing = hashing;
+    }
+
+    /* Load the manifest from disk, if there is one */
+    static Manifest load (Path dir, boolean hashing) throws IOException {
+        Manifest m = new Manifest(dir.resolve(FILE_NAME), hashing);
+
+        m.read();
+        m.replay();
+        return m;
+    }
+
+    /* Read the manifest file, keeping what this run has changed since over what's in it */
+    void read () throws IOException {
+        if ( !Files.exists(file) ) {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if ( line.startsWith("loudness\t") ) {
+                Loudness l = parseLoudness( line.split("\t", -1) );
+
+                if ( l != null && !loudness_changed.contains(l.key()) && !loudness_removed.contains(l.key()) ) {
+                    loudness.put(l.key(), l);
+                }
+                continue;
+            }
+            Entry e = parse( line.split("\t", -1), 0 );
+
+            if (e == null) {
+                System.err.println("Ignoring malformed manifest line: " + line);
+                continue;
+            }
+            if ( !changed.contains(e.key()) && !removed.contains(e.key()) ) {
+                entries.put(e.key(), e);
+            }
+        }
+    }
+
+    /*
+     * Pick up the outputs and checkpoints journaled by runs which didn't get to save the
+     * manifest, leaving alone the journals of processes of a shared run which are still
+     * going.
+     */
+    void replay () throws IOException {
+        if ( !Files.isDirectory( file.getParent() ) ) {
+            return;
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(file.getParent(), JOURNAL_NAME + "*")) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+
+                if ( Xbart.shared != null && !p.equals(journal) && name.startsWith(JOURNAL_NAME + ".")
+                     && Xbart.shared.live( name.substring(JOURNAL_NAME.length() + 1) ) ) {
+                    continue;
+                }
+                replay(p);
+                replayed.add(p);
+            }
+        }
+    }
+
+    /* Pick up a journal. A line cut off by the run ending is ignored. */
+    void replay (Path from) throws IOException {
+        int done = 0;
+
+        for (String line : Files.readAllLines(from, StandardCharsets.UTF_8)) {
+            String[] f = line.split("\t", -1);
+
+            if ( f[0].equals("done") ) {
+                Entry e = parse(f, 1);
+
+                if (e != null) {
+                    put(e);
+                    checkpoints.remove( e.key() );
+                    done++;
+                }
+            }
+            else if ( f[0].equals("checkpoint") && f.length == 8 ) {
+                Checkpoint c = new Checkpoint();
+
+                try {
+                    c.source        = unescape(f[1]);
+                    c.target        = unescape(f[2]);
+                    c.size          = Long.parseLong(f[3]);
+                    c.mtime         = Long.parseLong(f[4]);
+                    c.outfile_path  = unescape(f[5]);
+                    c.samples       = Long.parseLong(f[6]);
+                    c.bytes         = Long.parseLong(f[7]);
+                }
+                catch (NumberFormatException e) {
+                    continue;
+                }
+                checkpoints.put(c.key(), c);
+            }
+            else if ( f[0].equals("loudness") ) {
+                Loudness l = parseLoudness(f);
+
+                if (l != null) {
+                    loudness.put(l.key(), l);
+                    loudness_changed.add( l.key() );
+                }
+            }
+        }
+        System.err.println(
+            "A run was cut short. Picked up " + done + " outputs it finished from " + from.getFileName() + ", "
+            + checkpoints.size() + " conversions can carry on from a checkpoint."
+        );
+    }
+
+    /* An entry from a line's fields, starting at the given one, or null if they're malformed */
+    static Entry parse (String[] f, int i) {
+        Entry e = new Entry();
+
+        if (f.length != i + 9) {
+            return null;
+        }
+        try {
+            e.source        = unescape(f[i]);
+            e.target        = unescape(f[i + 1]);
+            e.size          = Long.parseLong(f[i + 2]);
+            e.mtime         = Long.parseLong(f[i + 3]);
+            e.hash          = f[i + 4];
+            e.sample_rate   = Integer.parseInt(f[i + 5]);
+            e.bits          = Integer.parseInt(f[i + 6]);
+            e.out_sr        = Integer.parseInt(f[i + 7]);
+            e.outfile_path  = unescape(f[i + 8]);
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+        return e;
+    }
+
+    /* A loudness measurement from a line's fields, or null if they're malformed */
+    static Loudness parseLoudness (String[] f) {
+        Loudness l = new Loudness();
+
+        if (f.length != 7) {
+            return null;
+        }
+        try {
+            l.source        = unescape(f[1]);
+            l.size          = Long.parseLong(f[2]);
+            l.mtime         = Long.parseLong(f[3]);
+            l.out_sr        = Integer.parseInt(f[4]);
+            l.true_peak     = Double.parseDouble(f[5]);
+            l.integrated    = Double.parseDouble(f[6]);
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+        return l;
+    }
+
+    static String line (Loudness l) {
+        return "loudness\t" + escape(l.source) + "\t" + l.size + "\t" + l.mtime + "\t" + l.out_sr + "\t"
+            + l.true_peak + "\t" + l.integrated;
+    }
+
+    static String line (Entry e) {
+        return escape(e.source) + "\t" + escape(e.target) + "\t" + e.size + "\t" + e.mtime + "\t"
+            + e.hash + "\t" + e.sample_rate + "\t" + e.bits + "\t" + e.out_sr + "\t"
+            + escape(e.outfile_path);
+    }
+
+    static String line (Checkpoint c) {
+        return escape(c.source) + "\t" + escape(c.target) + "\t" + c.size + "\t" + c.mtime + "\t"
+            + escape(c.outfile_path) + "\t" + c.samples + "\t" + c.bytes;
+    }
+
+    /*
+     * Write the manifest out, replacing the previous one atomically, with what other
+     * processes have saved since it was loaded merged in. Everything journaled is in it
+     * then, so the journal is started over with just the current checkpoints.
+     */
+    synchronized void save () throws IOException {
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        List<Entry> sorted;
+
+        if (Xbart.shared != null) {
+            Xbart.shared.lockManifest();
+            tmp = file.resolveSibling(FILE_NAME + "." + Xbart.shared.worker + ".tmp");
+        }
+        try {
+            read();
+            sorted = new ArrayList<Entry>(entries.values());
+            Collections.sort(sorted, (a, b) -> a.key().compareTo(b.key()));
+
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                w.write(HEADER);
+                w.newLine();
+
+                for (Entry e : sorted) {
+                    w.write( line(e) );
+                    w.newLine();
+                }
+                for (Loudness l : loudness.values()) {
+                    w.write( line(l) );
+                    w.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            if (Xbart.shared != null) {
+                Xbart.shared.unlockManifest();
+            }
+        }
+
+        if (journal_out != null) {
+            journal_out.close();
+            journal_out = null;
+        }
+        Files.deleteIfExists(journal);
+
+        for (Path p : replayed) {
+            Files.deleteIfExists(p);
+        }
+        replayed.clear();
+
+        for (Iterator<Checkpoint> it = checkpoints.values().iterator(); it.hasNext(); ) {
+            Checkpoint c = it.next();
+
+            /* Not if the output it was for is gone */
+            if ( Files.exists( Output.partPath(c.outfile_path) ) ) {
+                journal("checkpoint\t" + line(c));
+            }
+            else {
+                it.remove();
+            }
+        }
+    }
+
+    /* Append a line to the journal, getting it to the OS before going on */
+    synchronized void journal (String line) throws IOException {
+        if (journal_out == null) {
+            journal_out = Files.newBufferedWriter(
+                journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND
+            );
+            if (Files.size(journal) == 0) {
+                journal_out.write(JOURNAL_HEADER);
+                journal_out.newLine();
+            }
+        }
+        journal_out.write(line);
+        journal_out.newLine();
+        journal_out.flush();
+    }
+
+    Entry get (Path source, String target) {
+        return entries.get( Entry.key(sourceKey(source), target) );
+    }
+
+    void put (Entry e) {
+        entries.put(e.key(), e);
+        changed.add( e.key() );
+        removed.remove( e.key() );
+    }
+
+    /* Record an output which has just been produced, journaling it in case the run is cut short */
+    void record (Entry e) throws IOException {
+        put(e);
+        checkpoints.remove( e.key() );
+        journal("done\t" + line(e));
+    }
+
+    /* Note how far the output for an entry has got */
+    void checkpoint (Entry e, long samples, long bytes) throws IOException {
+        Checkpoint c = new Checkpoint();
+
+        c.source        = e.source;
+        c.target        = e.target;
+        c.size          = e.size;
+        c.mtime         = e.mtime;
+        c.outfile_path  = e.outfile_path;
+        c.samples       = samples;
+        c.bytes         = bytes;
+        checkpoints.put(c.key(), c);
+        journal("checkpoint\t" + line(c));
+    }
+
+    /* The checkpoint to carry on from for an entry, if its source and output are the same as then */
+    Checkpoint resumePoint (Entry e) {
+        Checkpoint c = checkpoints.get( e.key() );
+
+        if (c == null || c.size != e.size || c.mtime != e.mtime || !c.outfile_path.equals(e.outfile_path)) {
+            return null;
+        }
+        return c;
+    }
+
+    /* The loudness measured for a source at a rate, if it's unchanged since */
+    Loudness loudness (Path source, int out_sr) throws IOException {
+        Loudness l = loudness.get( sourceKey(source) + "\t" + out_sr );
+
+        if ( l == null || l.size != Files.size(source) || l.mtime != Files.getLastModifiedTime(source).toMillis() ) {
+            return null;
+        }
+        return l;
+    }
+
+    /* Keep the loudness measured for a source at a rate, journaling it */
+    void recordLoudness (Path source, int out_sr, double true_peak, double integrated) throws IOException {
+        Loudness l = new Loudness();
+
+        l.source        = sourceKey(source);
+        l.size          = Files.size(source);
+        l.mtime         = Files.getLastModifiedTime(source).toMillis();
+        l.out_sr        = out_sr;
+        l.true_peak     = true_peak;
+        l.integrated    = integrated;
+        loudness.put(l.key(), l);
+        loudness_changed.add( l.key() );
+        journal( line(l) );
+    }
+
+    /* Forget the checkpoint for an entry, whose conversion failed or is starting over */
+    void dropCheckpoint (Entry e) {
+        checkpoints.remove( e.key() );
+    }
+
+    /* The source's hash, worked out only if it's needed */
+    interface Hash {
+        String get () throws IOException;
+    }
+
+    /*
+     * Create an entry describing the current state of the source. The probed fields
+     * are filled in by the caller.
+     */
+    Entry describe (Path source, String target, Hash hash) throws IOException {
+        Entry e = new Entry();
+
+        e.source    = sourceKey(source);
+        e.target    = target;
+        e.size      = Files.size(source);
+        e.mtime     = Files.getLastModifiedTime(source).toMillis();
+        e.hash      = hashing ? hash.get() : "-";
+        return e;
+    }
+
+    /*
+     * Check whether the source is still the same as when the entry was recorded. Size and
+     * modification time are trusted when they match; otherwise, if hashing is on, the contents
+     * get a chance to prove the file was only touched. In that case the entry is refreshed.
+     */
+    boolean unchanged (Entry e, Path source, Hash hash) throws IOException {
+        long size = Files.size(source);
+        long mtime = Files.getLastModifiedTime(source).toMillis();
+
+        if (e.size == size && e.mtime == mtime) {
+            return true;
+        }
+        if (hashing && e.size == size && !e.hash.equals("-") && e.hash.equals( hash.get() )) {
+            e.mtime = mtime;
+            changed.add( e.key() );
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Drop the entries for sources under the given tree which no longer exist, deleting their
+     * outputs. Returns the number of entries removed.
+     */
+    int prune (Path tree) throws IOException {
+        String prefix = tree.toAbsolutePath().normalize().toString() + File.separator;
+        int pruned = 0;
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+
+            if ( e.source.startsWith(prefix) && !Files.exists(Paths.get(e.source)) ) {
+                System.err.println("Source gone, removing " + e.outfile_path);
+                Files.deleteIfExists(Paths.get(e.outfile_path));
+                it.remove();
+                changed.remove( e.key() );
+                removed.add( e.key() );
+                pruned++;
+            }
+        }
+        for (Iterator<Loudness> it = loudness.values().iterator(); it.hasNext(); ) {
+            Loudness l = it.next();
+
+            if ( l.source.startsWith(prefix) && !Files.exists(Paths.get(l.source)) ) {
+                it.remove();
+                loudness_changed.remove( l.key() );
+                loudness_removed.add( l.key() );
+            }
+        }
+        return pruned;
+    }
+
+    static String sourceKey (Path source) {
+        return source.toAbsolutePath().normalize().toString();
+    }
+
+    /* SHA-1 of the file's contents, as hex */
+    static String hash (Path source) throws IOException {
+        MessageDigest md = sha1();
+        byte[] buf = new byte[1 << 16];
+
+        try (InputStream in = Files.newInputStream(source)) {
+            int n;
+
+            while ( (n = in.read(buf)) > 0 ) {
+                md.update(buf, 0, n);
+            }
+        }
+        return hex( md.digest() );
+    }
+
+    static MessageDigest sha1 () {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex (byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : digest) {
+            sb.append( String.format("%02x", b) );
+        }
+        return sb.toString();
+    }
+
+    /* Keep tabs and newlines in paths from breaking up the line format */
+    static String escape (String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    static String unescape (String s) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,85 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.*;
+
+/**
+ * Owner of the ffmpeg objects allocated for a session. Each object is registered along with
+ * the call that frees it, and closing the scope frees them all, newest first, however the
+ * session ended. Objects filled in by ffmpeg, like a format context passed to
+ * avformat_open_input(), can be registered before the call; anything still null when the
+ * scope closes is passed over.
+ *
+ * @author Kevin Witmer
+ */
+class NativeScope implements AutoCloseable {
+    /* Objects registered with any scope and not yet released, across the whole run */
+    static final AtomicLong live = new AtomicLong();
+
+    interface Release<T extends Pointer> {
+        void release (T p);
+    }
+
+    private final Deque<Runnable> releases = new ArrayDeque<Runnable>();
+
+    /* Register an object to be released when the scope closes, returning it */
+    synchronized <T extends Pointer> T own (final T p, final Release<T> release) {
+        if (p == null) {
+            return null;
+        }
+        releases.push(() -> {
+            if ( !p.isNull() ) {
+                release.release(p);
+            }
+        });
+        live.incrementAndGet();
+        return p;
+    }
+
+    /* Release everything registered, even if some of it fails to be */
+    @Override
+    public synchronized void close () {
+        RuntimeException error = null;
+
+        while ( !releases.isEmpty() ) {
+            try {
+                releases.pop().run();
+            }
+            catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            finally {
+                live.decrementAndGet();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /* Live objects, and JavaCPP's tally of its own allocations next to the process' resident size */
+    static String usage () {
+        return live.get() + " native objects live, "
+            + Pointer.formatBytes( Pointer.totalBytes() ) + " JavaCPP allocated, "
+            + Pointer.formatBytes( Pointer.physicalBytes() ) + " resident";
+    }
+}
@@ -0,0 +1,95 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * One output file of a job: what probing planned for a target, and the encoder and
+ * container state while the file is being written.
+ *
+ * @author Kevin Witmer
+ */
+class Output {
+    final Target target;
+    int out_sr                      = 0;
+    String outfile_path             = "";
+    /* Manifest entry to record once the output has been produced */
+    Manifest.Entry entry;
+    /* Output made from an older version of the source, to be removed before converting */
+    String stale_outfile;
+    /* Why the output won't be produced, or null if it will be */
+    String skip_reason;
+    /* Where the output is encoded before being copied to outfile_path, if it's staged */
+    String staged_path;
+    /* The checkpoint of an earlier, interrupted conversion to carry on from, if any */
+    Manifest.Checkpoint resume;
+    /* Whether the output is a copy of the input, which needs no re-encoding */
+    boolean passthrough;
+    /* An output with the same content, which this one is linked to instead of being converted */
+    String dedup_from;
+    /* The output of this batch it duplicates, if it's yet to be made, and the share of the work saved */
+    Output dedup_leader;
+    double dedup_cost;
+    /* Where the output is streamed to instead of a file, if it is, and the context writing it */
+    WritableByteChannel sink;
+    StreamIO sink_io;
+    /* An auto gain target's gain in dB, once it's known, and its audio, held until then */
+    Double gain;
+    PcmSpool spool;
+
+    AVFormatContext out_fmt_ctx     = new AVFormatContext(null);
+    AVCodecContext enc_ctx          = new AVCodecContext(null);
+    AVCodec output_codec            = new AVCodec(null);
+    /* Where this output's filtered audio comes out of the session's filter graph */
+    AVFilterContext buffersink_ctx  = new AVFilterContext(null);
+    /* Graph of this output's own, where its audio needs refiltering before the encoder */
+    AudioFilterGraph filters;
+    /* Timestamp for the audio frames of this output */
+    long pts                        = 0;
+
+    Output (Target target) {
+        this.target = target;
+    }
+
+    /* The hidden name beside an output which it's written under until it's complete */
+    static Path partPath (String outfile_path) {
+        Path dest = Paths.get(outfile_path);
+
+        return dest.resolveSibling("." + dest.getFileName() + ".part");
+    }
+
+    Path partPath () {
+        return partPath(outfile_path);
+    }
+
+    /* Rename the complete output from its part name into place, atomically where the file system can */
+    void commitPart () throws IOException {
+        try {
+            Files.move(partPath(), Paths.get(outfile_path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(partPath(), Paths.get(outfile_path), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the decoded audio of DSD sources, which are slow to decode, as 24 bit FLAC at the
+ * decoder's rate, so that converting them again to other targets costs about as much as
+ * converting FLAC does. FLAC can't go above 655350 Hz, so DSD128 and up are kept at half
+ * the rate, or a quarter, resampled as any output is.
+ *
+ * Each intermediate is named after its source's path, with a file beside it holding the
+ * source's size and date as of decoding it. An intermediate whose source has changed since
+ * is deleted when it's next looked up. That file's date is also when the intermediate was
+ * last used: once the cache is bigger than --pcm-cache-size, the least recently used go,
+ * though not those used by this run.
+ *
+ * @author Kevin Witmer
+ */
+class PcmCache {
+    /* The highest rate a FLAC file can carry */
+    static final int MAX_RATE           = 655350;
+    /* Part files of intermediates left alone this long were cut off by a run which ended */
+    static final long ABANDONED_MS      = 3600 * 1000;
+
+    final Path dir;
+    final long max_bytes;
+    final long started                  = System.currentTimeMillis();
+    /* The source size and date of each intermediate being written, by its path */
+    final ConcurrentMap<String, String> pending = new ConcurrentHashMap<String, String>();
+
+    PcmCache (Path dir, long max_bytes) throws IOException {
+        this.dir = dir;
+        this.max_bytes = max_bytes;
+
+        Files.createDirectories(dir);
+        evict();
+    }
+
+    /* Whether a decoder is slow enough for its audio to be worth keeping */
+    static boolean worth (String codec_name) {
+        return codec_name.startsWith("dsd_") || codec_name.equals("dst");
+    }
+
+    /* The rate a source's audio is kept at: the decoder's, halved until FLAC can carry it */
+    static int rate (int sample_rate) {
+        int r = sample_rate;
+
+        while (r > MAX_RATE) {
+            r /= 2;
+        }
+        return r;
+    }
+
+    /* Where a source's intermediate goes */
+    Path path (Path source) {
+        String key = Manifest.sourceKey(source);
+
+        return dir.resolve(Manifest.hex( Manifest.sha1().digest(key.getBytes(StandardCharsets.UTF_8)) ) + ".flac");
+    }
+
+    /* The file beside an intermediate with its source's size and date */
+    static Path info (Path p) {
+        String name = p.getFileName().toString();
+
+        return p.resolveSibling( name.substring(0, name.length() - ".flac".length()) + ".src" );
+    }
+
+    static String state (Path source) throws IOException {
+        return Files.size(source) + "\t" + Files.getLastModifiedTime(source).toMillis();
+    }
+
+    /*
+     * The intermediate of a source as it is now, noting that it's been used, or null if
+     * there's none. One made from an older version of the source is deleted.
+     */
+    Path lookup (Path source) throws IOException {
+        Path p = path(source),
+             info = info(p);
+        List<String> lines;
+
+        if ( !Files.exists(p) || !Files.exists(info) ) {
+            return null;
+        }
+        lines = Files.readAllLines(info, StandardCharsets.UTF_8);
+
+        if ( lines.isEmpty() || !lines.get(0).startsWith(state(source) + "\t") ) {
+            System.err.println("Source changed since it was cached, dropping " + p);
+            Files.deleteIfExists(info);
+            Files.deleteIfExists(p);
+            return null;
+        }
+        Files.setLastModifiedTime( info, FileTime.fromMillis(System.currentTimeMillis()) );
+        return p;
+    }
+
+    /* An output writing a source's intermediate, from audio decoded at the given rate */
+    Output output (Path source, int sample_rate) throws IOException {
+        int r = rate(sample_rate);
+        Output o = new Output( new Target(Integer.toString(r), "flac", "") );
+
+        o.out_sr = r;
+        o.outfile_path = path(source).toString();
+        pending.put( o.outfile_path, state(source) + "\t" + Manifest.sourceKey(source) );
+        return o;
+    }
+
+    /*
+     * Put a finished intermediate into place, noting the state of the source it was decoded
+     * from first, then make room for it.
+     */
+    void commit (Output o) throws IOException {
+        String state = pending.remove(o.outfile_path);
+
+        Files.write( info(Paths.get(o.outfile_path)), (state + "\n").getBytes(StandardCharsets.UTF_8) );
+        o.commitPart();
+        evict();
+    }
+
+    /* Forget an intermediate which didn't get finished, deleting what there was of it */
+    void abandon (Output o) throws IOException {
+        pending.remove(o.outfile_path);
+        Files.deleteIfExists( o.partPath() );
+    }
+
+    /*
+     * Delete the least recently used intermediates until the cache is within its size,
+     * along with any left unfinished, or without their source's details, by a run which
+     * ended. Those used by this run are kept even where the cache is still too big.
+     */
+    synchronized void evict () throws IOException {
+        List<Path> entries = new ArrayList<Path>();
+        final Map<Path, Long> used = new HashMap<Path, Long>();
+        long total = 0;
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                boolean abandoned = System.currentTimeMillis() - Files.getLastModifiedTime(p).toMillis() > ABANDONED_MS;
+
+                /* Other processes may be writing theirs, so only those left a while are cleared away */
+                if ( name.endsWith(".part") ) {
+                    if (abandoned) {
+                        Files.deleteIfExists(p);
+                    }
+                    continue;
+                }
+                if ( name.endsWith(".src") ) {
+                    if ( abandoned && !Files.exists(p.resolveSibling( name.replaceAll("\\.src$", ".flac") )) ) {
+                        Files.deleteIfExists(p);
+                    }
+                    continue;
+                }
+                if ( !name.endsWith(".flac") ) {
+                    continue;
+                }
+                if ( !Files.exists(info(p)) ) {
+                    if (abandoned) {
+                        Files.deleteIfExists(p);
+                    }
+                    continue;
+                }
+                entries.add(p);
+                used.put( p, Files.getLastModifiedTime(info(p)).toMillis() );
+                total += Files.size(p);
+            }
+        }
+        Collections.sort( entries, (a, b) -> Long.compare(used.get(a), used.get(b)) );
+
+        for (Path p : entries) {
+            if (total <= max_bytes) {
+                break;
+            }
+            if (used.get(p) >= started) {
+                System.err.println(String.format(
+                    "The PCM cache holds %.1f GB used by this run, over its size of %.1f GB", total / 1e9, max_bytes / 1e9
+                ));
+                break;
+            }
+            total -= Files.size(p);
+            Files.deleteIfExists( info(p) );
+            Files.deleteIfExists(p);
+        }
+    }
+}
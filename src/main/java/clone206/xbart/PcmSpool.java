@@ -0,0 +1,219 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * Holds an output's resampled audio, as interleaved floats, until the whole input has been
+ * measured and its gain is known, so that the decoding and resampling are done only once.
+ * The audio is kept in native chunks from av_malloc(), off the Java heap, up to --spool-memory
+ * across all of the spools of a run; beyond that, it goes to a temporary file, through one
+ * chunk reused for every write and read.
+ *
+ * @author Kevin Witmer
+ */
+class PcmSpool {
+    static final int CHUNK              = 4 << 20;
+    /* Samples per channel handed back at a time on replay */
+    static final int REPLAY_SAMPLES     = 8192;
+    /* Bytes in memory across every spool */
+    static final AtomicLong resident    = new AtomicLong();
+
+    final TranscodeSession session;
+    final Output output;
+    final int channels;
+    final int frame_bytes;
+    /* Bytes per chunk: a whole number of frames */
+    final int chunk_bytes;
+    final LoudnessMeter meter;
+    final List<BytePointer> chunks      = new ArrayList<BytePointer>();
+    /* The chunk being filled, and how far */
+    ByteBuffer current;
+    /* Where chunks go once memory is used up */
+    Path spill_path;
+    FileChannel spill;
+    long bytes                          = 0;
+
+    PcmSpool (TranscodeSession session, Output o) {
+        this.session = session;
+        this.output = o;
+        this.channels = o.enc_ctx.channels();
+        this.frame_bytes = 4 * channels;
+        this.chunk_bytes = CHUNK / frame_bytes * frame_bytes;
+        this.meter = new LoudnessMeter(channels, o.out_sr);
+    }
+
+    /* Measure and keep a frame of packed float audio */
+    void write (AVFrame frame) {
+        ByteBuffer src = frame.data(0).capacity( (long) frame.nb_samples() * frame_bytes ).asByteBuffer();
+
+        meter.process( src.duplicate().order( ByteOrder.nativeOrder() ).asFloatBuffer(), frame.nb_samples() );
+
+        try {
+            while ( src.hasRemaining() ) {
+                if (current == null || !current.hasRemaining()) {
+                    nextChunk();
+                }
+                ByteBuffer part = src.duplicate();
+
+                part.limit( part.position() + Math.min(src.remaining(), current.remaining()) );
+                current.put(part);
+                src.position( part.position() );
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Couldn't spool the audio of " + output.outfile_path + ": " + e.getMessage(), e);
+        }
+        bytes += (long) frame.nb_samples() * frame_bytes;
+    }
+
+    /*
+     * Start a new chunk in memory if there's room, or else write the full one out to the
+     * file. Every spool gets at least one chunk, which is the one reused once it spills.
+     */
+    void nextChunk () throws IOException {
+        if ( spill == null && (chunks.isEmpty() || resident.get() + chunk_bytes <= spool_memory) ) {
+            BytePointer p = new BytePointer( av_malloc(chunk_bytes) );
+
+            if ( p.isNull() ) {
+                throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+            }
+            resident.addAndGet(chunk_bytes);
+            chunks.add( session.scope.own(p, c -> free(c)) );
+            current = p.capacity(chunk_bytes).asByteBuffer();
+            return;
+        }
+        if (spill == null) {
+            spill_path = Files.createTempFile("xbart-spool", ".pcm");
+            spill = FileChannel.open(
+                spill_path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE
+            );
+            session.log("Spooling the rest of " + output.outfile_path + " to " + spill_path);
+
+            /* The last chunk is the one reused for the file */
+            current = chunks.get(chunks.size() - 1).capacity(chunk_bytes).asByteBuffer();
+            current.position(chunk_bytes);
+        }
+        current.flip();
+
+        while ( current.hasRemaining() ) {
+            spill.write(current);
+        }
+        current.clear();
+    }
+
+    /* Free a chunk, taking it off the count of spooled memory */
+    static void free (BytePointer p) {
+        av_free(p);
+        resident.addAndGet(-p.capacity());
+        p.setNull();
+    }
+
+    /*
+     * Hand the audio back in order, a frame at a time, in a frame of packed floats which is
+     * unreferenced after each call. Chunks in memory are freed as soon as they're done with.
+     */
+    void replay (AVFrame frame, Consumer<AVFrame> consumer) throws IOException {
+        long pts = 0, left = bytes;
+        int in_memory = spill != null ? chunks.size() - 1 : chunks.size();
+
+        for (int i = 0; i < in_memory; i++) {
+            ByteBuffer b = chunks.get(i).capacity(chunk_bytes).asByteBuffer();
+
+            b.limit( (int) Math.min(chunk_bytes, left) );
+            left -= b.limit();
+            pts = replayChunk(b, pts, frame, consumer);
+            free( chunks.get(i) );
+        }
+
+        /* Then the file, with what's in the reused chunk written out after the rest */
+        if (spill != null) {
+            BytePointer chunk = chunks.get(in_memory);
+
+            current.flip();
+
+            while ( current.hasRemaining() ) {
+                spill.write(current);
+            }
+            spill.position(0);
+
+            while (true) {
+                ByteBuffer b = chunk.capacity(chunk_bytes).asByteBuffer();
+                int n;
+
+                do {
+                    n = spill.read(b);
+                } while ( n > 0 && b.hasRemaining() );
+
+                if (b.position() == 0) {
+                    break;
+                }
+                b.flip();
+                pts = replayChunk(b, pts, frame, consumer);
+            }
+        }
+        close();
+    }
+
+    /* Hand back a buffer of whole frames, returning the pts after them */
+    long replayChunk (ByteBuffer b, long pts, AVFrame frame, Consumer<AVFrame> consumer) {
+        while ( b.hasRemaining() ) {
+            int n = Math.min(REPLAY_SAMPLES, b.remaining() / frame_bytes);
+            ByteBuffer part = b.duplicate();
+
+            part.limit( part.position() + n * frame_bytes );
+            frame.format(AV_SAMPLE_FMT_FLT);
+            frame.channels(channels);
+            frame.channel_layout( output.enc_ctx.channel_layout() );
+            frame.sample_rate(output.out_sr);
+            frame.nb_samples(n);
+            check( av_frame_get_buffer(frame, 0) );
+            frame.data(0).capacity( (long) n * frame_bytes ).asByteBuffer().put(part);
+            frame.pts(pts);
+            b.position( part.position() );
+            pts += n;
+
+            try {
+                consumer.accept(frame);
+            }
+            finally {
+                av_frame_unref(frame);
+            }
+        }
+        return pts;
+    }
+
+    /* Delete the file, if there was one. The chunks go with the session's scope. */
+    void close () throws IOException {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+    }
+}
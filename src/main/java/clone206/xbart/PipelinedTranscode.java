@@ -0,0 +1,325 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+import static clone206.xbart.Xbart.*;
+import static clone206.xbart.TranscodeStats.*;
+
+/**
+ * Transcodes a session's file in three stages running on their own threads: demux and
+ * decode, filter (resample/volume), and encode and mux, with an encoder thread per output.
+ * The stages hand ref-counted frames to each other through bounded queues, so a stage that
+ * gets ahead blocks until the next one catches up, and each context is only ever touched
+ * by the one thread that owns it.
+ *
+ * @author Kevin Witmer
+ */
+class PipelinedTranscode {
+    /* Marks the end of the stream in a queue */
+    static final AVFrame END = new AVFrame(null);
+
+    final TranscodeSession session;
+    final BlockingQueue<AVFrame> decoded;
+    /* One queue of filtered frames per output */
+    final List<BlockingQueue<AVFrame>> filtered = new ArrayList<BlockingQueue<AVFrame>>();
+    /* Frames which have been handed on and used, ready to carry another reference */
+    final Queue<AVFrame> spare = new ConcurrentLinkedQueue<AVFrame>();
+    /* The first failure in any of the stages */
+    volatile Throwable failure;
+
+    /* The threads a pipeline needs, all running at once: decode, filter, and an encoder per output */
+    static int threads (int outputs) {
+        return outputs + 2;
+    }
+
+    PipelinedTranscode (TranscodeSession session) {
+        this.session = session;
+        this.decoded = new ArrayBlockingQueue<AVFrame>(queue_depth);
+
+        for (int i = 0; i < session.outputs.size(); i++) {
+            filtered.add( new ArrayBlockingQueue<AVFrame>(queue_depth) );
+        }
+    }
+
+    /*
+     * Run the decode and filter stages and the encoders of any further outputs in the
+     * background, and encode the first output on the calling thread
+     */
+    void run (AVFrame filt_frame, AVPacket output_packet) {
+        final Thread encoder = Thread.currentThread();
+        final List<Output> outputs = session.outputs;
+        ExecutorService pool = Executors.newFixedThreadPool( threads( outputs.size() ) - 1 );
+
+        session.log("Transcoding (pipelined, queue depth " + queue_depth + ")...");
+
+        try {
+            pool.execute( stage(encoder, () -> decodeStage()) );
+            pool.execute( stage(encoder, () -> filterStage()) );
+
+            for (int i = 1; i < outputs.size(); i++) {
+                final int o = i;
+
+                pool.execute( stage(encoder, () -> encodeStage(o, null)) );
+            }
+            encodeStage(0, output_packet);
+
+            /* Wait for the other encoders to finish */
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            /* One of the other stages failed */
+        }
+        finally {
+            pool.shutdownNow();
+
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {
+                /* Already stopping */
+            }
+            /* Don't let the interrupt leak into the worker's next job */
+            Thread.interrupted();
+            drain(decoded);
+
+            for (BlockingQueue<AVFrame> queue : filtered) {
+                drain(queue);
+            }
+            for (AVFrame frame : spare) {
+                av_frame_free(frame);
+            }
+        }
+
+        if (failure != null) {
+            throw new RuntimeException(failure.getMessage(), failure);
+        }
+    }
+
+    /* Encode and write the filtered frames of one output, allocating a packet if not given one */
+    void encodeStage (int o, AVPacket output_packet) throws InterruptedException {
+        AVPacket packet = output_packet != null ? output_packet : av_packet_alloc();
+        Output output   = session.outputs.get(o);
+
+        try {
+            while (true) {
+                AVFrame frame = filtered.get(o).take();
+
+                if (frame == END) {
+                    break;
+                }
+                try {
+                    session.encodeFrame(output, frame, packet);
+                }
+                finally {
+                    recycle(frame);
+                }
+            }
+        }
+        finally {
+            if (packet != output_packet) {
+                av_packet_free(packet);
+            }
+        }
+    }
+
+    interface Stage {
+        void run () throws InterruptedException;
+    }
+
+    /* Wrap a stage so that a failure stops the whole pipeline */
+    Runnable stage (final Thread encoder, final Stage s) {
+        return () -> {
+            try {
+                s.run();
+            }
+            catch (InterruptedException e) {
+                /* Stopped because another stage failed */
+            }
+            catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+                encoder.interrupt();
+            }
+        };
+    }
+
+    /* Read and decode all of the packets, queueing the decoded frames */
+    void decodeStage () throws InterruptedException {
+        AVPacket input_packet   = av_packet_alloc();
+        AVFrame frame           = av_frame_alloc();
+        int ret;
+
+        try {
+            while ( (ret = session.readPacket(input_packet)) >= 0 ) {
+                try {
+                    if (input_packet.stream_index() == session.audio_stream_index) {
+                        decodePacket(input_packet, frame);
+                    }
+                }
+                finally {
+                    av_packet_unref(input_packet);
+                }
+            }
+
+            /* Report read errors other than reaching the end of the file */
+            if (ret != AVERROR_EOF) {
+                throw new RuntimeException("Error occurred: " + my_av_err2str(ret));
+            }
+
+            /* Flush the decoder */
+            decodePacket(null, frame);
+            decoded.put(END);
+        }
+        finally {
+            av_packet_free(input_packet);
+            av_frame_free(frame);
+        }
+    }
+
+    void decodePacket (AVPacket packet, AVFrame frame) throws InterruptedException {
+        long t = session.clock();
+        int ret = avcodec_send_packet(session.dec_ctx, packet);
+
+        session.lap(DECODE, t);
+
+        if (ret < 0) {
+            throw new RuntimeException("Error while sending a packet to the decoder: " + my_av_err2str(ret));
+        }
+
+        while ( (ret = receiveFrame(frame)) >= 0 ) {
+            if (session.stats != null) {
+                session.stats.count(FRAMES_DECODED, 1);
+                session.stats.count(SAMPLES_DECODED, frame.nb_samples());
+            }
+            queue(decoded, frame);
+        }
+        if (ret != AvError.EAGAIN && ret != AVERROR_EOF) {
+            throw new RuntimeException("Error while receiving frame from the decoder");
+        }
+    }
+
+    int receiveFrame (AVFrame frame) {
+        long t = session.clock();
+        int ret = avcodec_receive_frame(session.dec_ctx, frame);
+
+        session.lap(DECODE, t);
+        return ret;
+    }
+
+    /* Push the decoded frames through the filtergraph, queueing the filtered ones */
+    void filterStage () throws InterruptedException {
+        AVFrame filt_frame = av_frame_alloc();
+
+        try {
+            while (true) {
+                AVFrame frame = decoded.take();
+                long t = session.clock();
+
+                try {
+                    /* A null frame flushes the filters at the end of the stream */
+                    if (av_buffersrc_add_frame_flags(session.filters.src, frame == END ? null : frame, 0) < 0) {
+                        throw new RuntimeException("Error while feeding the audio filtergraph");
+                    }
+                    session.lap(FILTER, t);
+                }
+                finally {
+                    if (frame != END) {
+                        recycle(frame);
+                    }
+                }
+
+                for (int i = 0; i < filtered.size(); i++) {
+                    int ret;
+
+                    while ( (ret = sinkFrame(i, filt_frame)) >= 0 ) {
+                        if (session.stats != null) {
+                            session.stats.count(FRAMES_FILTERED, 1);
+                            session.stats.count(SAMPLES_FILTERED, filt_frame.nb_samples());
+                        }
+                        queue(filtered.get(i), filt_frame);
+                    }
+                    if (ret != AvError.EAGAIN && ret != AVERROR_EOF) {
+                        throw new RuntimeException("Couldn't get frame from filtergraph");
+                    }
+                }
+
+                if (frame == END) {
+                    for (BlockingQueue<AVFrame> queue : filtered) {
+                        queue.put(END);
+                    }
+                    break;
+                }
+            }
+        }
+        finally {
+            av_frame_free(filt_frame);
+        }
+    }
+
+    int sinkFrame (int i, AVFrame filt_frame) {
+        long t = session.clock();
+        int ret = av_buffersink_get_frame(session.filters.sinks[i], filt_frame);
+
+        session.lap(FILTER, t);
+        return ret;
+    }
+
+    /* Hand a new reference to the frame's data to the next stage, and release ours */
+    void queue (BlockingQueue<AVFrame> queue, AVFrame frame) throws InterruptedException {
+        AVFrame ref = spare.poll();
+
+        if (ref == null && (ref = av_frame_alloc()).isNull()) {
+            throw new RuntimeException("Could not allocate frame");
+        }
+        av_frame_move_ref(ref, frame);
+
+        try {
+            queue.put(ref);
+        }
+        catch (InterruptedException e) {
+            recycle(ref);
+            throw e;
+        }
+    }
+
+    /* Release a queued frame's data, keeping the frame itself for reuse */
+    void recycle (AVFrame frame) {
+        av_frame_unref(frame);
+        spare.add(frame);
+    }
+
+    /* Release any frames left behind in a queue by a stage that stopped early */
+    void drain (BlockingQueue<AVFrame> queue) {
+        AVFrame frame;
+
+        while ( (frame = queue.poll()) != null ) {
+            if (frame != END) {
+                recycle(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Machine readable report of a run, written to the output directory as JSON and CSV:
+ * one record per file with its outcome, the stage timings and counters, and the realtime
+ * factor, along with totals for the run.
+ *
+ * @author Kevin Witmer
+ */
+class RunReport {
+    final Date started = new Date();
+    final long start_ns = System.nanoTime();
+
+    /* Write the report files, returning the path of the JSON one */
+    Path write (Path dir, int found, List<Job> planned, Scheduler scheduler) throws IOException {
+        String name = "xbart-report-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(started);
+        Path json = dir.resolve(name + ".json");
+
+        Files.write( json, json(found, planned, scheduler).getBytes(StandardCharsets.UTF_8) );
+        Files.write( dir.resolve(name + ".csv"), csv(planned, scheduler).getBytes(StandardCharsets.UTF_8) );
+        return json;
+    }
+
+    /* What became of a planned file */
+    static String status (Job job, Scheduler scheduler) {
+        if ( scheduler.failures.containsKey(job.infile) ) {
+            return "failed";
+        }
+        return job.active().isEmpty() ? "skipped" : "converted";
+    }
+
+    /* Files which failed to probe, and so have no job */
+    static List<Path> unplanned (List<Job> planned, Scheduler scheduler) {
+        Set<Path> seen = new HashSet<Path>();
+        List<Path> failed = new ArrayList<Path>();
+
+        for (Job job : planned) {
+            seen.add(job.infile);
+        }
+        synchronized (scheduler.failures) {
+            for (Path p : scheduler.failures.keySet()) {
+                if ( !seen.contains(p) ) {
+                    failed.add(p);
+                }
+            }
+        }
+        return failed;
+    }
+
+    String json (int found, List<Job> planned, Scheduler scheduler) {
+        StringBuilder sb = new StringBuilder();
+        String sep = "\n";
+
+        sb.append("{\n");
+        sb.append("  \"started\": ").append( quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(started)) ).append(",\n");
+        sb.append("  \"wall_seconds\": ").append( num((System.nanoTime() - start_ns) / 1e9) ).append(",\n");
+        if ( !Double.isNaN(Xbart.timeToFirstFrame()) ) {
+            sb.append("  \"seconds_to_main\": ").append( num(Xbart.sinceLaunch(Xbart.main_ns)) ).append(",\n");
+            sb.append("  \"seconds_to_first_frame\": ").append( num(Xbart.timeToFirstFrame()) ).append(",\n");
+        }
+        sb.append("  \"files_found\": ").append(found).append(",\n");
+        sb.append("  \"converted\": ").append( scheduler.converted.get() ).append(",\n");
+        sb.append("  \"skipped\": ").append( scheduler.skipped.get() ).append(",\n");
+        sb.append("  \"failed\": ").append( scheduler.failures.size() ).append(",\n");
+
+        if (Xbart.dedup != null) {
+            sb.append("  \"deduplicated\": ").append( Xbart.dedup.linked.get() ).append(",\n");
+            sb.append("  \"dedup_seconds_saved\": ").append( num(Xbart.dedup.savedSeconds(scheduler)) ).append(",\n");
+        }
+        sb.append("  \"files\": [");
+
+        for (Job job : planned) {
+            TranscodeStats s = job.stats;
+            Throwable error = scheduler.failures.get(job.infile);
+
+            sb.append(sep).append("    {");
+            sb.append("\"file\": ").append( quote(job.infile.toString()) );
+            sb.append(", \"status\": ").append( quote(status(job, scheduler)) );
+            sb.append(", \"codec\": ").append( quote(job.codec_name) );
+            sb.append(", \"sample_rate\": ").append(job.sample_rate);
+            sb.append(", \"duration\": ").append( num(job.duration) );
+            sb.append(", \"cost\": ").append( num(job.cost) );
+            sb.append(", \"threads\": ").append(job.threads);
+
+            if (s != null) {
+                sb.append(", \"probe_ms\": ").append( num(s.probe_ns / 1e6) );
+                sb.append(", \"conv_ms\": ").append( num(s.conv_ns / 1e6) );
+                sb.append(", \"realtime\": ").append( num(s.realtime(job.duration)) );
+                sb.append(", \"stages_ms\": {");
+
+                for (int i = 0; i < TranscodeStats.STAGES.length; i++) {
+                    sb.append(i > 0 ? ", " : "").append( quote(TranscodeStats.STAGES[i]) ).append(": ")
+                        .append( num(s.stage_ns.get(i) / 1e6) );
+                }
+                sb.append("}, \"counters\": {");
+
+                for (int i = 0; i < TranscodeStats.COUNTERS.length; i++) {
+                    sb.append(i > 0 ? ", " : "").append( quote(TranscodeStats.COUNTERS[i]) ).append(": ")
+                        .append( s.counters.get(i) );
+                }
+                sb.append("}");
+            }
+            sb.append(", \"outputs\": [");
+
+            for (int i = 0; i < job.outputs.size(); i++) {
+                Output o = job.outputs.get(i);
+
+                sb.append(i > 0 ? ", " : "").append("{\"target\": ").append( quote(o.target.toString()) );
+                sb.append(", \"out_sr\": ").append(o.out_sr);
+                sb.append(", \"file\": ").append( quote(o.outfile_path) );
+                sb.append(", \"skip_reason\": ").append( quote(o.skip_reason) ).append("}");
+            }
+            sb.append("]");
+            sb.append(", \"error\": ").append( quote(error != null ? String.valueOf( error.getMessage() ) : null) );
+            sb.append("}");
+            sep = ",\n";
+        }
+        for (Path p : unplanned(planned, scheduler)) {
+            sb.append(sep).append("    {\"file\": ").append( quote(p.toString()) ).append(", \"status\": \"failed\"");
+            sb.append(", \"error\": ").append( quote(String.valueOf( scheduler.failures.get(p).getMessage() )) ).append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    String csv (List<Job> planned, Scheduler scheduler) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("file,status,codec,sample_rate,duration,cost,probe_ms,conv_ms,realtime");
+
+        for (String stage : TranscodeStats.STAGES) {
+            sb.append(",").append(stage).append("_ms");
+        }
+        for (String counter : TranscodeStats.COUNTERS) {
+            sb.append(",").append(counter);
+        }
+        sb.append(",targets,skip_reasons,error\n");
+
+        for (Job job : planned) {
+            TranscodeStats s = job.stats;
+            Throwable error = scheduler.failures.get(job.infile);
+            StringBuilder targets = new StringBuilder(), reasons = new StringBuilder();
+
+            sb.append( csvField(job.infile.toString()) ).append(",").append( status(job, scheduler) );
+            sb.append(",").append(job.codec_name).append(",").append(job.sample_rate);
+            sb.append(",").append( num(job.duration) ).append(",").append( num(job.cost) );
+
+            if (s != null) {
+                sb.append(",").append( num(s.probe_ns / 1e6) ).append(",").append( num(s.conv_ns / 1e6) );
+                sb.append(",").append( num(s.realtime(job.duration)) );
+
+                for (int i = 0; i < TranscodeStats.STAGES.length; i++) {
+                    sb.append(",").append( num(s.stage_ns.get(i) / 1e6) );
+                }
+                for (int i = 0; i < TranscodeStats.COUNTERS.length; i++) {
+                    sb.append(",").append( s.counters.get(i) );
+                }
+            }
+            else {
+                for (int i = 0; i < 3 + TranscodeStats.STAGES.length + TranscodeStats.COUNTERS.length; i++) {
+                    sb.append(",");
+                }
+            }
+
+            for (Output o : job.outputs) {
+                targets.append(targets.length() > 0 ? " " : "").append(o.target);
+
+                if (o.skip_reason != null) {
+                    reasons.append(reasons.length() > 0 ? "; " : "").append(o.target).append(": ").append(o.skip_reason);
+                }
+            }
+            sb.append(",").append( csvField(targets.toString()) ).append(",").append( csvField(reasons.toString()) );
+            sb.append(",").append( csvField(error != null ? String.valueOf( error.getMessage() ) : "") ).append("\n");
+        }
+        for (Path p : unplanned(planned, scheduler)) {
+            sb.append( csvField(p.toString()) ).append(",failed");
+
+            for (int i = 0; i < 10 + TranscodeStats.STAGES.length + TranscodeStats.COUNTERS.length; i++) {
+                sb.append(",");
+            }
+            sb.append( csvField(String.valueOf( scheduler.failures.get(p).getMessage() )) ).append("\n");
+        }
+        return sb.toString();
+    }
+
+    static String num (double d) {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    /* A JSON string, or null */
+    static String quote (String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append( String.format("\\u%04x", (int) c) );
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    /* A CSV field, quoted if need be */
+    static String csvField (String s) {
+        if ( s.matches(".*[,\"\\r\\n].*") ) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+}
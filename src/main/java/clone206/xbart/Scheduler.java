@@ -0,0 +1,338 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs a batch in two stages: every file is probed in parallel to build a plan, then the
+ * planned jobs are fed through a priority queue to a fixed set of workers, most expensive
+ * first.
+ *
+ * In a shared run, each job is claimed before it's converted. Those another process has
+ * claimed are put off, and looked at again once the queue is empty, until they've been
+ * converted or their claim has expired and this process can take them over.
+ *
+ * @author Kevin Witmer
+ */
+class Scheduler {
+    final int threads;
+    final Map<Path, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<Path, Throwable>());
+    final AtomicInteger converted       = new AtomicInteger();
+    final AtomicInteger skipped         = new AtomicInteger();
+    /* Jobs which other processes of a shared run converted, and those they're converting now */
+    final AtomicInteger elsewhere       = new AtomicInteger();
+    final List<Job> deferred            = Collections.synchronizedList(new ArrayList<Job>());
+    /* Time spent on, and estimated cost of, the jobs which encoded anything */
+    final AtomicLong encode_ns          = new AtomicLong();
+    final DoubleAdder encoded_cost      = new DoubleAdder();
+    /* The cores shared between the workers and the threads within each file */
+    final CoreBudget budget             = new CoreBudget(Xbart.cores);
+
+    Scheduler (int threads) {
+        this.threads = threads;
+    }
+
+    /* Probe all of the files concurrently, returning a job for each one that could be probed */
+    List<Job> plan (List<Path> files) throws InterruptedException {
+        List<Callable<Job>> probes = new ArrayList<Callable<Job>>();
+        List<Job> planned = new ArrayList<Job>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        for (final Path p : files) {
+            probes.add(() -> {
+                try {
+                    long t = System.nanoTime();
+                    Job job = new TranscodeSession(p).probe();
+
+                    if (Xbart.keep_stats) {
+                        job.stats = new TranscodeStats();
+                        job.stats.probe_ns = System.nanoTime() - t;
+                    }
+                    return job;
+                }
+                catch (Throwable t) {
+                    System.err.println("FAILED " + p + ": " + t.getMessage());
+                    failures.put(p, t);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Job> f : pool.invokeAll(probes)) {
+                Job job = f.get();
+
+                if (job != null) {
+                    planned.add(job);
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        Collections.sort(planned);
+        return planned;
+    }
+
+    /* Print the plan, for a dry run */
+    static void printPlan (List<Job> planned) {
+        double total_cost = 0, total_duration = 0;
+        int to_convert = 0;
+
+        System.out.println(String.format("%10s %10s %-10s %7s -> %-7s %s", "COST", "SECONDS", "CODEC", "RATE", "OUT", "FILE"));
+
+        for (Job job : planned) {
+            List<Output> active = job.active();
+
+            if ( active.isEmpty() ) {
+                continue;
+            }
+            for (Output o : active) {
+                System.out.println(String.format(
+                    "%10.1f %10.1f %-10s %7d -> %-7s %s",
+                    job.cost, job.duration, job.codec_name, job.sample_rate,
+                    o.out_sr + "." + o.target.ext, job.infile + (o.passthrough ? " (copy)" : o.dedup_from != null ? " (link)" : "")
+                ));
+            }
+            total_cost += job.cost;
+            total_duration += job.duration;
+            to_convert++;
+        }
+        for (Job job : planned) {
+            for (Output o : job.outputs) {
+                if (o.skip_reason != null) {
+                    System.out.println("SKIP " + job.infile + " -> " + o.target + " (" + o.skip_reason + ")");
+                }
+            }
+        }
+        System.out.println(String.format(
+            "%d files to convert, %d skipped, %.1f hours of audio, total cost %.1f",
+            to_convert, planned.size() - to_convert, total_duration / 3600, total_cost
+        ));
+    }
+
+    /*
+     * Convert the planned jobs on the worker pool, biggest first. Jobs linking to outputs
+     * of duplicates go once those have been made.
+     */
+    void run (List<Job> planned) throws InterruptedException {
+        List<Job> first = new ArrayList<Job>(),
+                  then  = new ArrayList<Job>();
+
+        for (Job job : planned) {
+            for (Output o : job.outputs) {
+                if (o.skip_reason != null) {
+                    System.err.println("SKIPPING " + job.infile + " -> " + o.target + ": " + o.skip_reason);
+                }
+            }
+            if (job.stats != null) {
+                JfrEvents.skipped(job);
+            }
+            if ( job.active().isEmpty() ) {
+                skipped.incrementAndGet();
+            }
+            else {
+                ( job.waitsForDuplicate() ? then : first ).add(job);
+            }
+        }
+        drain(first);
+
+        /* Duplicates link to what the first files made, so their staged outputs have to be in place by then */
+        if ( !then.isEmpty() ) {
+            finishStaged();
+        }
+        drain(then);
+        finishStaged();
+    }
+
+    /* Wait for the staged outputs; files only count as converted once theirs have reached the destination */
+    void finishStaged () throws InterruptedException {
+        if (Xbart.stager != null) {
+            for (Map.Entry<Path, Throwable> e : Xbart.stager.finish().entrySet()) {
+                if (failures.put( e.getKey(), e.getValue() ) == null) {
+                    converted.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+     * Convert some jobs on the worker pool, biggest first, returning once they're all done.
+     * Each job is given what threads the core budget can spare when it starts. In a shared
+     * run, the jobs put off are tried again every quarter of a lease.
+     */
+    void drain (List<Job> jobs) throws InterruptedException {
+        while ( !jobs.isEmpty() ) {
+            final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>( jobs.size() );
+            final AtomicInteger running = new AtomicInteger();
+            ExecutorService pool;
+
+            queue.addAll(jobs);
+            pool = Executors.newFixedThreadPool(threads);
+
+            try {
+                for (int i = 0; i < threads; i++) {
+                    pool.execute(() -> {
+                        Job job;
+
+                        while ( (job = queue.poll()) != null ) {
+                            if ( Xbart.shared != null && !claim(job) ) {
+                                continue;
+                            }
+                            int n = budget.claim( job.max_threads, queue.size(), threads - running.incrementAndGet() );
+
+                            try {
+                                runJob(job, n);
+                            }
+                            finally {
+                                budget.release(n);
+                                running.decrementAndGet();
+
+                                if (Xbart.shared != null) {
+                                    claimed(job);
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+            finally {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+
+            synchronized (deferred) {
+                jobs = new ArrayList<Job>(deferred);
+                deferred.clear();
+            }
+            if ( !jobs.isEmpty() ) {
+                Thread.sleep(Xbart.shared.lease_ms / 4);
+            }
+        }
+    }
+
+    /* Claim a job in a shared run, returning whether it's this process's to convert */
+    boolean claim (Job job) {
+        try {
+            switch ( Xbart.shared.claim(job) ) {
+                case CLAIMED:
+                    return true;
+                case DONE:
+                    elsewhere.incrementAndGet();
+                    return false;
+                default:
+                    deferred.add(job);
+                    return false;
+            }
+        }
+        catch (IOException e) {
+            System.err.println("FAILED " + job.infile + ": couldn't claim it: " + e.getMessage());
+            failures.put(job.infile, e);
+            return false;
+        }
+    }
+
+    /*
+     * Let the other processes of a shared run know a claimed job is done with, once its
+     * staged outputs, if any, have reached the destination
+     */
+    void claimed (final Job job) {
+        if (Xbart.stager != null) {
+            Xbart.stager.afterWrites( job.infile, written -> finishClaim(job, written) );
+        }
+        else {
+            finishClaim(job, true);
+        }
+    }
+
+    void finishClaim (Job job, boolean written) {
+        try {
+            Xbart.shared.finish( job, written && !failures.containsKey(job.infile) );
+        }
+        catch (IOException e) {
+            System.err.println("Couldn't release the claim on " + job.infile + ": " + e.getMessage());
+        }
+    }
+
+    void runJob (Job job, int threads) {
+        TranscodeSession session = new TranscodeSession(job.infile);
+        Object event = job.stats != null ? JfrEvents.begin() : null;
+        Throwable error = null;
+        long t = System.nanoTime();
+
+        session.stats = job.stats;
+        session.threads = threads;
+        job.threads = threads;
+
+        try {
+            session.conv(job);
+            converted.incrementAndGet();
+
+            if ( !job.encoded().isEmpty() ) {
+                encode_ns.addAndGet( System.nanoTime() - t );
+                encoded_cost.add(job.cost);
+            }
+        }
+        catch (SharedRun.LostClaim e) {
+            System.err.println(e.getMessage() + ", discarding this worker's outputs");
+            elsewhere.incrementAndGet();
+        }
+        catch (Throwable e) {
+            System.err.println("FAILED " + job.infile + ": " + e.getMessage());
+            failures.put(job.infile, e);
+            error = e;
+        }
+        finally {
+            if (job.stats != null) {
+                job.stats.conv_ns = System.nanoTime() - t;
+                JfrEvents.converted(event, job, error);
+            }
+        }
+    }
+
+    void printSummary (int found) {
+        System.err.println(
+            "Done. " + found + " files found, " + converted.get() + " converted, "
+            + skipped.get() + " skipped, " + failures.size() + " failed."
+            + (Xbart.shared != null ? " " + elsewhere.get() + " done by other processes." : "")
+        );
+        System.err.println("Native memory: " + NativeScope.usage());
+
+        if ( !Double.isNaN(Xbart.timeToFirstFrame()) ) {
+            System.err.println(String.format(
+                "Startup: %.2f s to main(), %.2f s to the first audio written",
+                Xbart.sinceLaunch(Xbart.main_ns), Xbart.timeToFirstFrame()
+            ));
+        }
+
+        if (Xbart.dedup != null) {
+            Xbart.dedup.printSummary(this);
+        }
+        for (Map.Entry<Path, Throwable> e : failures.entrySet()) {
+            System.err.println("  " + e.getKey() + ": " + e.getValue());
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+import static clone206.xbart.Xbart.*;
+import static clone206.xbart.TranscodeStats.*;
+
+/**
+ * Transcodes one long file by splitting it into time segments which are decoded and
+ * resampled concurrently, each by its own decoder and filter graph.
+ *
+ * Each segment worker seeks to a little before its segment so that the decoder and resampler
+ * have warmed up by the time it starts, then spools the resampled audio for exactly its
+ * segment to a temp file per output. Each output's encoder then encodes its spools in order,
+ * so the output is one continuous stream, the same as a sequential transcode would produce.
+ *
+ * Boundaries are sample exact: segments are cut by output sample position, and each worker
+ * starts feeding its resamplers at an input sample which lines up with every resampler's
+ * output grid as seen from the start of the file.
+ *
+ * The same goes for carrying on from the checkpoints of an interrupted conversion: the rest
+ * of the file is one segment starting at the checkpoint, streamed to the encoders as it's
+ * resampled rather than spooled.
+ *
+ * @author Kevin Witmer
+ */
+class SegmentedTranscode {
+    /* Seconds of input decoded ahead of each segment to warm up the decoder and resampler */
+    static final double OVERLAP_SEC     = 1.0;
+    /* Segments shorter than this aren't worth splitting off */
+    static final double MIN_SEGMENT_SEC = 60;
+    /* Samples per frame when feeding the spools to the encoder */
+    static final int CHUNK_SAMPLES      = 4096;
+
+    final TranscodeSession session;
+    final Job job;
+    final List<Output> outputs;
+    final int count;
+    /* Per output, the output sample position at which each segment starts, with an open-ended last one */
+    final long[][] bounds;
+    /* Per output, the encoder's sample format, packed, which the spools hold */
+    final int[] spool_fmt;
+    final int[] bytes_per_sample;
+    /* Per segment, a spool for each output */
+    final List<Path[]> spools = new ArrayList<Path[]>();
+    /* Whether the one segment goes straight to the encoders, and the frame and packet they use */
+    final boolean streaming;
+    AVFrame encode_frame;
+    AVPacket encode_packet;
+
+    SegmentedTranscode (TranscodeSession session, Job job) {
+        this(session, job, false);
+    }
+
+    /* With resume, transcode the rest of the file from where the outputs' checkpoints left off */
+    SegmentedTranscode (TranscodeSession session, Job job, boolean resume) {
+        this.session = session;
+        this.job = job;
+        this.outputs = session.outputs;
+        this.streaming = resume;
+        this.count = resume ? 1 : count(job);
+        this.bounds = new long[outputs.size()][count + 1];
+        this.spool_fmt = new int[outputs.size()];
+        this.bytes_per_sample = new int[outputs.size()];
+
+        for (int o = 0; o < outputs.size(); o++) {
+            AVCodecContext enc_ctx  = outputs.get(o).enc_ctx;
+            long total              = (long) (job.duration * outputs.get(o).out_sr);
+
+            spool_fmt[o] = av_get_packed_sample_fmt( enc_ctx.sample_fmt() );
+            bytes_per_sample[o] = av_get_bytes_per_sample(spool_fmt[o]) * enc_ctx.channels();
+
+            for (int i = 0; i < count; i++) {
+                bounds[o][i] = resume ? outputs.get(o).resume.samples : total * i / count;
+            }
+            bounds[o][count] = Long.MAX_VALUE;
+        }
+    }
+
+    /* Only split up files which are long enough, aren't streamed, and whose decoders can seek sample accurately */
+    static boolean eligible (TranscodeSession session, Job job) {
+        return segments > 1 && session.source == null && job.duration >= 2 * MIN_SEGMENT_SEC && seekable( job.decoder() );
+    }
+
+    /* Whether to split up a file, which only pays with a thread to spare for the segments beside the encoders' */
+    static boolean worth (TranscodeSession session, Job job) {
+        return session.threads > 1 && eligible(session, job);
+    }
+
+    /* How many segments an eligible file is split into */
+    static int count (Job job) {
+        return Math.min( segments, (int) (job.duration / MIN_SEGMENT_SEC) );
+    }
+
+    /* The threads a split file can keep busy: one per segment, and the one encoding them */
+    static int threads (Job job) {
+        return count(job) + 1;
+    }
+
+    /* Whether a decoder can start at any sample after a seek and give the same audio */
+    static boolean seekable (String codec) {
+        return codec.startsWith("pcm_") || codec.startsWith("dsd_") || codec.equals("flac") || codec.equals("alac");
+    }
+
+    /*
+     * Transcode the segments concurrently, on the session's threads but the one encoding them,
+     * in order, with the outputs' encoders. Segments wait their turn for a thread, as each
+     * spools to its own files.
+     */
+    void run (AVFrame filt_frame, AVPacket output_packet) throws IOException {
+        ExecutorService pool;
+        int at_once;
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+
+        if (streaming) {
+            resume(filt_frame, output_packet);
+            return;
+        }
+        at_once = Math.max( 1, Math.min(count, session.threads - 1) );
+        pool = Executors.newFixedThreadPool(at_once);
+        session.log("Transcoding in " + count + " segments, " + at_once + " at a time...");
+
+        try {
+            for (int i = 0; i < count; i++) {
+                final int seg = i;
+                Path[] seg_spools = new Path[outputs.size()];
+
+                for (int o = 0; o < outputs.size(); o++) {
+                    seg_spools[o] = Files.createTempFile("xbart-seg" + i + "-", ".pcm");
+                }
+                spools.add(seg_spools);
+                workers.add( pool.submit(() -> {
+                    segment(seg);
+                    return null;
+                }) );
+            }
+
+            initRebuffering();
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    workers.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    throw new RuntimeException("Segment " + i + " failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int o = 0; o < outputs.size(); o++) {
+                    encodeSpool(o, spools.get(i)[o], filt_frame, output_packet);
+                    Files.delete( spools.get(i)[o] );
+                }
+                session.checkpoint(job);
+            }
+            flushRebuffering(filt_frame, output_packet);
+        }
+        finally {
+            pool.shutdownNow();
+
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Path[] seg_spools : spools) {
+                for (Path p : seg_spools) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    /* Transcode the one segment from the checkpoints to the end, on this thread, encoding as it goes */
+    void resume (AVFrame filt_frame, AVPacket output_packet) throws IOException {
+        encode_frame = filt_frame;
+        encode_packet = output_packet;
+        initRebuffering();
+        session.log("Transcoding from the checkpoint...");
+        segment(0);
+        flushRebuffering(filt_frame, output_packet);
+    }
+
+    /* The segments give packed samples at the output rate, so just rebuffer them to frame size */
+    void initRebuffering () {
+        for (Output o : outputs) {
+            o.filters = new AudioFilterGraph(
+                session, av_make_q(1, o.out_sr), o.out_sr, av_get_packed_sample_fmt( o.enc_ctx.sample_fmt() ),
+                o.enc_ctx.channel_layout(), null, Collections.singletonList(o),
+                Collections.singletonList("anull"), false
+            );
+        }
+    }
+
+    /* Flush whatever the rebuffering filters are holding on to */
+    void flushRebuffering (AVFrame filt_frame, AVPacket output_packet) {
+        for (Output o : outputs) {
+            session.filterFrame(o.filters, Collections.singletonList(o), null, filt_frame, output_packet);
+        }
+    }
+
+    /* Feed a segment's spooled audio for one output through its filters to its encoder */
+    void encodeSpool (int o, Path spool, AVFrame filt_frame, AVPacket output_packet) throws IOException {
+        Output output   = outputs.get(o);
+        List<Output> outs = Collections.singletonList(output);
+        AVFrame chunk   = av_frame_alloc();
+
+        if (chunk.isNull()) {
+            throw new RuntimeException("Could not allocate frame");
+        }
+
+        try (FileChannel in = FileChannel.open(spool, StandardOpenOption.READ)) {
+            chunk.format(spool_fmt[o]);
+            chunk.channel_layout( output.enc_ctx.channel_layout() );
+            chunk.sample_rate(output.out_sr);
+            chunk.nb_samples(CHUNK_SAMPLES);
+            check( av_frame_get_buffer(chunk, 0) );
+
+            while (true) {
+                /* The filters may still hold a reference to the last chunk's buffer */
+                chunk.nb_samples(CHUNK_SAMPLES);
+                check( av_frame_make_writable(chunk) );
+
+                ByteBuffer buf = chunk.data(0).capacity(CHUNK_SAMPLES * bytes_per_sample[o]).asByteBuffer();
+
+                while ( buf.hasRemaining() && in.read(buf) > 0 );
+
+                if (buf.position() == 0) {
+                    break;
+                }
+                chunk.nb_samples(buf.position() / bytes_per_sample[o]);
+                chunk.pts(output.pts);
+                session.filterFrame(output.filters, outs, chunk, filt_frame, output_packet);
+            }
+        }
+        finally {
+            av_frame_free(chunk);
+        }
+    }
+
+    /* Decode and resample one segment into its spools */
+    void segment (int i) throws IOException {
+        TranscodeSession seg    = new TranscodeSession(session.infile);
+        AVPacket packet         = seg.scope.own( av_packet_alloc(), p -> av_packet_free(p) );
+        AVFrame frame           = seg.scope.own( av_frame_alloc(), f -> av_frame_free(f) ),
+                filt_frame      = seg.scope.own( av_frame_alloc(), f -> av_frame_free(f) );
+        FileChannel[] out       = new FileChannel[outputs.size()];
+
+        seg.outputs = outputs;
+        seg.stats = session.stats;
+
+        try {
+            if (packet.isNull() || frame.isNull() || filt_frame.isNull()) {
+                throw new RuntimeException("Could not allocate frame");
+            }
+
+            for (int o = 0; o < outputs.size() && !streaming; o++) {
+                out[o] = FileChannel.open(spools.get(i)[o], StandardOpenOption.WRITE);
+            }
+            seg.openInputFile( session.inputPath(job) );
+
+            AVStream stream     = seg.inp_fmt_ctx.streams(seg.audio_stream_index);
+            int in_sr           = seg.dec_ctx.sample_rate();
+            AVRational in_tb    = av_make_q(1, in_sr);
+            long origin         = stream.start_time() == AV_NOPTS_VALUE
+                                  ? 0 : av_rescale_q(stream.start_time(), stream.time_base(), in_tb);
+            long[] out_origin   = new long[outputs.size()];
+            boolean[] done      = new boolean[outputs.size()];
+            /* Input samples per repetition of all of the resamplers' output grids */
+            long period         = 1;
+            long start          = Long.MAX_VALUE;
+            long next_pts       = origin;
+            boolean seeked;
+            String common       = null;
+            int ret;
+
+            for (int o = 0; o < outputs.size(); o++) {
+                int out_sr  = outputs.get(o).out_sr;
+                long p      = in_sr / av_gcd(in_sr, out_sr);
+
+                period = period / av_gcd(period, p) * p;
+                out_origin[o] = av_rescale(origin, out_sr, in_sr);
+                start = Math.min(start, av_rescale(bounds[o][i], in_sr, out_sr));
+            }
+
+            if (seg.dec_ctx.channel_layout() == 0) {
+                seg.dec_ctx.channel_layout( av_get_default_channel_layout(seg.dec_ctx.channels()) );
+            }
+
+            /* Start decoding a little before the segment, on a sample lining up with the output grids */
+            seeked = start > 0;
+
+            if (seeked) {
+                start -= (long) (OVERLAP_SEC * in_sr);
+                start = origin + Math.max(0, start - start % period);
+
+                check( av_seek_frame(
+                    seg.inp_fmt_ctx, seg.audio_stream_index, av_rescale_q(start, in_tb, stream.time_base()),
+                    AVSEEK_FLAG_BACKWARD
+                ) );
+                common = "atrim=start_pts=" + start;
+            }
+
+            seg.filters = new AudioFilterGraph(
+                seg, in_tb, in_sr, seg.dec_ctx.sample_fmt(), seg.dec_ctx.channel_layout(), common,
+                outputs, session.resampleChains(), true
+            );
+
+            while ( !allDone(done) && (ret = seg.readPacket(packet)) >= 0 ) {
+                try {
+                    if (Thread.interrupted()) {
+                        throw new RuntimeException("Interrupted");
+                    }
+                    if (packet.stream_index() != seg.audio_stream_index) {
+                        continue;
+                    }
+                    long t = seg.clock();
+
+                    check( avcodec_send_packet(seg.dec_ctx, packet) );
+                    seg.lap(DECODE, t);
+
+                    while ( (ret = receiveFrame(seg, frame)) >= 0 ) {
+                        /* Timestamps in input samples, for the trim. Only the first frame after a seek needs its own. */
+                        if (seeked) {
+                            next_pts = firstPts(frame, stream, in_tb, origin);
+                            seeked = false;
+                        }
+                        frame.pts(next_pts);
+                        next_pts += frame.nb_samples();
+
+                        try {
+                            spoolFrame(seg, frame, filt_frame, out, i, out_origin, done);
+                        }
+                        finally {
+                            av_frame_unref(frame);
+                        }
+                    }
+                    if (ret != AvError.EAGAIN && ret != AVERROR_EOF) {
+                        throw new RuntimeException("Error while receiving frame from the decoder");
+                    }
+                    if (streaming) {
+                        session.checkpoint(job);
+                    }
+                }
+                finally {
+                    av_packet_unref(packet);
+                }
+            }
+
+            /* The last segment runs to the end of the file, so flush everything */
+            if ( !allDone(done) ) {
+                check( avcodec_send_packet(seg.dec_ctx, null) );
+
+                while (receiveFrame(seg, frame) >= 0) {
+                    frame.pts( next_pts );
+                    next_pts += frame.nb_samples();
+
+                    try {
+                        spoolFrame(seg, frame, filt_frame, out, i, out_origin, done);
+                    }
+                    finally {
+                        av_frame_unref(frame);
+                    }
+                }
+                spoolFrame(seg, null, filt_frame, out, i, out_origin, done);
+            }
+        }
+        finally {
+            for (FileChannel c : out) {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            seg.scope.close();
+        }
+    }
+
+    /* Encode part of a resampled frame, when streaming rather than spooling */
+    void encodeRange (int o, AVFrame frame, int offset, int n) {
+        Output output   = outputs.get(o);
+        AVFrame part    = frame;
+
+        /* Only the frame the checkpoint falls in needs cutting */
+        if ( offset > 0 || n < frame.nb_samples() ) {
+            if ( (part = av_frame_alloc()).isNull() ) {
+                throw new RuntimeException("Could not allocate frame");
+            }
+        }
+
+        try {
+            if (part != frame) {
+                part.format( frame.format() );
+                part.channel_layout( frame.channel_layout() );
+                part.sample_rate( frame.sample_rate() );
+                part.nb_samples(n);
+                check( av_frame_get_buffer(part, 0) );
+                check( av_samples_copy(
+                    part.extended_data(), frame.extended_data(), 0, offset, n, frame.channels(), frame.format()
+                ) );
+            }
+            part.pts(output.pts);
+            session.filterFrame(output.filters, Collections.singletonList(output), part, encode_frame, encode_packet);
+        }
+        finally {
+            if (part != frame) {
+                av_frame_free(part);
+            }
+        }
+    }
+
+    /* Receive a decoded frame, timing and counting it */
+    static int receiveFrame (TranscodeSession seg, AVFrame frame) {
+        long t = seg.clock();
+        int ret = avcodec_receive_frame(seg.dec_ctx, frame);
+
+        if (seg.stats != null) {
+            seg.stats.lap(DECODE, t);
+
+            if (ret >= 0) {
+                seg.stats.count(FRAMES_DECODED, 1);
+                seg.stats.count(SAMPLES_DECODED, frame.nb_samples());
+            }
+        }
+        return ret;
+    }
+
+    static boolean allDone (boolean[] done) {
+        for (boolean d : done) {
+            if (!d) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Find the input sample position of the first frame decoded after a seek. Where the stream's
+     * time base is coarser than a sample (DSF, for one) the timestamp is rounded, but such
+     * demuxers cut their packets at a fixed size, so the position is snapped to a whole frame.
+     */
+    static long firstPts (AVFrame frame, AVStream stream, AVRational in_tb, long origin) {
+        AVRational tb = stream.time_base();
+        long pts;
+
+        if (frame.pts() == AV_NOPTS_VALUE) {
+            throw new RuntimeException("No timestamp on the first frame after seeking");
+        }
+        pts = av_rescale_q(frame.pts(), tb, in_tb) - origin;
+
+        if ( tb.den() % ((long) tb.num() * in_tb.den()) != 0 ) {
+            pts = (pts + frame.nb_samples() / 2) / frame.nb_samples() * frame.nb_samples();
+        }
+        return origin + pts;
+    }
+
+    /*
+     * Push a decoded frame (or null at the end) through a segment's filters, and spool the
+     * part of each output which falls within the segment. Outputs which have reached the
+     * end of the segment are marked done.
+     */
+    void spoolFrame (TranscodeSession seg, AVFrame frame, AVFrame filt_frame, FileChannel[] out,
+                     int i, long[] out_origin, boolean[] done) throws IOException {
+        int ret = 0;
+        long t = seg.clock();
+
+        if (av_buffersrc_add_frame_flags(seg.filters.src, frame, AV_BUFFERSRC_FLAG_KEEP_REF) < 0) {
+            throw new RuntimeException("Error while feeding the audio filtergraph");
+        }
+        seg.lap(FILTER, t);
+
+        for (int o = 0; o < outputs.size(); o++) {
+            long[] b = bounds[o];
+
+            while (true) {
+                t = seg.clock();
+                ret = av_buffersink_get_frame(seg.filters.sinks[o], filt_frame);
+                seg.lap(FILTER, t);
+
+                if (ret < 0) {
+                    break;
+                }
+                try {
+                    long pos    = filt_frame.pts() - out_origin[o];
+                    long from   = Math.max(b[i], pos);
+                    long to     = Math.min(b[i + 1], pos + filt_frame.nb_samples());
+
+                    if (to > from && streaming) {
+                        encodeRange(o, filt_frame, (int) (from - pos), (int) (to - from));
+                    }
+                    else if (to > from) {
+                        ByteBuffer buf = filt_frame.data(0)
+                            .position( (from - pos) * bytes_per_sample[o] )
+                            .limit( (to - pos) * bytes_per_sample[o] )
+                            .asByteBuffer();
+
+                        t = seg.clock();
+
+                        while ( buf.hasRemaining() ) {
+                            out[o].write(buf);
+                        }
+                        seg.lap(WRITE, t);
+                    }
+                    done[o] |= pos + filt_frame.nb_samples() >= b[i + 1];
+                }
+                finally {
+                    av_frame_unref(filt_frame);
+                }
+            }
+            if (ret != AvError.EAGAIN && ret != AVERROR_EOF) {
+                throw new RuntimeException("Couldn't get frame from filtergraph");
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * Lets any number of processes, on one host or on several sharing a filesystem, work
+ * through the same tree into the same output directory, each file being converted by one
+ * of them. Before converting a file, a worker claims it with a lease file, created only if
+ * there isn't one already (O_EXCL, which NFS 3 and later honour), and keeps it, and its own
+ * status file, fresh from a heartbeat. A lease which hasn't been renewed for --lease seconds
+ * belongs to a worker which has died, and is taken over by the next one to find it, so
+ * that the file is converted after all. Once a file is done, or has failed, a marker says
+ * so, for the workers which planned it too; the last worker to finish prints the outcome of
+ * every worker and clears the markers away.
+ *
+ * Leases expire by their modification times, so the hosts' clocks need to agree to well
+ * within --lease. Each lease holds a token of its own, so that a worker can tell whether the
+ * lease is still the one it created. A worker which stalls for longer than that loses its
+ * leases, finds out on its next heartbeat, and throws away what it made of their files
+ * rather than putting it in place.
+ *
+ * @author Kevin Witmer
+ */
+class SharedRun {
+    static final String DIR_NAME    = ".xbart_shared";
+
+    enum Claim { CLAIMED, DONE, BUSY }
+
+    /* A claimed file whose lease was taken over by another worker before it was done */
+    static class LostClaim extends IOException {
+        static final long serialVersionUID = 1;
+
+        LostClaim (Path infile) {
+            super("Lost the claim on " + infile + " to another worker");
+        }
+    }
+
+    final Path dir;
+    final Path claims;
+    final Path done;
+    final Path workers;
+    /* This process, as host-pid */
+    final String worker;
+    final Path status_file;
+    final long lease_ms;
+    /* Leases held by this worker, renewed by the heartbeat, and what each of them holds */
+    final ConcurrentMap<Path, String> held = new ConcurrentHashMap<Path, String>();
+    /* The key each claimed file was claimed under, as it may change while it's converted */
+    final ConcurrentMap<Path, String> keys = new ConcurrentHashMap<Path, String>();
+    final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xbart-heartbeat");
+
+        t.setDaemon(true);
+        return t;
+    });
+
+    SharedRun (Path out, double lease_seconds) throws IOException {
+        this.dir = out.resolve(DIR_NAME);
+        this.claims = dir.resolve("claims");
+        this.done = dir.resolve("done");
+        this.workers = dir.resolve("workers");
+        this.worker = workerId();
+        this.status_file = workers.resolve(worker);
+        this.lease_ms = (long) (lease_seconds * 1000);
+
+        Files.createDirectories(claims);
+        Files.createDirectories(done);
+        Files.createDirectories(workers);
+    }
+
+    static String workerId () {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+
+        /* The runtime's name is pid@host */
+        if (at > 0) {
+            name = name.substring(at + 1) + "-" + name.substring(0, at);
+        }
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /*
+     * Join the run. The first worker to start clears away the markers of an earlier run
+     * whose last worker didn't get to.
+     */
+    void join () throws IOException {
+        boolean alone = running().isEmpty();
+
+        writeStatus("running", null);
+
+        if (alone) {
+            clear(done);
+        }
+        heartbeat.scheduleAtFixedRate(this::renew, lease_ms / 4, lease_ms / 4, TimeUnit.MILLISECONDS);
+        System.err.println("Joined the shared run in " + dir + " as " + worker);
+    }
+
+    /* Keep this worker's leases and status from expiring */
+    void renew () {
+        FileTime now = FileTime.fromMillis( System.currentTimeMillis() );
+
+        try {
+            Files.setLastModifiedTime(status_file, now);
+        }
+        catch (IOException e) {
+            System.err.println("Couldn't renew the status of " + worker + ": " + e);
+        }
+        for (Map.Entry<Path, String> e : held.entrySet()) {
+            Path p = e.getKey();
+
+            try {
+                if ( !e.getValue().equals(read(p)) ) {
+                    throw new NoSuchFileException( p.toString() );
+                }
+                Files.setLastModifiedTime(p, now);
+            }
+            catch (IOException x) {
+                System.err.println("Lost the claim " + p + ", which another worker has taken over");
+                held.remove(p);
+            }
+        }
+    }
+
+    /*
+     * Claim a job's file for this worker. It's DONE if another worker has converted it (or
+     * failed to) already, and BUSY if another worker is converting it now.
+     */
+    Claim claim (Job job) throws IOException {
+        String key = key(job);
+        Path lease = claims.resolve(key),
+             marker = done.resolve(key);
+
+        if ( Files.exists(marker) ) {
+            return Claim.DONE;
+        }
+        if ( !lock(lease, job.infile.toString()) ) {
+            return Claim.BUSY;
+        }
+        /* Another worker may have finished it just before the lease was taken */
+        if ( Files.exists(marker) ) {
+            unlock(lease);
+            return Claim.DONE;
+        }
+        keys.put(job.infile, key);
+        return Claim.CLAIMED;
+    }
+
+    /*
+     * Throw a LostClaim if a claimed job's lease is no longer this worker's, so that what it
+     * made of the file is thrown away
+     */
+    void check (Job job) throws IOException {
+        String key = keys.get(job.infile);
+
+        if ( key != null && !holds(claims.resolve(key)) ) {
+            throw new LostClaim(job.infile);
+        }
+    }
+
+    /* Whether a lease is still the one this worker created */
+    boolean holds (Path lease) throws IOException {
+        String token = held.get(lease);
+
+        return token != null && token.equals( read(lease) );
+    }
+
+    /*
+     * Mark a claimed job's file as done, then give up the lease on it. A file whose lease
+     * was taken over is left to the worker which has it now.
+     */
+    void finish (Job job, boolean converted) throws IOException {
+        String key = keys.remove(job.infile);
+
+        if ( !holds(claims.resolve(key)) ) {
+            held.remove( claims.resolve(key) );
+            return;
+        }
+        Files.write(
+            done.resolve(key),
+            ( (converted ? "converted" : "failed") + "\t" + worker + "\t" + job.infile + "\n" ).getBytes(StandardCharsets.UTF_8)
+        );
+        unlock( claims.resolve(key) );
+    }
+
+    /* A job's file, as of its size and date, converted to the run's targets */
+    static String key (Job job) throws IOException {
+        MessageDigest md = Manifest.sha1();
+        StringBuilder sb = new StringBuilder( Manifest.sourceKey(job.infile) );
+
+        sb.append('\t').append( Files.size(job.infile) );
+        sb.append('\t').append( Files.getLastModifiedTime(job.infile).toMillis() );
+
+        for (Target t : targets) {
+            sb.append('\t').append( t.key() );
+        }
+        return Manifest.hex( md.digest( sb.toString().getBytes(StandardCharsets.UTF_8) ) );
+    }
+
+    /* Take the lease on the manifest, waiting for whichever worker has it */
+    void lockManifest () throws IOException {
+        try {
+            while ( !lock(dir.resolve("manifest.lock"), "manifest") ) {
+                Thread.sleep(100);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the manifest");
+        }
+    }
+
+    void unlockManifest () throws IOException {
+        unlock( dir.resolve("manifest.lock") );
+    }
+
+    /*
+     * Create a lease if there isn't one, or take it over if it's expired. Of the workers
+     * racing to take over an expired lease, the one which gets to move it aside wins. One
+     * which finds that what it moved aside isn't the expired lease it saw, as another worker
+     * took that over and made a fresh one in between, puts the fresh one back. If a third
+     * worker has made a lease by then, the one put aside is dropped; its owner finds it gone
+     * on its next heartbeat, and gives the file up.
+     */
+    boolean lock (Path lease, String what) throws IOException {
+        String token = worker + "\t" + what + "\t" + UUID.randomUUID();
+
+        for (int tries = 0; tries < 2; tries++) {
+            try {
+                Files.write(
+                    lease, (token + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+                );
+                held.put(lease, token);
+                return true;
+            }
+            catch (FileAlreadyExistsException e) {
+                Path aside = lease.resolveSibling(lease.getFileName() + "." + worker + ".expired");
+                String seen = read(lease);
+
+                if ( seen == null ) {
+                    continue;
+                }
+                if ( !expired(lease) ) {
+                    return false;
+                }
+                try {
+                    Files.move(lease, aside, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (NoSuchFileException gone) {
+                    /* Released, or taken over by another worker: try again */
+                    continue;
+                }
+                if ( !seen.equals(read(aside)) || !expired(aside) ) {
+                    try {
+                        Files.move(aside, lease);
+                    }
+                    catch (FileAlreadyExistsException taken) {
+                        Files.deleteIfExists(aside);
+                    }
+                    return false;
+                }
+                System.err.println("Taking over the expired claim on " + what + " from " + owner(aside));
+                Files.deleteIfExists(aside);
+            }
+        }
+        return false;
+    }
+
+    /* Give up a lease, unless another worker has taken it over */
+    void unlock (Path lease) throws IOException {
+        if ( holds(lease) ) {
+            Files.deleteIfExists(lease);
+        }
+        held.remove(lease);
+    }
+
+    /* What a lease holds, or null if it's gone */
+    static String read (Path lease) throws IOException {
+        try {
+            List<String> lines = Files.readAllLines(lease, StandardCharsets.UTF_8);
+
+            return lines.isEmpty() ? "" : lines.get(0);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /* Whether a lease or status hasn't been renewed in time. One which is gone has expired too. */
+    boolean expired (Path p) throws IOException {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(p).toMillis() > lease_ms;
+        }
+        catch (NoSuchFileException e) {
+            return true;
+        }
+    }
+
+    /* The worker named in a lease */
+    static String owner (Path lease) {
+        try {
+            return Files.readAllLines(lease, StandardCharsets.UTF_8).get(0).split("\t")[0];
+        }
+        catch (IOException | IndexOutOfBoundsException e) {
+            return "a worker which has gone";
+        }
+    }
+
+    /* Whether a worker is still converting, as far as its status shows */
+    boolean live (String id) throws IOException {
+        String[] f = status( workers.resolve(id) );
+
+        return f != null && f[0].equals("running") && !expired( workers.resolve(id) );
+    }
+
+    /* The other workers which are still converting */
+    List<String> running () throws IOException {
+        List<String> ids = new ArrayList<String>();
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(workers)) {
+            for (Path p : ds) {
+                String id = p.getFileName().toString();
+
+                if ( !id.startsWith(".") && !id.equals(worker) && live(id) ) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /*
+     * A worker's status: running or finished, then the files it converted, found done by
+     * others, and failed, and its seconds spent encoding. Null if there's none to read.
+     */
+    static String[] status (Path p) throws IOException {
+        try {
+            List<String> lines = Files.readAllLines(p, StandardCharsets.UTF_8);
+            String[] f = lines.isEmpty() ? null : lines.get(0).split("\t");
+
+            return f != null && f.length == 5 ? f : null;
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /* Write this worker's status, through a temporary file so that it's never read half written */
+    void writeStatus (String state, Scheduler s) throws IOException {
+        Path tmp = workers.resolve("." + worker + ".tmp");
+        String line = s == null ? state + "\t0\t0\t0\t0.0" : String.format(
+            "%s\t%d\t%d\t%d\t%.1f",
+            state, s.converted.get(), s.elsewhere.get(), s.failures.size(), s.encode_ns.get() / 1e9
+        );
+
+        Files.write( tmp, (line + "\n").getBytes(StandardCharsets.UTF_8) );
+        Files.move(tmp, status_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Leave the run: record this worker's outcome and print every worker's. The last one
+     * to finish clears away the markers and statuses, so the next run starts afresh.
+     */
+    void leave (Scheduler s) throws IOException {
+        int converted = 0, failed = 0, still_running = 0;
+
+        heartbeat.shutdownNow();
+        writeStatus("finished", s);
+        System.err.println("Workers of the shared run:");
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(workers)) {
+            for (Path p : ds) {
+                String id = p.getFileName().toString();
+                String[] f = id.startsWith(".") ? null : status(p);
+                String state;
+
+                if (f == null) {
+                    continue;
+                }
+                state = !f[0].equals("running") ? f[0] : expired(p) ? "gone" : "running";
+
+                if ( state.equals("running") ) {
+                    still_running++;
+                }
+                converted += Integer.parseInt(f[1]);
+                failed += Integer.parseInt(f[3]);
+                System.err.println(String.format(
+                    "  %-32s %-9s %6s converted %6s failed %10s s encoding", id, state, f[1], f[3], f[4]
+                ));
+            }
+        }
+        System.err.println(
+            "All workers: " + converted + " converted, " + failed + " failed"
+            + (still_running > 0 ? ", " + still_running + " still running." : ".")
+        );
+
+        if (still_running == 0) {
+            clear(done);
+            clear(workers);
+        }
+        held.clear();
+    }
+
+    /* Delete the files in one of the run's directories */
+    static void clear (Path d) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+            for (Path p : ds) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
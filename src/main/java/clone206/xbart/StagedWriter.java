@@ -0,0 +1,224 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * Moves finished outputs from a local staging directory to their destination, for output
+ * directories on slow devices like phones, SD cards or network shares. Files are encoded
+ * into the staging directory at local disk speed, then a small pool of writers copies them
+ * across with large sequential writes, to a hidden name beside the destination, and
+ * renames them into place once they're complete. The encoders only wait on the writers if
+ * too many finished files are waiting to be copied.
+ *
+ * @author Kevin Witmer
+ */
+class StagedWriter {
+    /* Bytes per write to the destination */
+    static final int COPY_BUFFER    = 4 << 20;
+
+    final Path dir;
+    final ExecutorService writers;
+    /* Limits how many finished files can wait in the staging directory */
+    final Semaphore backlog;
+    final List<Future<?>> pending       = new ArrayList<Future<?>>();
+    /* Files whose outputs couldn't be written, since the last finish() */
+    final Map<Path, Throwable> failures = new LinkedHashMap<Path, Throwable>();
+    /* Per file, the outputs still being written */
+    final Map<Path, Writes> writes      = new HashMap<Path, Writes>();
+
+    /* A file's outputs still to be written, whether they've all made it so far, and what to do once they have */
+    static class Writes {
+        int left;
+        boolean ok = true;
+        Consumer<Boolean> then;
+    }
+
+    StagedWriter (Path dir, int threads) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.writers = Executors.newFixedThreadPool(threads);
+        this.backlog = new Semaphore(4 * threads);
+    }
+
+    /* A new file in the staging directory to encode an output into */
+    Path stage (Output o) throws IOException {
+        return Files.createTempFile( dir, "xbart-", "-" + Paths.get(o.outfile_path).getFileName() );
+    }
+
+    /*
+     * Queue a staged output to be copied to its destination, then recorded in the manifest.
+     * Blocks while the backlog is full.
+     */
+    void commit (final TranscodeSession session, final Job job, final Output o) throws InterruptedException {
+        backlog.acquire();
+
+        synchronized (writes) {
+            writes.computeIfAbsent( job.infile, p -> new Writes() ).left++;
+        }
+
+        try {
+            Future<?> f = writers.submit(() -> {
+                boolean ok = false;
+
+                try {
+                    write(session, o);
+                    manifest.record(o.entry);
+                    ok = true;
+                }
+                catch (Throwable t) {
+                    System.err.println("FAILED writing " + o.outfile_path + ": " + t.getMessage());
+
+                    synchronized (failures) {
+                        failures.put(job.infile, t);
+                    }
+                }
+                finally {
+                    backlog.release();
+                    written(job.infile, ok);
+                }
+            });
+
+            synchronized (pending) {
+                pending.add(f);
+            }
+        }
+        catch (RejectedExecutionException e) {
+            backlog.release();
+            written(job.infile, false);
+            throw e;
+        }
+    }
+
+    /*
+     * Run something once all of a file's queued outputs have been written, given whether
+     * they all were: right away if they're done with, or else on the writer of the last one
+     */
+    void afterWrites (Path infile, Consumer<Boolean> then) {
+        Writes w;
+
+        synchronized (writes) {
+            w = writes.get(infile);
+
+            if (w != null && w.left > 0) {
+                w.then = then;
+                return;
+            }
+            writes.remove(infile);
+        }
+        then.accept(w == null || w.ok);
+    }
+
+    /* Count one of a file's outputs as written, or failed, running what waits on the file after the last */
+    void written (Path infile, boolean ok) {
+        Consumer<Boolean> then;
+        boolean all_ok;
+
+        synchronized (writes) {
+            Writes w = writes.get(infile);
+
+            w.ok &= ok;
+
+            if (--w.left > 0 || w.then == null) {
+                return;
+            }
+            writes.remove(infile);
+            then = w.then;
+            all_ok = w.ok;
+        }
+        then.accept(all_ok);
+    }
+
+    /* Copy a staged output to a hidden file beside its destination, then rename it into place */
+    void write (TranscodeSession session, Output o) throws IOException {
+        Path staged = Paths.get(o.staged_path),
+             dest   = Paths.get(o.outfile_path),
+             part   = o.partPath();
+        long t = System.nanoTime(), bytes = 0;
+
+        try {
+            Files.createDirectories( dest.getParent() );
+
+            /* Outputs made from an older version of the source are stale */
+            if (o.stale_outfile != null) {
+                session.log("Removing stale output " + o.stale_outfile);
+                Files.deleteIfExists( Paths.get(o.stale_outfile) );
+            }
+
+            try (FileChannel in = FileChannel.open(staged, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER);
+
+                while (in.read(buf) >= 0 || buf.position() > 0) {
+                    buf.flip();
+                    bytes += out.write(buf);
+                    buf.compact();
+                }
+                /* So that what's renamed into place is all there */
+                out.force(true);
+            }
+
+            o.commitPart();
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+        finally {
+            Files.deleteIfExists(staged);
+        }
+
+        double secs = (System.nanoTime() - t) / 1e9;
+
+        session.log(String.format(
+            "Wrote %s: %.1f MB in %.1f s, %.1f MB/s", dest, bytes / 1e6, secs, bytes / 1e6 / Math.max(secs, 1e-9)
+        ));
+    }
+
+    /* Wait for every queued output to be written, returning the files which failed since the last time */
+    Map<Path, Throwable> finish () throws InterruptedException {
+        List<Future<?>> waiting;
+        Map<Path, Throwable> failed;
+
+        synchronized (pending) {
+            waiting = new ArrayList<Future<?>>(pending);
+            pending.clear();
+        }
+        for (Future<?> f : waiting) {
+            try {
+                f.get();
+            }
+            catch (ExecutionException e) {
+                /* The task records its own failures */
+            }
+        }
+        synchronized (failures) {
+            failed = new LinkedHashMap<Path, Throwable>(failures);
+            failures.clear();
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,209 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * An input read from, or an output written to, a Java channel instead of a file, so that
+ * audio can be converted straight from one stream to another without a round trip through
+ * the disk. Streams can't seek, so ffmpeg reads an input front to back, and the muxers leave
+ * whatever they'd go back and fill in at the end (the sizes in a WAV header, the FLAC
+ * STREAMINFO totals) as placeholders. Encoded audio goes out as each buffer fills, well
+ * before the end of the input.
+ *
+ * As with ChannelInput, ffmpeg calls back into one static read and write callback for every
+ * stream, and the opaque pointer it passes along identifies the stream.
+ *
+ * @author Kevin Witmer
+ */
+class StreamIO {
+    /* Streams by their opaque id */
+    static final Map<Long, StreamIO> open   = new ConcurrentHashMap<Long, StreamIO>();
+    static final AtomicLong next_id         = new AtomicLong(1);
+
+    static final Read_packet_Pointer_BytePointer_int READ = new Read_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call (Pointer opaque, BytePointer buf, int size) {
+            StreamIO s = open.get( opaque.address() );
+
+            try {
+                return s == null ? AVERROR_EXTERNAL : s.read(buf, size);
+            }
+            catch (Throwable t) {
+                s.error = t;
+                return AVERROR_EXTERNAL;
+            }
+        }
+    };
+
+    static final Write_packet_Pointer_BytePointer_int WRITE = new Write_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call (Pointer opaque, BytePointer buf, int size) {
+            StreamIO s = open.get( opaque.address() );
+
+            try {
+                return s == null ? AVERROR_EXTERNAL : s.write(buf, size);
+            }
+            catch (Throwable t) {
+                s.error = t;
+                return AVERROR_EXTERNAL;
+            }
+        }
+    };
+
+    final TranscodeSession session;
+    final long id                           = next_id.getAndIncrement();
+    final ReadableByteChannel in;
+    final WritableByteChannel out;
+    final AVIOContext avio;
+    /* Bytes passed through, for the log */
+    long bytes                              = 0;
+    /* What went wrong in a callback, which can only return an error code */
+    volatile Throwable error;
+    /* Waits on a non-blocking channel, once it's come up empty */
+    Selector selector;
+
+    /* An AVIOContext reading a channel, owned by the session's scope */
+    StreamIO (TranscodeSession session, ReadableByteChannel in) {
+        this(session, in, null);
+    }
+
+    /* An AVIOContext writing to a channel, owned by the session's scope */
+    StreamIO (TranscodeSession session, WritableByteChannel out) {
+        this(session, null, out);
+    }
+
+    private StreamIO (TranscodeSession session, ReadableByteChannel in, WritableByteChannel out) {
+        BytePointer buffer;
+
+        this.session = session;
+        this.in = in;
+        this.out = out;
+
+        if ( (buffer = new BytePointer( av_malloc(io_buffer) )).isNull() ) {
+            throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+        }
+        /* Without a seek callback, the context is marked as not seekable */
+        avio = avio_alloc_context(
+            buffer, io_buffer, out != null ? 1 : 0, new ChannelInput.Id(id),
+            in != null ? READ : null, out != null ? WRITE : null, null
+        );
+
+        if (avio == null || avio.isNull()) {
+            av_free(buffer);
+            throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+        }
+        open.put(id, this);
+        session.scope.own(avio, a -> close());
+    }
+
+    /* Read whatever the channel has, up to size bytes, into ffmpeg's buffer */
+    int read (BytePointer buf, int size) throws IOException {
+        ByteBuffer dst = buf.capacity(size).asByteBuffer();
+        int n;
+
+        /* A non-blocking channel can come up empty, which isn't the end of the stream */
+        while ( (n = in.read(dst)) == 0 ) {
+            await(in, SelectionKey.OP_READ);
+        }
+        if (n < 0) {
+            return AVERROR_EOF;
+        }
+        bytes += n;
+        return n;
+    }
+
+    /* Write all of ffmpeg's buffer to the channel */
+    int write (BytePointer buf, int size) throws IOException {
+        ByteBuffer src = buf.capacity(size).asByteBuffer();
+
+        while ( src.hasRemaining() ) {
+            if (out.write(src) == 0) {
+                await(out, SelectionKey.OP_WRITE);
+            }
+        }
+        bytes += size;
+        return size;
+    }
+
+    /*
+     * Wait for a channel which came up empty, or full, to be ready again. A non-blocking
+     * channel is waited on with a selector; any other kind, with nothing to wait on, is
+     * given a moment before it's tried again.
+     */
+    void await (Channel ch, int op) throws IOException {
+        if ( !(ch instanceof SelectableChannel) || ((SelectableChannel) ch).isBlocking() ) {
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the stream");
+            }
+            return;
+        }
+        if (selector == null) {
+            selector = Selector.open();
+            ((SelectableChannel) ch).register(selector, op);
+        }
+        selector.select();
+        selector.selectedKeys().clear();
+    }
+
+    /* Throw what went wrong in a callback, if anything did */
+    void checkError () throws IOException {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error != null) {
+            throw new IOException("Stream " + (in != null ? "input" : "output") + " failed", error);
+        }
+    }
+
+    /* Free the context and its buffer, which ffmpeg may have replaced. The channel is the caller's. */
+    void close () {
+        open.remove(id);
+
+        if (selector != null) {
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                /* Nothing is waiting on it any more */
+            }
+        }
+        av_free( avio.buffer() );
+        avio_context_free(avio);
+
+        session.log(String.format(
+            "%s %.1f MB %s the stream%s", in != null ? "Read" : "Wrote", bytes / 1e6, in != null ? "from" : "to",
+            error != null ? " (error: " + error.getMessage() + ")" : ""
+        ));
+    }
+}
@@ -0,0 +1,314 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.*;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swresample.*;
+
+import static clone206.xbart.Xbart.*;
+import static clone206.xbart.TranscodeStats.*;
+
+/**
+ * Resamples the decoded audio for one output with libswresample directly, for outputs that
+ * need nothing but a change of rate and sample format. The conversion is the same one the
+ * aresample filter makes, without the filter graph around it: the converted audio goes into
+ * a FIFO and comes back out in frames of the encoder's frame size. Encoders which take frames
+ * of any size, like PCM, are given the converted audio as it is.
+ *
+ * The resampler settings apply to the filter graph's aresample as well, so both ways of
+ * resampling give the same audio.
+ *
+ * @author Kevin Witmer
+ */
+class SwrResampler {
+    /* FIFO size for encoders which take frames of any size, which don't need it */
+    static final int ANY_FRAME_SAMPLES  = 4096;
+    static final List<String> ENGINES   = Arrays.asList("swr", "soxr");
+    static final List<String> QUALITIES = Arrays.asList("fast", "standard", "high", "best");
+    static final List<String> DITHERS   = Arrays.asList(
+        "none", "rectangular", "triangular", "triangular_hp", "lipshitz", "shibata",
+        "low_shibata", "high_shibata", "f_weighted", "e_weighted", "modified_e_weighted"
+    );
+    /* The noise shaping dithers, which libswresample only gets right for 16 bit samples */
+    static final List<String> NOISE_SHAPING = DITHERS.subList( DITHERS.indexOf("lipshitz"), DITHERS.size() );
+
+    final TranscodeSession session;
+    final Output output;
+    final SwrContext swr;
+    final AVAudioFifo fifo;
+    /* Audio on its way from the resampler into the FIFO */
+    final AVFrame converted;
+    /* A frame's worth of audio on its way from the FIFO to the encoder */
+    final AVFrame chunk;
+    final int frame_size;
+    /* Whether the encoder takes frames of any size */
+    final boolean any_size;
+    PointerPointer<BytePointer> converted_data;
+    int capacity                        = 0;
+
+    SwrResampler (TranscodeSession session, Output o) {
+        AVCodecContext dec  = session.dec_ctx,
+                       enc  = o.enc_ctx;
+        NativeScope scope   = session.scope;
+
+        this.session = session;
+        this.output = o;
+        this.any_size = enc.frame_size() <= 0;
+        this.frame_size = any_size ? ANY_FRAME_SAMPLES : enc.frame_size();
+
+        swr = scope.own( swr_alloc_set_opts(
+            null, enc.channel_layout(), enc.sample_fmt(), o.out_sr,
+            dec.channel_layout(), dec.sample_fmt(), dec.sample_rate(), 0, null
+        ), s -> swr_free(s) );
+        fifo = scope.own( av_audio_fifo_alloc(enc.sample_fmt(), enc.channels(), frame_size), f -> av_audio_fifo_free(f) );
+        converted = scope.own( av_frame_alloc(), f -> av_frame_free(f) );
+        chunk = scope.own( av_frame_alloc(), f -> av_frame_free(f) );
+
+        if (swr == null || fifo == null || swr.isNull() || fifo.isNull() || converted.isNull() || chunk.isNull()) {
+            throw new RuntimeException( my_av_err2str( AVERROR_ENOMEM() ) );
+        }
+
+        for (Map.Entry<String, String> e : options(o).entrySet()) {
+            check( av_opt_set(swr, e.getKey(), e.getValue(), 0) );
+        }
+        check( swr_init(swr) );
+
+        for (AVFrame f : new AVFrame[] { converted, chunk }) {
+            f.format( enc.sample_fmt() );
+            f.channel_layout( enc.channel_layout() );
+            f.channels( enc.channels() );
+            f.sample_rate(o.out_sr);
+        }
+        chunk.nb_samples(frame_size);
+        check( av_frame_get_buffer(chunk, 0) );
+
+        session.log(
+            "Output: srate:" + o.out_sr + "Hz fmt:" + av_get_sample_fmt_name( enc.sample_fmt() ).getString()
+            + " Channels num: " + enc.channels() + " (" + resampler + " resampler, without filters)"
+        );
+    }
+
+    /* Whether the outputs can all be resampled directly, rather than through a filter graph */
+    static boolean eligible (List<Output> outputs) {
+        if (filter_graph) {
+            return false;
+        }
+        for (Output o : outputs) {
+            if (o.target.vol.length() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Whether this build of ffmpeg has the SoX resampler */
+    static boolean hasSoxr () {
+        return swresample_configuration().getString().contains("--enable-libsoxr");
+    }
+
+    /*
+     * The resampler options for the chosen engine, quality and dither, for converting to an
+     * output, or just resampling where it's null; none for the defaults. A dither is scaled
+     * to the bits the output's encoder keeps, which for 24 bit audio in 32 bit samples are
+     * fewer than the sample format holds.
+     */
+    static Map<String, String> options (Output o) {
+        Map<String, String> opts = new LinkedHashMap<String, String>();
+        boolean soxr = resampler.equals("soxr");
+
+        if (soxr) {
+            opts.put("resampler", "soxr");
+        }
+        if ( resample_quality.equals("fast") ) {
+            if (soxr) {
+                opts.put("precision", "16");
+            }
+            else {
+                opts.put("filter_size", "16");
+                opts.put("phase_shift", "8");
+            }
+        }
+        else if ( resample_quality.equals("high") ) {
+            if (soxr) {
+                opts.put("precision", "28");
+            }
+            else {
+                opts.put("filter_size", "64");
+                opts.put("phase_shift", "11");
+                opts.put("cutoff", "0.98");
+            }
+        }
+        else if ( resample_quality.equals("best") ) {
+            if (soxr) {
+                opts.put("precision", "33");
+                opts.put("cheby", "1");
+            }
+            else {
+                opts.put("filter_size", "128");
+                opts.put("phase_shift", "12");
+                opts.put("cutoff", "0.99");
+            }
+        }
+        if (dither != null && o != null) {
+            opts.put("dither_method", dither.equals("none") ? "0" : ditherFor(o) );
+
+            if (outputBits(o.enc_ctx) > 0) {
+                opts.put( "output_sample_bits", String.valueOf( outputBits(o.enc_ctx) ) );
+            }
+            /*
+             * libswresample's SIMD dither mixing (float only) takes some of its noise from past
+             * the end of the noise buffer, which puts full scale clicks into the output that
+             * change from run to run. Working in doubles leaves it out.
+             */
+            if ( !dither.equals("none") ) {
+                opts.put("internal_sample_fmt", "dblp");
+            }
+        }
+        return opts;
+    }
+
+    /*
+     * The dither for an output. Noise shaping into wider samples comes out as full scale
+     * noise in libswresample 3.4, so those get the plain high pass triangular dither instead.
+     */
+    static String ditherFor (Output o) {
+        if ( NOISE_SHAPING.contains(dither) && av_get_bytes_per_sample( o.enc_ctx.sample_fmt() ) > 2 ) {
+            return "triangular_hp";
+        }
+        return dither;
+    }
+
+    /* The bits of each sample an encoder keeps, where it's fewer than its sample format holds, or 0 */
+    static int outputBits (AVCodecContext enc) {
+        int bits = enc.bits_per_raw_sample() > 0 ? enc.bits_per_raw_sample() : enc.bits_per_coded_sample();
+
+        return bits > 0 && bits < 8 * av_get_bytes_per_sample( enc.sample_fmt() ) ? bits : 0;
+    }
+
+    /*
+     * The options as a suffix for an aresample filter. With convert, the filter also converts
+     * to the output's sample format, as the direct resampler does, so that any dither is
+     * applied the same way; otherwise it leaves that, and the dither, to a later one.
+     */
+    static String filterOptions (Output o, boolean convert) {
+        StringBuilder sb = new StringBuilder();
+
+        if (convert) {
+            sb.append(":osf=").append( av_get_sample_fmt_name( o.enc_ctx.sample_fmt() ).getString() );
+        }
+        for (Map.Entry<String, String> e : options(convert ? o : null).entrySet()) {
+            sb.append(":").append( e.getKey() ).append("=").append( e.getValue() );
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Resample a decoded frame, or null at the end of the input to drain the resampler, and
+     * encode every full frame that completes. At the end the last, partial frame goes too.
+     */
+    void convert (AVFrame frame, AVPacket output_packet) {
+        long t = session.clock();
+        int in = frame != null ? frame.nb_samples() : 0;
+        int n;
+
+        reserve( swr_get_out_samples(swr, in) );
+
+        if (any_size) {
+            do {
+                convertDirect(frame, in, output_packet);
+            }
+            while (frame == null && converted.nb_samples() > 0);
+            return;
+        }
+
+        do {
+            check( n = swr_convert(swr, converted_data, capacity, frame != null ? frame.extended_data() : null, in) );
+            check( av_audio_fifo_write(fifo, converted_data, n) );
+        }
+        /* Draining can take more than one go */
+        while (frame == null && n > 0);
+
+        session.lap(FILTER, t);
+
+        while ( av_audio_fifo_size(fifo) >= frame_size || (frame == null && av_audio_fifo_size(fifo) > 0) ) {
+            t = session.clock();
+            /* Only reallocates if the encoder kept a reference to the last one */
+            chunk.nb_samples(frame_size);
+            check( av_frame_make_writable(chunk) );
+            chunk.nb_samples( av_audio_fifo_read(fifo, chunk.extended_data(), frame_size) );
+            session.lap(FILTER, t);
+
+            if (session.stats != null) {
+                session.stats.count(FRAMES_FILTERED, 1);
+                session.stats.count(SAMPLES_FILTERED, chunk.nb_samples());
+            }
+            session.encodeFrame(output, chunk, output_packet);
+        }
+    }
+
+    /* Resample straight into a frame for an encoder which takes any size, and encode it */
+    void convertDirect (AVFrame frame, int in, AVPacket output_packet) {
+        long t = session.clock();
+
+        /* Only reallocates if the encoder kept a reference to the last one */
+        converted.nb_samples(capacity);
+
+        if ( av_frame_is_writable(converted) == 0 ) {
+            check( av_frame_make_writable(converted) );
+            converted_data = planes(converted);
+        }
+        int n = swr_convert(swr, converted_data, capacity, frame != null ? frame.extended_data() : null, in);
+
+        check(n);
+        converted.nb_samples(n);
+        session.lap(FILTER, t);
+
+        if (n > 0) {
+            if (session.stats != null) {
+                session.stats.count(FRAMES_FILTERED, 1);
+                session.stats.count(SAMPLES_FILTERED, n);
+            }
+            session.encodeFrame(output, converted, output_packet);
+        }
+    }
+
+    /* Make sure the conversion buffer holds at least the given number of samples */
+    void reserve (int samples) {
+        if (samples <= capacity) {
+            return;
+        }
+        capacity = Math.max(samples, 2 * frame_size);
+
+        av_frame_unref(converted);
+        converted.format( output.enc_ctx.sample_fmt() );
+        converted.channel_layout( output.enc_ctx.channel_layout() );
+        converted.channels( output.enc_ctx.channels() );
+        converted.nb_samples(capacity);
+        check( av_frame_get_buffer(converted, 0) );
+        converted_data = planes(converted);
+    }
+
+    /* A frame's planes, which the bindings hand back as a raw PointerPointer */
+    @SuppressWarnings("unchecked")
+    static PointerPointer<BytePointer> planes (AVFrame frame) {
+        return frame.extended_data();
+    }
+}
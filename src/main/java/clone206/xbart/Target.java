@@ -0,0 +1,74 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+/**
+ * One requested output format: a sample rate (or maximum rate, with a trailing "m"), a
+ * file extension and an optional volume adjustment in dB, or "auto" for the gain that
+ * brings each file's true peak up to the ceiling.
+ *
+ * @author Kevin Witmer
+ */
+class Target {
+    static final String SUPPORTED_EXTS = "flac|wav|aiff|m4a|mp3";
+    static final String AUTO_GAIN      = "auto";
+
+    final String args_sr;
+    final String ext;
+    final String vol;
+
+    Target (String args_sr, String ext, String vol) {
+        if ( !args_sr.matches("[0-9]+m?") ) {
+            throw new IllegalArgumentException("Invalid sample rate: " + args_sr);
+        }
+        if ( !ext.matches(SUPPORTED_EXTS) ) {
+            throw new IllegalArgumentException("Unsupported outfile type: " + ext);
+        }
+        this.args_sr = args_sr;
+        this.ext = ext;
+        this.vol = vol;
+    }
+
+    /* Parse a target given as <sample_rate>:<ext>[:vol_adjust_db] */
+    static Target parse (String spec) {
+        String[] f = spec.split(":", -1);
+
+        if (f.length < 2 || f.length > 3) {
+            throw new IllegalArgumentException("Invalid target: " + spec);
+        }
+        return new Target(f[0], f[1], f.length == 3 ? f[2] : "");
+    }
+
+    /* True if the sample rate is a maximum rather than a fixed rate */
+    boolean maxMode () {
+        return args_sr.endsWith("m");
+    }
+
+    /* True if the volume is adjusted by however much each file needs */
+    boolean autoGain () {
+        return vol.equals(AUTO_GAIN);
+    }
+
+    /* Identifies the target settings in the manifest */
+    String key () {
+        return args_sr + ":" + ext + ":" + vol;
+    }
+
+    public String toString () {
+        return args_sr + ":" + ext + (vol.length() > 0 ? ":" + vol : "");
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A single conversion for the Transcoder: a source, and the output to make from it, either
+ * as files or as streams. The sample rate and volume are given the same way as on the command
+ * line: a rate in Hz, or a maximum rate with a trailing "m", and a volume adjustment in dB,
+ * or "" for none.
+ *
+ * @author Kevin Witmer
+ */
+public class TranscodeRequest {
+    /* Output types which can be streamed: m4a's index comes after the audio, so it can't be */
+    static final String STREAM_EXTS = "flac|wav|aiff|mp3";
+
+    /* The source and output files, or null for a streamed request */
+    public final Path source;
+    public final String sample_rate;
+    public final String ext;
+    public final String vol;
+    /* Where to write the output, replacing anything there */
+    public final Path output;
+    /* The source and output streams, or null for files. The caller closes them. */
+    public final ReadableByteChannel in;
+    public final WritableByteChannel out;
+    final Target target;
+
+    /* Throws IllegalArgumentException for a rate or output type the command line wouldn't take */
+    public TranscodeRequest (Path source, String sample_rate, String ext, String vol, Path output) {
+        if (source == null || output == null) {
+            throw new IllegalArgumentException("A request needs a source and an output path");
+        }
+        this.source = source;
+        this.sample_rate = sample_rate;
+        this.ext = ext;
+        this.vol = vol != null ? vol : "";
+        this.output = output.toAbsolutePath();
+        this.in = null;
+        this.out = null;
+        this.target = new Target(sample_rate, ext, this.vol);
+    }
+
+    /* Convert without a volume adjustment */
+    public TranscodeRequest (Path source, String sample_rate, String ext, Path output) {
+        this(source, sample_rate, ext, "", output);
+    }
+
+    /*
+     * Convert from one stream to another. The output starts as soon as there's encoded audio,
+     * and the whole input is never held in memory or on disk. The input has to be in a format
+     * that can be read front to back: m4a files with their index at the end can't be.
+     */
+    public TranscodeRequest (ReadableByteChannel in, String sample_rate, String ext, String vol, WritableByteChannel out) {
+        if (in == null || out == null) {
+            throw new IllegalArgumentException("A request needs an input and an output stream");
+        }
+        if ( !ext.matches(STREAM_EXTS) ) {
+            throw new IllegalArgumentException("Can't stream " + ext + " output, only " + STREAM_EXTS.replace('|', ','));
+        }
+        this.source = null;
+        this.sample_rate = sample_rate;
+        this.ext = ext;
+        this.vol = vol != null ? vol : "";
+        this.output = null;
+        this.in = in;
+        this.out = out;
+        this.target = new Target(sample_rate, ext, this.vol);
+    }
+
+    public TranscodeRequest (InputStream in, String sample_rate, String ext, String vol, OutputStream out) {
+        this(
+            in != null ? Channels.newChannel(in) : null, sample_rate, ext, vol,
+            out != null ? Channels.newChannel(out) : null
+        );
+    }
+
+    /* Whether the request converts streams rather than files */
+    public boolean streamed () {
+        return in != null;
+    }
+
+    public String toString () {
+        return streamed() ? "stream (" + target + ")" : source + " -> " + output + " (" + target + ")";
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * What a Transcoder request produced, with the same timings and counters as the run report:
+ * the seconds spent in each stage, by name ("read", "decode", "filter", "encode", "write"),
+ * and the packet, frame, sample and byte counts.
+ *
+ * @author Kevin Witmer
+ */
+public class TranscodeResult {
+    public final TranscodeRequest request;
+    /* The output file, or null for a streamed request */
+    public final Path output;
+    public final String codec_name;
+    public final int input_sample_rate;
+    public final int output_sample_rate;
+    /* Seconds of audio */
+    public final double duration;
+    /* Wall clock seconds spent probing and converting. Streams are probed as they're converted. */
+    public final double probe_seconds;
+    public final double convert_seconds;
+    public final Map<String, Double> stage_seconds  = new LinkedHashMap<String, Double>();
+    public final Map<String, Long> counters         = new LinkedHashMap<String, Long>();
+
+    TranscodeResult (TranscodeRequest request, Job job) {
+        Output o            = job.outputs.get(0);
+        TranscodeStats s    = job.stats;
+
+        this.request = request;
+        this.output = request.output;
+        this.codec_name = job.codec_name;
+        this.input_sample_rate = job.sample_rate;
+        this.output_sample_rate = o.out_sr;
+        this.duration = job.duration;
+        this.probe_seconds = s.probe_ns / 1e9;
+        this.convert_seconds = s.conv_ns / 1e9;
+
+        for (int i = 0; i < TranscodeStats.STAGES.length; i++) {
+            stage_seconds.put( TranscodeStats.STAGES[i], s.stage_ns.get(i) / 1e9 );
+        }
+        for (int i = 0; i < TranscodeStats.COUNTERS.length; i++) {
+            counters.put( TranscodeStats.COUNTERS[i], s.counters.get(i) );
+        }
+    }
+
+    /* Seconds of audio converted per second */
+    public double realtime () {
+        return convert_seconds > 0 ? duration / convert_seconds : 0;
+    }
+
+    public String toString () {
+        return String.format(
+            "%s: %.1f s of %s at %d Hz to %d Hz in %.2f s, %.1fx realtime",
+            output != null ? output : "stream", duration, codec_name, input_sample_rate, output_sample_rate, convert_seconds, realtime()
+        );
+    }
+}
@@ -0,0 +1,1383 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import org.bytedeco.javacpp.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avcodec.AVCodecContext.FF_COMPLIANCE_EXPERIMENTAL;
+import static org.bytedeco.javacpp.avcodec.AVCodecContext.FF_THREAD_FRAME;
+import static org.bytedeco.javacpp.avcodec.AVCodecContext.FF_THREAD_SLICE;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+import static clone206.xbart.Xbart.*;
+import static clone206.xbart.TranscodeStats.*;
+
+/**
+ * All of the ffmpeg state needed to convert a single input file to one or more outputs.
+ * Each session owns its own format, codec and filter contexts, so any number of sessions
+ * can run concurrently on separate threads. Everything native the session allocates is
+ * registered with its scope, which frees it all once the session is done with the file.
+ *
+ * @author Kevin Witmer
+ */
+class TranscodeSession {
+    /*
+     * The encoder for each output type, and for PCM types at each bit depth of the input as
+     * type:bits, the type alone giving the encoder for any other depth
+     */
+    static final Map<String, Integer> ENCODERS = encoders();
+    static final Map<Integer, AVCodec> found_encoders = new ConcurrentHashMap<Integer, AVCodec>();
+
+    final Path infile;
+    final String infile_path;
+
+    AVFormatContext inp_fmt_ctx     = new AVFormatContext(null);
+    AVCodecContext dec_ctx          = new AVCodecContext(null);
+    int audio_stream_index          = -1;
+    /* The graph splitting the decoded audio between the outputs */
+    AudioFilterGraph filters;
+    /* Or instead, where the outputs only need resampling, a resampler for each */
+    List<SwrResampler> resamplers;
+    /* The outputs being written from this input */
+    List<Output> outputs            = new ArrayList<Output>();
+    /* Timings and counters, or null if nothing wants them */
+    TranscodeStats stats;
+    /* Owner of the session's native objects */
+    final NativeScope scope         = new NativeScope();
+    /* Threads the codecs, filters and DSD decimator may use, out of the batch's core budget */
+    int threads                     = 1;
+    /* When to journal the next checkpoint, if the conversion could carry on from one */
+    long next_checkpoint            = Long.MAX_VALUE;
+    /* Where the input is read from instead of the file, if it's streamed */
+    ReadableByteChannel source;
+    StreamIO source_io;
+    /* Raw DSD in, and PCM out, of the Java decimator, and the PCM samples it's made so far */
+    byte[] dsd_in                   = new byte[0];
+    float[][] dsd_out;
+    long dsd_samples                = 0;
+    /* The output keeping the decoded audio in the PCM cache, if it's being kept */
+    Output cache_out;
+
+    static Map<String, Integer> encoders () {
+        Map<String, Integer> m = new HashMap<String, Integer>();
+
+        m.put("flac", AV_CODEC_ID_FLAC);
+        m.put("m4a", AV_CODEC_ID_ALAC);
+        m.put("mp3", AV_CODEC_ID_MP3);
+
+        m.put("wav", AV_CODEC_ID_PCM_S16LE);
+        m.put("wav:64", AV_CODEC_ID_PCM_S64LE);
+        m.put("wav:32", AV_CODEC_ID_PCM_S32LE);
+        m.put("wav:24", AV_CODEC_ID_PCM_S24LE);
+        m.put("wav:8", AV_CODEC_ID_PCM_S8);
+
+        m.put("aiff", AV_CODEC_ID_PCM_S16BE);
+        m.put("aiff:64", AV_CODEC_ID_PCM_S64BE);
+        m.put("aiff:32", AV_CODEC_ID_PCM_S32BE);
+        m.put("aiff:24", AV_CODEC_ID_PCM_S24BE);
+        m.put("aiff:8", AV_CODEC_ID_PCM_S8);
+        return Collections.unmodifiableMap(m);
+    }
+
+    TranscodeSession (Path p) {
+        this.infile = p;
+        this.infile_path = p.toString();
+    }
+
+    /* Log a message, tagged with the input file when several sessions share stderr */
+    void log (String msg) {
+        System.err.println(jobs > 1 ? ("[" + infile_path + "] " + msg) : msg);
+    }
+
+    /* The start time for a stage timer, if the session is keeping stats */
+    long clock () {
+        return stats != null ? System.nanoTime() : 0;
+    }
+
+    /* Add the time since a clock() reading to a stage, if the session is keeping stats */
+    void lap (int stage, long t0) {
+        if (stats != null) {
+            stats.lap(stage, t0);
+        }
+    }
+
+    /* Read the next packet of the input, timing and counting it */
+    int readPacket (AVPacket packet) {
+        long t = clock();
+        int ret = av_read_frame(inp_fmt_ctx, packet);
+
+        if (stats != null) {
+            stats.lap(READ, t);
+
+            if (ret >= 0) {
+                stats.count(PACKETS_IN, 1);
+                stats.count(BYTES_IN, packet.size());
+            }
+        }
+        return ret;
+    }
+
+    /* Open an input file and the required decoder. */
+    void openInputFile (String filename) {
+        /* Filled in by av_find_best_stream() */
+        AVCodec dec = new AVCodec(null);
+
+        /* Read a streamed input through its channel, and failing that a file through a FileChannel if asked to */
+        if (source != null) {
+            source_io = new StreamIO(this, source);
+
+            if ( (inp_fmt_ctx = avformat_alloc_context()).isNull() ) {
+                throw new RuntimeException( "Error: " + my_av_err2str(AVERROR_ENOMEM()) );
+            }
+            inp_fmt_ctx.pb(source_io.avio);
+        }
+        else if ( !input_io.equals("ffmpeg") ) {
+            ChannelInput in;
+
+            try {
+                in = new ChannelInput( this, Paths.get(filename), input_io );
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not open input file: " + e.getMessage(), e);
+            }
+            if ( (inp_fmt_ctx = avformat_alloc_context()).isNull() ) {
+                throw new RuntimeException( "Error: " + my_av_err2str(AVERROR_ENOMEM()) );
+            }
+            /* ffmpeg leaves a context it was given alone when closing the input */
+            inp_fmt_ctx.pb(in.avio);
+        }
+
+        /* Open the input file to read from it. */
+        scope.own( inp_fmt_ctx, c -> avformat_close_input(c) );
+        check( avformat_open_input(inp_fmt_ctx, filename, null, null) );
+        /* Get information on the input file (number of streams etc.). */
+        check( avformat_find_stream_info(inp_fmt_ctx, (PointerPointer) null) );
+
+        /* Select the audio stream */
+        check( audio_stream_index = av_find_best_stream(inp_fmt_ctx, AVMEDIA_TYPE_AUDIO, -1, -1, dec, 0) );
+
+        /* Create decoding context */
+        dec_ctx = scope.own( avcodec_alloc_context3(dec), c -> avcodec_free_context(c) );
+
+        if (dec_ctx.isNull()) {
+            throw new RuntimeException( "Error: " + my_av_err2str(AVERROR_ENOMEM()) );
+        }
+
+        check( avcodec_parameters_to_context(dec_ctx, inp_fmt_ctx.streams(audio_stream_index).codecpar()) );
+        av_opt_set_int(dec_ctx, "refcounted_frames", 1, 0);
+        threadCodec(dec_ctx);
+
+        /* Init the audio decoder */
+        check( avcodec_open2(dec_ctx, dec, (AVDictionary) null) );
+    }
+
+    /* The file a job's audio is decoded from: its input, or the input's audio in the PCM cache */
+    String inputPath (Job job) {
+        return job.cached != null ? job.cached.toString() : infile_path;
+    }
+
+    /* Let a codec use the session's threads, which it only does if it supports frame or slice threading */
+    void threadCodec (AVCodecContext c) {
+        if (threads > 1) {
+            c.thread_count(threads);
+            c.thread_type(FF_THREAD_FRAME | FF_THREAD_SLICE);
+        }
+    }
+
+    /*
+     * How many threads converting the job could keep busy: one per channel with the Java
+     * DSD decimator, or as many as the budget allows (or --codec-threads) with a decoder
+     * that's frame or slice threaded. The rest of the codecs and filters are single threaded.
+     */
+    int usableThreads (Job job) {
+        int limit = codec_threads > 0 ? codec_threads : cores;
+
+        /* The FLAC decoder, for audio from the PCM cache, isn't threaded */
+        if (job.cached != null) {
+            return 1;
+        }
+        if ( javaDsd(job.codec_name) ) {
+            return Math.min( limit, dec_ctx.channels() );
+        }
+        if ( (dec_ctx.codec().capabilities() & (AV_CODEC_CAP_FRAME_THREADS | AV_CODEC_CAP_SLICE_THREADS)) != 0 ) {
+            return limit;
+        }
+        return 1;
+    }
+
+    /*
+     * How many threads converting the job could keep busy, now that its outputs are known:
+     * a segment each and one to encode them where it's split into segments, a stage each
+     * where it's pipelined, and otherwise what the decoder can use. Neither applies to
+     * picking up from a checkpoint.
+     */
+    int wantedThreads (Job job) {
+        int limit = codec_threads > 0 ? codec_threads : cores;
+        List<Output> encoded = job.encoded();
+
+        if ( encoded.isEmpty() || encoded.get(0).resume != null ) {
+            return usableThreads(job);
+        }
+        if ( SegmentedTranscode.eligible(this, job) ) {
+            return Math.min( limit, SegmentedTranscode.threads(job) );
+        }
+        if (pipeline) {
+            return Math.max( usableThreads(job), Math.min( limit, PipelinedTranscode.threads( encoded.size() ) ) );
+        }
+        return usableThreads(job);
+    }
+
+    /* Whether to pipeline the conversion, which needs a thread for every stage at once */
+    boolean pipelined () {
+        return pipeline && threads >= PipelinedTranscode.threads( outputs.size() );
+    }
+
+    /* Determine original bit depth. Explicitly set it to 24 bits if we have a DSD file as input */
+    int inputBits () {
+        String dec_name = dec_ctx.codec().name().getString();
+
+        return (dec_name.matches("^dsd_.*") || dec_name.equals("dst"))
+            ? 24
+            : dec_ctx.bits_per_raw_sample();
+    }
+
+    /* The encoder for an output type, which for PCM depends on the bit depth of the input */
+    int encoderId (String outfile_ext) {
+        Integer id = ENCODERS.get( outfile_ext + ":" + inputBits() );
+
+        return id != null ? id : ENCODERS.get(outfile_ext);
+    }
+
+    /* The encoder of a codec, looked up once per process */
+    static AVCodec findEncoder (int codec_id) {
+        return found_encoders.computeIfAbsent( codec_id, id -> avcodec_find_encoder(id) );
+    }
+
+    /*
+     * Whether an output would only decode to what the input already holds: a lossless output
+     * of the input's own container and codec, at its rate and bit depth, with no volume
+     * change. Those are copied rather than re-encoded.
+     */
+    boolean passthrough (Output o) {
+        String ext = o.target.ext;
+
+        if ( reencode || source != null || ext.equals("mp3") || o.target.vol.length() > 0 ) {
+            return false;
+        }
+        /* The FLAC and ALAC encoders write 16 or 24 bit audio */
+        if ( (ext.equals("flac") || ext.equals("m4a")) && inputBits() != 16 && inputBits() != 24 ) {
+            return false;
+        }
+        return o.out_sr == dec_ctx.sample_rate()
+            && infile_path.endsWith("." + ext)
+            && dec_ctx.codec_id() == encoderId(ext);
+    }
+
+    /*
+     * SHA-1 of the decoder settings and every audio packet of the file, which copies of the
+     * same audio share even with other tags or in another container.
+     */
+    String audioHash () throws IOException {
+        AVPacket packet     = scope.own( av_packet_alloc(), p -> av_packet_free(p) );
+        MessageDigest md    = Manifest.sha1();
+        int ret;
+
+         try {
+             openInputFile(infile_path);
+             md.update( (dec_ctx.codec_id() + "\t" + dec_ctx.sample_rate() + "\t" + dec_ctx.channels()).getBytes("UTF-8") );
+
+             while ( (ret = av_read_frame(inp_fmt_ctx, packet)) >= 0 ) {
+                 try {
+                     if (packet.stream_index() == audio_stream_index) {
+                         md.update( packet.data().capacity( packet.size() ).asByteBuffer() );
+                     }
+                 }
+                 finally {
+                     av_packet_unref(packet);
+                 }
+             }
+             if (ret != AVERROR_EOF) {
+                 throw new RuntimeException("Error occurred: " + my_av_err2str(ret));
+             }
+             return Manifest.hex( md.digest() );
+         }
+         finally {
+             scope.close();
+         }
+    }
+
+    /* Write an output which needs no re-encoding as a copy of the input */
+    void copyInput (Output o) throws IOException {
+        long t = clock();
+
+        log("Copying to " + o.outfile_path + ", it needs no re-encoding");
+        Files.copy(infile, o.partPath(), StandardCopyOption.REPLACE_EXISTING);
+        lap(WRITE, t);
+
+        if (stats != null) {
+            stats.count( BYTES_OUT, Files.size(o.partPath()) );
+        }
+    }
+
+    /*
+     * Open an output's file and set its encoder context fields accordingly
+     */
+    void openOutputFile (Output o) {
+        /* A streamed output has no name, but the container is still chosen by the extension */
+        String filename = o.sink != null ? "stream." + o.target.ext : o.outfile_path;
+        /* The container is chosen by the final name, wherever it's written first */
+        String write_path = o.staged_path != null ? o.staged_path : o.partPath().toString();
+        String outfile_ext = o.target.ext;
+        AVIOContext output_io_context = new AVIOContext(null);
+        AVStream stream = new AVStream(null);
+        NativeScope.Release<AVFormatContext> close_output = TranscodeSession::closeOutput;
+        int input_bits = inputBits();
+
+        /* Set up a streamed output first, so its context outlives the container writing to it */
+        if (o.sink != null) {
+            o.sink_io = new StreamIO(this, o.sink);
+            output_io_context = o.sink_io.avio;
+            close_output = TranscodeSession::closeStreamOutput;
+        }
+
+        /* Create a new format context for the output container format. */
+        scope.own( o.out_fmt_ctx, close_output );
+        check( avformat_alloc_output_context2(o.out_fmt_ctx, null, null, filename) );
+        /* Open the output file to write to it, keeping what's there if carrying on from a checkpoint. */
+        if (o.sink != null) {
+            /* Streamed outputs were opened above */
+        }
+        else if (o.resume != null) {
+            AVDictionary opts = new AVDictionary(null);
+
+            try {
+                check( av_dict_set(opts, "truncate", "0", 0) );
+                check( avio_open2(output_io_context, write_path, AVIO_FLAG_WRITE, null, opts) );
+            }
+            finally {
+                av_dict_free(opts);
+            }
+        }
+        else {
+            check( avio_open(output_io_context, write_path, AVIO_FLAG_WRITE) );
+        }
+        /* Associate the output file (pointer) with the container format context. */
+        o.out_fmt_ctx.pb( output_io_context );
+
+        /* Find the encoder to be used by its name. */
+        if ( (o.output_codec = findEncoder( encoderId(outfile_ext) )).isNull() ) {
+            throw new RuntimeException("Could not find an appropriate encoder");
+        }
+
+        /* Create a new audio stream in the output file container. */
+        if ( (stream = avformat_new_stream(o.out_fmt_ctx, null)).isNull() ) {
+            throw new RuntimeException("Could not create new stream");
+        }
+
+        if ( (o.enc_ctx = scope.own( avcodec_alloc_context3(o.output_codec), c -> avcodec_free_context(c) )).isNull() ) {
+            throw new RuntimeException("Could not allocate an encoding context");
+        }
+
+        /*
+         * Set the basic encoder parameters.
+         * The input file's sample rate is used to avoid a sample rate conversion.
+         */
+        o.enc_ctx.channels(dec_ctx.channels());
+        o.enc_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
+        o.enc_ctx.sample_rate(o.out_sr);
+
+        /* Handle cases where a codec supports multiple sample formats */
+        if ( outfile_ext.equals("flac") ) {
+            switch (input_bits) {
+                case 64:
+                case 32:
+                case 24: o.enc_ctx.sample_fmt(AV_SAMPLE_FMT_S32);
+                         break;
+                case 16: o.enc_ctx.sample_fmt(AV_SAMPLE_FMT_S16);
+                         break;
+                default: o.enc_ctx.sample_fmt(o.output_codec.sample_fmts().get(0));
+                         break;
+            }
+        }
+        else if ( outfile_ext.equals("m4a") ) {
+            switch (input_bits) {
+                case 64:
+                case 32:
+                case 24: o.enc_ctx.sample_fmt(AV_SAMPLE_FMT_S32P);
+                         break;
+                case 16: o.enc_ctx.sample_fmt(AV_SAMPLE_FMT_S16P);
+                         break;
+                default: o.enc_ctx.sample_fmt(o.output_codec.sample_fmts().get(0));
+                         break;
+            }
+        }
+        else {
+            o.enc_ctx.sample_fmt(o.output_codec.sample_fmts().get(0));
+        }
+
+        if ( outfile_ext.equals("mp3") ) {
+            o.enc_ctx.bit_rate(OUTPUT_BIT_RATE);
+        }
+
+        /* Allow the use of the experimental AAC encoder */
+        o.enc_ctx.strict_std_compliance(FF_COMPLIANCE_EXPERIMENTAL);
+
+        /* Set the sample rate for the container. */
+        stream.time_base().den( o.out_sr );
+        stream.time_base().num( 1 );
+
+        /*
+         * Some container formats (like MP4) require global headers to be present
+         * Mark the encoder so that it behaves accordingly.
+         */
+        if ( (o.out_fmt_ctx.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+            o.enc_ctx.flags( o.enc_ctx.flags() | AV_CODEC_FLAG_GLOBAL_HEADER );
+        }
+
+        threadCodec(o.enc_ctx);
+
+        /* Open the encoder for the audio stream to use it later. */
+        log("Opening the encoder.");
+        check( avcodec_open2(o.enc_ctx, o.output_codec, (AVDictionary) null) );
+        /* Initialize stream params */
+        check( avcodec_parameters_from_context(stream.codecpar(), o.enc_ctx) );
+    }
+
+    /*
+     * Close an output's file and free its format context. Output contexts aren't opened by
+     * avformat_open_input(), so avformat_close_input() isn't the way to release them.
+     */
+    static void closeOutput (AVFormatContext ctx) {
+        AVIOContext pb = ctx.pb();
+
+        if (pb != null && !pb.isNull()) {
+            avio_closep(pb);
+            ctx.pb(null);
+        }
+        avformat_free_context(ctx);
+        ctx.setNull();
+    }
+
+    /* Free a streamed output's format context, leaving its AVIOContext to the StreamIO */
+    static void closeStreamOutput (AVFormatContext ctx) {
+        ctx.pb(null);
+        avformat_free_context(ctx);
+        ctx.setNull();
+    }
+
+    /*
+     * Initialize the filter chain, splitting the decoded audio between the outputs, each
+     * resampled to its own rate and frame size.
+     */
+    void initFilters () {
+        /* Buffer audio source: the decoded frames from the decoder will be inserted here. */
+        if (dec_ctx.channel_layout() == 0) {
+            dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
+        }
+
+        filters = new AudioFilterGraph(
+            this, inp_fmt_ctx.streams(audio_stream_index).time_base(), dec_ctx.sample_rate(),
+            dec_ctx.sample_fmt(), dec_ctx.channel_layout(), null, outputs, resampleChains(), false
+        );
+        for (int i = 0; i < outputs.size(); i++) {
+            outputs.get(i).buffersink_ctx = filters.sinks[i];
+        }
+    }
+
+    /*
+     * The filters for each output: resample, plus any volume adjustment. An auto gain is
+     * left out until it's known, and the audio spooled to be measured. The last aresample
+     * converts to the encoder's sample format, so the dither goes on after the volume, and
+     * is the same as the direct resampler's; spooled audio stays as floats.
+     */
+    List<String> resampleChains () {
+        List<String> chains = new ArrayList<String>();
+
+        for (Output o : outputs) {
+            String vol = !o.target.autoGain() ? o.target.vol
+                : o.gain != null ? String.format(Locale.ROOT, "%.2fdB", o.gain) : "";
+
+            if (vol.length() > 0) {
+                chains.add(
+                    "aresample=" + o.out_sr + SwrResampler.filterOptions(o, false) + ",volume=" + vol
+                    + ",aresample=" + o.out_sr + SwrResampler.filterOptions(o, true)
+                );
+            }
+            else {
+                chains.add( "aresample=" + o.out_sr + SwrResampler.filterOptions(o, o.spool == null) );
+            }
+        }
+        return chains;
+    }
+
+    /*
+     * Look up the gain of each auto gain output in the manifest, spooling the audio of
+     * those that haven't been measured at their rate before. Returns true if any are.
+     */
+    boolean prepareGains () throws IOException {
+        boolean measuring = false;
+
+        for (Output o : outputs) {
+            Manifest.Loudness l;
+
+            if ( !o.target.autoGain() ) {
+                continue;
+            }
+            l = manifest != null && source == null ? manifest.loudness(infile, o.out_sr) : null;
+
+            if (l != null) {
+                o.gain = LoudnessMeter.gain(l.true_peak, l.integrated);
+                log(String.format("Gain %+.2f dB for %s, as measured before (%.2f dBTP, %.1f LUFS)",
+                    o.gain, o.outfile_path, l.true_peak, l.integrated));
+            }
+            else {
+                o.spool = new PcmSpool(this, o);
+                measuring = true;
+            }
+        }
+        return measuring;
+    }
+
+    /*
+     * With the whole input measured, work out a spooled output's gain, then push its audio
+     * through a graph of its own, which applies the gain and converts it for the encoder.
+     */
+    void replaySpool (Output o, AVFrame frame, AVFrame filt_frame, AVPacket output_packet) throws IOException {
+        final PcmSpool spool = o.spool;
+        final List<Output> outs = Collections.singletonList(o);
+        double true_peak = spool.meter.truePeak(),
+               integrated = spool.meter.integrated();
+
+        o.gain = LoudnessMeter.gain(true_peak, integrated);
+        o.spool = null;
+        log(String.format("Gain %+.2f dB for %s, measured at %.2f dBTP, %.1f LUFS (%.1f MB spooled)",
+            o.gain, o.outfile_path, true_peak, integrated, spool.bytes / 1e6));
+
+        if (manifest != null && source == null) {
+            manifest.recordLoudness(infile, o.out_sr, true_peak, integrated);
+        }
+
+        o.filters = new AudioFilterGraph(
+            this, av_make_q(1, o.out_sr), o.out_sr, AV_SAMPLE_FMT_FLT, o.enc_ctx.channel_layout(), null, outs,
+            Collections.singletonList(
+                String.format(Locale.ROOT, "volume=%.2fdB,aresample=%d", o.gain, o.out_sr) + SwrResampler.filterOptions(o, true)
+            ), false
+        );
+        spool.replay( frame, f -> filterFrame(o.filters, outs, f, filt_frame, output_packet) );
+        filterFrame(o.filters, outs, null, filt_frame, output_packet);
+    }
+
+    /* Set up a direct resampler for each output, in place of the filter graph */
+    void initResamplers () {
+        if (dec_ctx.channel_layout() == 0) {
+            dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
+        }
+        resamplers = new ArrayList<SwrResampler>();
+
+        for (Output o : outputs) {
+            resamplers.add( new SwrResampler(this, o) );
+        }
+    }
+
+    /* Resample a decoded frame, or null at the end, for each output and encode the results */
+    void resampleFrame (AVFrame frame, AVPacket output_packet) {
+        for (SwrResampler r : resamplers) {
+            r.convert(frame, output_packet);
+        }
+    }
+
+    /*
+     * Send a packet to the decoder, or null to flush it, and push every decoded frame into
+     * the filtergraph, or the resamplers, encoding whatever comes out the other end.
+     */
+    void decodePacket (AVPacket packet, AVFrame frame, AVFrame filt_frame, AVPacket output_packet) {
+        long t = clock();
+        int ret = avcodec_send_packet(dec_ctx, packet);
+
+        lap(DECODE, t);
+
+        if (ret < 0) {
+            throw new RuntimeException("Error while sending a packet to the decoder: " + my_av_err2str(ret));
+        }
+
+        while (true) {
+            t = clock();
+            ret = avcodec_receive_frame(dec_ctx, frame);
+            lap(DECODE, t);
+
+            if (ret == AvError.EAGAIN || ret == AVERROR_EOF) {
+                break;
+            }
+            else if (ret < 0) {
+                throw new RuntimeException("Error while receiving frame from the decoder");
+            }
+            if (stats != null) {
+                stats.count(FRAMES_DECODED, 1);
+                stats.count(SAMPLES_DECODED, frame.nb_samples());
+            }
+
+            try {
+                if (resamplers != null) {
+                    resampleFrame(frame, output_packet);
+                }
+                else {
+                    filterFrame(filters, outputs, frame, filt_frame, output_packet);
+                }
+            }
+            finally {
+                av_frame_unref(frame);
+            }
+        }
+    }
+
+    /* Whether the Java engine decimates an input codec, instead of ffmpeg decoding it */
+    static boolean javaDsd (String codec_name) {
+        return dsd_engine.equals("java") && DsdDecimator.decodes(codec_name);
+    }
+
+    /*
+     * A Java decimator for the input, down to a rate at least as high as any output's, or
+     * null if ffmpeg is to decode it. Its channels are only split between threads where
+     * the session was given more than one.
+     */
+    DsdDecimator dsdDecimator (Job job) {
+        int max_sr = 0;
+
+        if ( !javaDsd( job.decoder() ) ) {
+            return null;
+        }
+        for (Output o : outputs) {
+            max_sr = Math.max(max_sr, o.out_sr);
+        }
+        return new DsdDecimator(job.codec_name, dec_ctx.channels(), dec_ctx.sample_rate() * 8, max_sr, threads > 1);
+    }
+
+    /*
+     * Decimate a packet of raw DSD in Java, or null to flush the filters, and push the PCM
+     * into the resamplers or the filtergraph, as decodePacket() does with a decoded frame.
+     */
+    void decimatePacket (DsdDecimator dsd, AVPacket packet, AVFrame frame, AVFrame filt_frame, AVPacket output_packet) {
+        long t = clock();
+        int size = packet != null ? packet.size() : dsd.flushSize(),
+            max = dsd.maxOutput(size),
+            n;
+
+        if (dsd_in.length < size) {
+            dsd_in = new byte[size];
+        }
+        if (dsd_out == null || dsd_out[0].length < max) {
+            dsd_out = new float[dsd.channels][max];
+        }
+        if (packet != null) {
+            packet.data().get(dsd_in, 0, size);
+            n = dsd.decimate(dsd_in, size, dsd_out);
+        }
+        else {
+            n = dsd.flush(dsd_out);
+        }
+        if (n == 0) {
+            lap(DECODE, t);
+            return;
+        }
+
+        frame.format(AV_SAMPLE_FMT_FLTP);
+        frame.channels(dsd.channels);
+        frame.channel_layout( dec_ctx.channel_layout() );
+        frame.sample_rate(dsd.out_rate);
+        frame.nb_samples(n);
+        check( av_frame_get_buffer(frame, 0) );
+
+        for (int c = 0; c < dsd.channels; c++) {
+            new FloatPointer( frame.extended_data(c) ).put(dsd_out[c], 0, n);
+        }
+        frame.pts( av_rescale_q(dsd_samples, av_make_q(1, dsd.out_rate), inp_fmt_ctx.streams(audio_stream_index).time_base()) );
+        dsd_samples += n;
+        lap(DECODE, t);
+
+        if (stats != null) {
+            stats.count(FRAMES_DECODED, 1);
+            stats.count(SAMPLES_DECODED, n);
+        }
+
+        try {
+            if (resamplers != null) {
+                resampleFrame(frame, output_packet);
+            }
+            else {
+                filterFrame(filters, outputs, frame, filt_frame, output_packet);
+            }
+        }
+        finally {
+            av_frame_unref(frame);
+        }
+    }
+
+    /*
+     * Push the audio data from a frame into a filtergraph, or null at the end of the input,
+     * and encode all of the filtered audio that's ready for each of the graph's outputs.
+     */
+    void filterFrame (AudioFilterGraph graph, List<Output> outs, AVFrame frame, AVFrame filt_frame,
+                      AVPacket output_packet) {
+        long t = clock();
+
+        if (av_buffersrc_add_frame_flags(graph.src, frame, AV_BUFFERSRC_FLAG_KEEP_REF) < 0) {
+            throw new RuntimeException("Error while feeding the audio filtergraph");
+        }
+        lap(FILTER, t);
+
+        /* Pull filtered audio from the filtergraph */
+        for (int i = 0; i < outs.size(); i++) {
+            while (true) {
+                t = clock();
+                int ret = av_buffersink_get_frame(graph.sinks[i], filt_frame);
+                lap(FILTER, t);
+
+                if (ret == AvError.EAGAIN || ret == AVERROR_EOF) {
+                    break;
+                }
+                if (ret < 0) {
+                    throw new RuntimeException("Couldn't get frame from filtergraph");
+                }
+                if (stats != null) {
+                    stats.count(FRAMES_FILTERED, 1);
+                    stats.count(SAMPLES_FILTERED, filt_frame.nb_samples());
+                }
+
+                try {
+                    if (outs.get(i).spool != null) {
+                        outs.get(i).spool.write(filt_frame);
+                    }
+                    else {
+                        encodeFrame(outs.get(i), filt_frame, output_packet);
+                    }
+                }
+                finally {
+                    av_frame_unref(filt_frame);
+                }
+            }
+        }
+    }
+
+    /*
+     * Send a filtered frame to an output's encoder, or null to flush it, and write every
+     * packet it gives back to the output file.
+     */
+    void encodeFrame (Output o, AVFrame filt_frame, AVPacket output_packet) {
+        int ret;
+
+        if (filt_frame != null) {
+            filt_frame.pts( o.pts );
+            o.pts += filt_frame.nb_samples();
+        }
+
+        long t = clock();
+
+        check( avcodec_send_frame(o.enc_ctx, filt_frame) );
+        lap(ENCODE, t);
+
+        while (true) {
+            /* The encoder unrefs the packet before filling it, so it needs no resetting */
+            t = clock();
+            ret = avcodec_receive_packet(o.enc_ctx, output_packet);
+            lap(ENCODE, t);
+
+            if (ret == AvError.EAGAIN || ret == AVERROR_EOF) {
+                break;
+            }
+            if (ret < 0) {
+                throw new RuntimeException("Couldn't read data from the encoder");
+            }
+            if (stats != null) {
+                stats.count(PACKETS_OUT, 1);
+                stats.count(BYTES_OUT, output_packet.size());
+            }
+
+            /* Write one audio frame from the encoded packet to the output file. */
+            try {
+                t = clock();
+                check( av_write_frame(o.out_fmt_ctx, output_packet) );
+                lap(WRITE, t);
+
+                if (first_write_ns.get() == 0) {
+                    first_write_ns.compareAndSet( 0, System.nanoTime() );
+                }
+            }
+            finally {
+                av_packet_unref(output_packet);
+            }
+        }
+    }
+
+    /*
+     * Whether a conversion could carry on from a checkpoint: the decoder has to seek sample
+     * accurately, and the outputs have to be PCM, where the encoded audio so far is just the
+     * bytes after a header that always comes out the same.
+     */
+    static boolean checkpointable (Job job) {
+        if ( checkpoint_every <= 0 || stager != null || !SegmentedTranscode.seekable( job.decoder() ) || javaDsd( job.decoder() ) ) {
+            return false;
+        }
+        for (Output o : job.encoded()) {
+            /* Outputs of the Transcoder API aren't in the manifest, and don't resume; nor do auto gain outputs */
+            if ( o.entry == null || o.target.autoGain() || (!o.target.ext.equals("wav") && !o.target.ext.equals("aiff")) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Whether the outputs are carrying on from the checkpoints of an interrupted conversion */
+    boolean resuming () {
+        return !outputs.isEmpty() && outputs.get(0).resume != null;
+    }
+
+    /* Every so often, journal how many samples and bytes of each output have been written */
+    void checkpoint (Job job) {
+        if ( System.nanoTime() < next_checkpoint ) {
+            return;
+        }
+        next_checkpoint = System.nanoTime() + (long) (checkpoint_every * 1e9);
+
+        try {
+            for (Output o : outputs) {
+                avio_flush( o.out_fmt_ctx.pb() );
+                manifest.checkpoint( o.entry, o.pts, avio_tell(o.out_fmt_ctx.pb()) );
+            }
+        }
+        catch (IOException e) {
+            log("Couldn't journal a checkpoint: " + e.getMessage());
+        }
+    }
+
+    /* Transcode the already-open infile, writing each of the job's active outputs */
+    void transcode (Job job) throws IOException {
+        /* Allocated once and reused for every packet and frame of the file */
+        AVPacket input_packet   = scope.own( av_packet_alloc(), p -> av_packet_free(p) ),
+                 output_packet  = scope.own( av_packet_alloc(), p -> av_packet_free(p) );
+        AVFrame frame           = scope.own( av_frame_alloc(), f -> av_frame_free(f) ),
+                filt_frame      = scope.own( av_frame_alloc(), f -> av_frame_free(f) );
+        int ret                 = 0;
+
+         if (input_packet.isNull() || output_packet.isNull() || frame.isNull() || filt_frame.isNull()) {
+             throw new RuntimeException("Could not allocate frame");
+         }
+
+         outputs = job.encoded();
+
+         boolean pipelined = pipelined();
+
+         if (pipeline && !pipelined) {
+             log("Not pipelining, which takes " + PipelinedTranscode.threads( outputs.size() ) + " threads, with " + threads);
+         }
+
+         /* DSD decoded by ffmpeg in one go is kept in the PCM cache, as another output */
+         if ( pcm_cache != null && job.cached == null && source == null && PcmCache.worth(job.codec_name)
+              && !javaDsd(job.codec_name) && !resuming() && !pipelined && !SegmentedTranscode.worth(this, job) ) {
+             cache_out = pcm_cache.output( infile, dec_ctx.sample_rate() );
+             outputs.add(cache_out);
+             log("Keeping the decoded audio in the PCM cache, at " + cache_out.out_sr + " Hz");
+         }
+
+         for (Output o : outputs) {
+             log("Opening output file: " + o.outfile_path);
+             openOutputFile(o);
+
+             if ( dither != null && !dither.equals( SwrResampler.ditherFor(o) ) ) {
+                 log("Dithering " + o.outfile_path + " with " + SwrResampler.ditherFor(o) + ", as " + dither + " only works for 16 bit output");
+             }
+
+             /* Write the header of the output file container. */
+             check( avformat_write_header(o.out_fmt_ctx, (AVDictionary) null) );
+
+             /* The header comes out the same, so the audio carries on where the checkpoint left it */
+             if (o.resume != null) {
+                 if (avio_seek(o.out_fmt_ctx.pb(), o.resume.bytes, 0 /* SEEK_SET */) < 0) {
+                     throw new RuntimeException("Couldn't seek to the checkpoint in " + o.partPath());
+                 }
+                 o.pts = o.resume.samples;
+             }
+         }
+         if ( checkpointable(job) && cache_out == null ) {
+             next_checkpoint = System.nanoTime() + (long) (checkpoint_every * 1e9);
+         }
+
+         /* Audio that has to be measured for its gain is held back, which only the plain path does */
+         boolean measuring = prepareGains();
+
+         if ( resuming() ) {
+             new SegmentedTranscode(this, job, true).run(filt_frame, output_packet);
+         }
+         else if ( !measuring && SegmentedTranscode.worth(this, job) ) {
+             new SegmentedTranscode(this, job).run(filt_frame, output_packet);
+         }
+         else if (pipelined && !measuring) {
+             initFilters();
+             new PipelinedTranscode(this).run(filt_frame, output_packet);
+         }
+         else {
+             DsdDecimator dsd = dsdDecimator(job);
+
+             /* The resamplers or filters take the decimator's PCM in place of the decoder's */
+             if (dsd != null) {
+                 if (dec_ctx.channel_layout() == 0) {
+                     dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
+                 }
+                 dec_ctx.sample_rate(dsd.out_rate);
+                 dec_ctx.sample_fmt(AV_SAMPLE_FMT_FLTP);
+                 log("Decimating DSD by " + dsd.factor + " in Java, to " + dsd.out_rate + " Hz");
+             }
+             if ( SwrResampler.eligible(outputs) ) {
+                 initResamplers();
+             }
+             else {
+                 initFilters();
+             }
+
+             log("Transcoding...");
+             /* Read all packets */
+             while ( (ret = readPacket(input_packet)) >= 0 ) {
+                 try {
+                     if (input_packet.stream_index() == audio_stream_index) {
+                         if (dsd != null) {
+                             decimatePacket(dsd, input_packet, frame, filt_frame, output_packet);
+                         }
+                         else {
+                             decodePacket(input_packet, frame, filt_frame, output_packet);
+                         }
+                         checkpoint(job);
+                     }
+                 }
+                 finally {
+                     av_packet_unref(input_packet);
+                 }
+             }
+
+             /* Report read errors other than reaching the end of the file */
+             if (ret != AVERROR_EOF) {
+                 throw new RuntimeException("Error occurred: " + my_av_err2str(ret));
+             }
+
+             /* Flush the decoder, then whatever the filters or resamplers are holding on to */
+             if (dsd != null) {
+                 decimatePacket(dsd, null, frame, filt_frame, output_packet);
+             }
+             else {
+                 decodePacket(null, frame, filt_frame, output_packet);
+             }
+
+             if (resamplers != null) {
+                 resampleFrame(null, output_packet);
+             }
+             else {
+                 filterFrame(filters, outputs, null, filt_frame, output_packet);
+             }
+
+             for (Output o : outputs) {
+                 if (o.spool != null) {
+                     replaySpool(o, frame, filt_frame, output_packet);
+                 }
+             }
+         }
+
+         for (Output o : outputs) {
+             /* Flush the encoder */
+             encodeFrame(o, null, output_packet);
+
+             /* Write the trailer of the output file container. */
+             check( av_write_trailer(o.out_fmt_ctx) );
+         }
+    }
+
+    /*
+     * Work out what converting the session's file to each target involves: the output rate
+     * and path, and the estimated cost. If the manifest knows the source is unchanged and all
+     * of its outputs exist, it is skipped without touching ffmpeg. Outputs which won't be
+     * produced carry a skip reason.
+     */
+    Job probe () throws IOException {
+        Path op                 = OUT_PATH.resolve(infile).normalize();
+        Job job                 = new Job(infile);
+        boolean all_unchanged   = true;
+
+        for (Target t : targets) {
+            Manifest.Entry prev = manifest.get(infile, t.key());
+            Output o            = new Output(t);
+
+            if (prev != null && !manifest.unchanged(prev, infile, job::hash)) {
+                log("Source changed since last run.");
+                o.stale_outfile = prev.outfile_path;
+            }
+            if ( prev == null || o.stale_outfile != null || !new File(prev.outfile_path).exists() ) {
+                all_unchanged = false;
+            }
+            else {
+                o.outfile_path = prev.outfile_path;
+                o.out_sr = prev.out_sr;
+            }
+            job.outputs.add(o);
+        }
+
+        if (all_unchanged) {
+            for (Output o : job.outputs) {
+                o.skip_reason = "unchanged since last run";
+            }
+            return job;
+        }
+
+         try {
+             Map<String, Integer> names = new HashMap<String, Integer>();
+             Set<String> taken = new HashSet<String>();
+
+             probeInput(job);
+
+             /* The rates first, as targets which come to the same rate would get the same name */
+             for (Output o : job.outputs) {
+                 if ( outputRate(o) ) {
+                     names.merge( outputName(o, op, ""), 1, Integer::sum );
+                 }
+             }
+             for (Output o : job.outputs) {
+                 if (o.skip_reason == null) {
+                     probeOutput(job, o, op, names, taken);
+                 }
+             }
+             /* Again, now that it's known whether there's anything to encode */
+             job.estimateCost();
+             resumeFrom(job);
+             job.max_threads = wantedThreads(job);
+             return job;
+         }
+         /* Cleanup */
+         finally {
+             scope.close();
+         }
+    }
+
+    /*
+     * Probe the session's file for a single output to the given path, without the manifest,
+     * for the Transcoder API. The output is replaced if it exists.
+     */
+    Job probe (Target t, Path outfile) throws IOException {
+        Job job     = new Job(infile);
+        Output o    = new Output(t);
+
+        job.outputs.add(o);
+
+         try {
+             probeInput(job);
+
+             if ( outputRate(o) ) {
+                 o.outfile_path = outfile.toString();
+                 o.passthrough = passthrough(o);
+             }
+             job.estimateCost();
+             job.max_threads = wantedThreads(job);
+             return job;
+         }
+         finally {
+             scope.close();
+         }
+    }
+
+    /*
+     * Convert the session's streamed input to a single streamed output, for the Transcoder
+     * API. A stream can only be read once, so the input is probed and converted without
+     * being opened again, and the output goes out as it's encoded.
+     */
+    Job stream (Target t, WritableByteChannel sink) throws IOException {
+        Job job     = new Job(infile);
+        Output o    = new Output(t);
+
+        job.outputs.add(o);
+        o.outfile_path = infile_path;
+        o.sink = sink;
+
+         try {
+             probeInput(job);
+
+             if ( !outputRate(o) ) {
+                 throw new IllegalArgumentException("Can't convert " + infile_path + ": " + o.skip_reason);
+             }
+             transcode(job);
+
+             /* Only now is the stream's length known, from what was decoded at the decoder's rate */
+             if (stats != null) {
+                 job.duration = (double) stats.counters.get(SAMPLES_DECODED) / dec_ctx.sample_rate();
+             }
+         }
+         catch (RuntimeException e) {
+             /* ffmpeg only sees an error code, so report what the channel threw */
+             if (source_io != null) {
+                 source_io.checkError();
+             }
+             if (o.sink_io != null) {
+                 o.sink_io.checkError();
+             }
+             throw e;
+         }
+         finally {
+             scope.close();
+         }
+         return job;
+    }
+
+    /* Open the input and fill in what the job needs to know about it */
+    void probeInput (Job job) throws IOException {
+        log("Probing input file: " + infile_path);
+        openInputFile(infile_path);
+
+        job.codec_name = dec_ctx.codec().name().getString();
+        job.sample_rate = dec_ctx.sample_rate();
+
+        if ( pcm_cache != null && source == null && PcmCache.worth(job.codec_name) ) {
+            job.cached = pcm_cache.lookup(infile);
+        }
+        job.max_threads = usableThreads(job);
+
+        if (inp_fmt_ctx.duration() != AV_NOPTS_VALUE) {
+            job.duration = (double) inp_fmt_ctx.duration() / AV_TIME_BASE;
+        }
+        /* A stream's length isn't known until it's been read */
+        else if (source != null) {
+            job.duration = 0;
+        }
+        /* Fall back to the bit rate, and failing that, to the size of a CD quality file */
+        else if (inp_fmt_ctx.bit_rate() > 0) {
+            job.duration = Files.size(infile) * 8.0 / inp_fmt_ctx.bit_rate();
+        }
+        else {
+            job.duration = Files.size(infile) / 176400.0;
+        }
+        job.estimateCost();
+    }
+
+    /*
+     * Find where an interrupted conversion of the job got to. It only carries on from there
+     * if every output was checkpointed and its part file still has everything up to the
+     * checkpoint; otherwise it starts over.
+     */
+    void resumeFrom (Job job) throws IOException {
+        List<Output> active = job.encoded();
+        boolean all = !active.isEmpty() && checkpointable(job);
+
+        for (Output o : active) {
+            o.resume = manifest.resumePoint(o.entry);
+
+            if ( o.resume == null || !Files.exists(o.partPath()) || Files.size(o.partPath()) < o.resume.bytes ) {
+                all = false;
+            }
+        }
+        if (all) {
+            log(String.format(
+                "Carrying on from a checkpoint at %.1f s.", (double) active.get(0).resume.samples / active.get(0).out_sr
+            ));
+            return;
+        }
+        for (Output o : active) {
+            o.resume = null;
+        }
+    }
+
+    /* The path of an output at its rate, with anything more to tell it apart */
+    String outputName (Output o, Path op, String extra) {
+        return filenameConv(op, "_ff" + (o.out_sr / 1000) + "k" + extra, o.target.ext);
+    }
+
+    /*
+     * Work out the path of one output of the open input, once its rate is known. Where other
+     * targets come to the same name (given by how many use each, in names), one with a volume
+     * adjust has it added to its name. Of any which still come to a name already taken, only
+     * the first is made.
+     */
+    void probeOutput (Job job, Output o, Path op, Map<String, Integer> names, Set<String> taken) throws IOException {
+        o.outfile_path = outputName(o, op, "");
+
+        if ( names.get(o.outfile_path) > 1 && o.target.vol.length() > 0 ) {
+            o.outfile_path = outputName( o, op, "_" + (o.target.autoGain() ? "auto" : o.target.vol + "dB") );
+        }
+        if ( !taken.add(o.outfile_path) ) {
+            o.skip_reason = "another target makes the same output file";
+            return;
+        }
+        o.passthrough = passthrough(o);
+        o.entry = manifest.describe(infile, o.target.key(), job::hash);
+        o.entry.sample_rate   = dec_ctx.sample_rate();
+        o.entry.bits          = inputBits();
+        o.entry.out_sr        = o.out_sr;
+        o.entry.outfile_path  = o.outfile_path;
+
+        /* An output made from an older version of the source will be replaced */
+        if ( new File(o.outfile_path).exists() && !o.outfile_path.equals(o.stale_outfile) ) {
+            o.skip_reason = "output file already exists";
+            manifest.put(o.entry);
+        }
+    }
+
+    /* Work out the sample rate of one output of the open input, or why it can't be produced */
+    boolean outputRate (Output o) {
+        int lowest_factor       = 0;
+
+        /* If user appended an "m" for "maximum" to the end of
+         * the sample rate param, find nearest even multiple of
+         * this infile's sample rate
+         */
+        if ( o.target.maxMode() ) {
+            log("Maximum sample rate specified for output. Recalculating destination sample rate");
+
+            /* Get lowest factor from infile sr and skip this output on error */
+            if ( (lowest_factor = findLowestFactor(dec_ctx.sample_rate())) == 0 ) {
+                o.skip_reason = "unsupported input sample rate " + dec_ctx.sample_rate();
+                return false;
+            }
+            o.out_sr = recalcSR(o.target.args_sr, dec_ctx.sample_rate(), lowest_factor);
+        }
+        else {
+            o.out_sr = Integer.parseInt(o.target.args_sr);
+        }
+        return true;
+    }
+
+    /* Convert the session's file to the outputs planned by probe() */
+    void conv (Job job) throws IOException {
+        boolean done = false;
+
+        /* Duplicates of outputs which weren't made are converted after all */
+        for (Output o : job.active()) {
+            if ( o.dedup_from != null && !Files.exists(Paths.get(o.dedup_from)) ) {
+                log("The duplicate output " + o.dedup_from + " wasn't made, converting instead.");
+                o.dedup_from = null;
+            }
+        }
+
+        for (Output o : job.active()) {
+            /* Staged outputs leave the destination alone until they're copied there. Copies needn't be staged. */
+            if (stager != null && o.entry != null && !o.passthrough && o.dedup_from == null) {
+                o.staged_path = stager.stage(o).toString();
+                continue;
+            }
+
+            /* Outputs made from an older version of the source are stale */
+            if (o.stale_outfile != null) {
+                log("Removing stale output " + o.stale_outfile);
+                Files.deleteIfExists( Paths.get(o.stale_outfile) );
+            }
+
+            /* Output directories are only created for files actually produced */
+            Files.createDirectories( Paths.get(o.outfile_path).getParent() );
+
+            /* Anything past the checkpoint is rewritten */
+            if (o.resume != null) {
+                try (FileChannel part = FileChannel.open(o.partPath(), StandardOpenOption.WRITE)) {
+                    part.truncate(o.resume.bytes);
+                }
+            }
+            else if (o.entry != null) {
+                manifest.dropCheckpoint(o.entry);
+            }
+        }
+
+         try {
+             for (Output o : job.active()) {
+                 if (o.passthrough) {
+                     copyInput(o);
+                 }
+                 else if ( o.dedup_from != null && !dedup.link(this, o) ) {
+                     throw new IOException("The duplicate output " + o.dedup_from + " has gone");
+                 }
+             }
+
+             /* The input is only decoded if there's something to encode */
+             if ( !job.encoded().isEmpty() ) {
+                 if (threads > 1) {
+                     log("Converting with up to " + threads + " threads");
+                 }
+                 /* The cached audio may have been evicted since the job was planned */
+                 if ( job.cached != null && !Files.exists(job.cached) ) {
+                     log("The cached audio has gone, decoding the input instead");
+                     job.cached = null;
+                 }
+                 log("Opening input file: " + inputPath(job) + (job.cached != null ? " (cached audio of " + infile_path + ")" : ""));
+                 openInputFile( inputPath(job) );
+                 transcode(job);
+             }
+             /* In a shared run, the outputs only go into place if the file is still this worker's */
+             if (shared != null) {
+                 shared.check(job);
+             }
+             done = true;
+         }
+         /* Cleanup, whether or not the conversion succeeded */
+         finally {
+             scope.close();
+             log("Native memory: " + NativeScope.usage());
+
+             /* A failed conversion starts over next time */
+             if (!done) {
+                 for (Output o : job.active()) {
+                     Files.deleteIfExists( o.staged_path != null ? Paths.get(o.staged_path) : o.partPath() );
+
+                     if (o.entry != null) {
+                         manifest.dropCheckpoint(o.entry);
+                     }
+                 }
+                 if (cache_out != null) {
+                     pcm_cache.abandon(cache_out);
+                 }
+             }
+         }
+
+         /* The outputs are closed now, so they can be moved into place, or staged ones copied there */
+         for (Output o : job.active()) {
+             if (o.staged_path != null) {
+                 try {
+                     stager.commit(this, job, o);
+                 }
+                 catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new InterruptedIOException("Interrupted waiting for the staged output writers");
+                 }
+             }
+             else {
+                 o.commitPart();
+
+                 if (o.entry != null) {
+                     manifest.record(o.entry);
+                 }
+             }
+         }
+
+         /* The outputs don't depend on the cache, so they stand even if it can't be written */
+         if (cache_out != null) {
+             try {
+                 pcm_cache.commit(cache_out);
+             }
+             catch (IOException e) {
+                 log("Couldn't keep the decoded audio in the PCM cache: " + e.getMessage());
+                 pcm_cache.abandon(cache_out);
+             }
+         }
+    }
+}
@@ -0,0 +1,73 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Timings and counters for one input file. Stage times are the nanoseconds spent in the
+ * ffmpeg calls for that stage, summed over every thread working on the file, so with
+ * segments or a pipeline they can add up to more than the wall clock time.
+ *
+ * Sessions only keep stats when a report or a JFR recording wants them; otherwise the
+ * reference is null and the hot loops skip the clock altogether.
+ *
+ * @author Kevin Witmer
+ */
+class TranscodeStats {
+    /* Stages */
+    static final int READ               = 0;
+    static final int DECODE             = 1;
+    static final int FILTER             = 2;
+    static final int ENCODE             = 3;
+    static final int WRITE              = 4;
+    static final String[] STAGES        = { "read", "decode", "filter", "encode", "write" };
+
+    /* Counters */
+    static final int PACKETS_IN         = 0;
+    static final int BYTES_IN           = 1;
+    static final int FRAMES_DECODED     = 2;
+    static final int SAMPLES_DECODED    = 3;
+    static final int FRAMES_FILTERED    = 4;
+    static final int SAMPLES_FILTERED   = 5;
+    static final int PACKETS_OUT        = 6;
+    static final int BYTES_OUT          = 7;
+    static final String[] COUNTERS      = {
+        "packets_in", "bytes_in", "frames_decoded", "samples_decoded",
+        "frames_filtered", "samples_filtered", "packets_out", "bytes_out"
+    };
+
+    final AtomicLongArray stage_ns      = new AtomicLongArray(STAGES.length);
+    final AtomicLongArray counters      = new AtomicLongArray(COUNTERS.length);
+    /* Wall clock time of the probe and of the conversion */
+    volatile long probe_ns              = 0;
+    volatile long conv_ns               = 0;
+
+    /* Add the time since t0, from System.nanoTime(), to a stage */
+    void lap (int stage, long t0) {
+        stage_ns.addAndGet(stage, System.nanoTime() - t0);
+    }
+
+    void count (int counter, long n) {
+        counters.addAndGet(counter, n);
+    }
+
+    /* Seconds of audio converted per second, or 0 if nothing was converted */
+    double realtime (double duration) {
+        return conv_ns > 0 ? duration / (conv_ns / 1e9) : 0;
+    }
+}
@@ -0,0 +1,194 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * Converts files in process, for applications which would rather keep one JVM with ffmpeg
+ * loaded than run the command line once per file. Requests are converted by a fixed number
+ * of threads, with a limit on how many can wait for one, and each one completes a future
+ * with the result, or with the exception it failed with.
+ *
+ * Each request goes through the same probing and conversion as a file of a batch, but
+ * without the manifest: the output is always written, to the path given. The resampling,
+ * segment, pipeline and I/O settings are the ones in Xbart's public fields, and the requests
+ * being converted share Xbart.cores between them, as the files of a batch do. Streamed
+ * requests are read and written through their channels, and are never split into segments.
+ *
+ * @author Kevin Witmer
+ */
+public class Transcoder implements AutoCloseable {
+    /* Requests which can wait for a thread, per thread, by default */
+    static final int QUEUE_PER_THREAD   = 64;
+
+    /* Stands in for the file name of streamed requests, in the log */
+    static final Path STREAM            = Paths.get("-");
+
+    static boolean initialized          = false;
+
+    final ThreadPoolExecutor pool;
+    /* Shared between the requests being converted, as the files of a batch share it */
+    final CoreBudget budget;
+
+    /* One thread per core */
+    public Transcoder () {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    public Transcoder (int threads) {
+        this(threads, threads * QUEUE_PER_THREAD);
+    }
+
+    /* Requests beyond queue_limit waiting for a thread fail with a RejectedExecutionException */
+    public Transcoder (int threads, int queue_limit) {
+        final AtomicInteger n = new AtomicInteger();
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("A transcoder needs at least one thread");
+        }
+        if (queue_limit < 0) {
+            throw new IllegalArgumentException("The queue limit can't be negative");
+        }
+        init();
+        budget = new CoreBudget(Xbart.cores);
+        pool = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            queue_limit > 0 ? new ArrayBlockingQueue<Runnable>(queue_limit) : new SynchronousQueue<Runnable>(),
+            r -> {
+                Thread t = new Thread(r, "xbart-transcoder-" + n.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        );
+    }
+
+    /*
+     * Load and register ffmpeg, once per process, and look up the encoders of every output
+     * type ahead of the first file. Registration isn't safe to race.
+     */
+    static synchronized void init () {
+        if (!initialized) {
+            av_register_all();
+            avfilter_register_all();
+
+            for (int id : TranscodeSession.ENCODERS.values()) {
+                TranscodeSession.findEncoder(id);
+            }
+            initialized = true;
+        }
+    }
+
+    /* Queue a conversion, returning the future of its result */
+    public CompletableFuture<TranscodeResult> submit (final TranscodeRequest request) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return transcode(request);
+                }
+                catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, pool);
+        }
+        catch (RejectedExecutionException e) {
+            CompletableFuture<TranscodeResult> f = new CompletableFuture<TranscodeResult>();
+
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
+    /* Convert a file on the calling thread */
+    public TranscodeResult transcode (TranscodeRequest request) throws IOException {
+        Job job;
+        long t = System.nanoTime();
+
+        init();
+
+        if ( request.streamed() ) {
+            return stream(request);
+        }
+        job = new TranscodeSession(request.source).probe(request.target, request.output);
+        job.stats = new TranscodeStats();
+        job.stats.probe_ns = System.nanoTime() - t;
+
+        if ( job.active().isEmpty() ) {
+            throw new IllegalArgumentException( "Can't convert " + request.source + ": " + job.outputs.get(0).skip_reason );
+        }
+
+        TranscodeSession session = new TranscodeSession(request.source);
+        int n = budget.claim( job.max_threads, pool.getQueue().size(), pool.getMaximumPoolSize() - pool.getActiveCount() );
+
+        t = System.nanoTime();
+        session.stats = job.stats;
+        session.threads = n;
+        job.threads = n;
+
+        try {
+            session.conv(job);
+        }
+        finally {
+            budget.release(n);
+        }
+        job.stats.conv_ns = System.nanoTime() - t;
+        return new TranscodeResult(request, job);
+    }
+
+    /* Convert a streamed request, probing it along the way */
+    TranscodeResult stream (TranscodeRequest request) throws IOException {
+        TranscodeSession session = new TranscodeSession(STREAM);
+        Job job;
+        long t = System.nanoTime();
+
+        session.source = request.in;
+        session.stats = new TranscodeStats();
+        job = session.stream(request.target, request.out);
+        job.stats = session.stats;
+        job.stats.conv_ns = System.nanoTime() - t;
+        return new TranscodeResult(request, job);
+    }
+
+    /* Requests waiting for a thread, and being converted */
+    public int pending () {
+        return pool.getQueue().size() + pool.getActiveCount();
+    }
+
+    /*
+     * Let the queued requests finish, then stop the threads. If the caller is interrupted
+     * while waiting, this returns at once with its interrupt status set, and the requests
+     * carry on.
+     */
+    @Override
+    public void close () {
+        pool.shutdown();
+
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import static clone206.xbart.Xbart.*;
+
+/**
+ * Watch mode: keeps the JVM and ffmpeg loaded after the first batch, and converts files as
+ * they turn up in the source tree instead of rescanning it. Every directory is registered
+ * with a WatchService, including ones created later. A file is only converted once its
+ * size and date have stopped changing for the settle time, so copies still in progress are
+ * left alone. Whatever has settled is probed and converted as a batch like any other, so
+ * the manifest still decides what's new or changed.
+ *
+ * @author Kevin Witmer
+ */
+class Watcher {
+    /* How often pending files are checked while any are waiting to settle */
+    static final long POLL_MS   = 250;
+
+    final Path root;
+    final long settle_ns;
+    final WatchService service;
+    /* The directory each watch key belongs to */
+    final Map<WatchKey, Path> dirs      = new HashMap<WatchKey, Path>();
+    /* Files seen changing, in the order they turned up */
+    final Map<Path, Pending> pending    = new LinkedHashMap<Path, Pending>();
+
+    /* A file waiting to settle: its size and date when last checked, and when they last changed */
+    static class Pending {
+        long size       = -1;
+        long mtime      = -1;
+        long since;
+    }
+
+    Watcher (Path root, long settle_ns) throws IOException {
+        this.root = root;
+        this.settle_ns = settle_ns;
+        this.service = root.getFileSystem().newWatchService();
+    }
+
+    /* Watch for and convert new files until the process is stopped */
+    void run () throws IOException, InterruptedException {
+        /* Nothing else saves the manifest once the batch is over */
+        Runtime.getRuntime().addShutdownHook( new Thread(() -> {
+            try {
+                manifest.save();
+            }
+            catch (IOException e) {
+                System.err.println("Couldn't save the manifest: " + e.getMessage());
+            }
+        }) );
+
+        register(root, false);
+        System.err.println("Watching " + dirs.size() + " directories for new files. Stop with Ctrl-C.");
+
+        while (true) {
+            /* Block until something happens, unless files are waiting to settle */
+            WatchKey key = pending.isEmpty() ? service.take() : service.poll(POLL_MS, TimeUnit.MILLISECONDS);
+
+            while (key != null) {
+                handle(key);
+                key = service.poll();
+            }
+
+            List<Path> ready = settled();
+
+            if ( !ready.isEmpty() ) {
+                try {
+                    runBatch(ready);
+                }
+                finally {
+                    manifest.save();
+                }
+                System.err.println("Watching for new files.");
+            }
+        }
+    }
+
+    /*
+     * Watch a directory and everything below it. Directories which turn up after watching has
+     * started may already have files in them, so those are queued as well.
+     */
+    void register (Path dir, final boolean queue_files) throws IOException {
+        final Path out = OUT_PATH.toAbsolutePath().normalize();
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory (Path d, BasicFileAttributes attrs) throws IOException {
+                /* Outputs written below the source tree mustn't be converted again */
+                if ( d.toAbsolutePath().normalize().startsWith(out) ) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dirs.put( d.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile (Path f, BasicFileAttributes attrs) {
+                if ( queue_files && supported(f) ) {
+                    touch(f);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed (Path f, IOException e) {
+                /* Gone again already, or unreadable; either way there's nothing to watch */
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /* Queue up the files changed in a directory */
+    void handle (WatchKey key) throws IOException {
+        Path dir = dirs.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                /* Events were lost, so look at everything again. The manifest skips what's unchanged. */
+                System.err.println("Too many changes at once, rescanning.");
+                register(root, true);
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path p = dir.resolve( (Path) event.context() );
+
+            if (event.kind() == ENTRY_DELETE) {
+                pending.remove(p);
+            }
+            else if ( Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS) ) {
+                if (event.kind() == ENTRY_CREATE) {
+                    register(p, true);
+                }
+            }
+            else if ( supported(p) ) {
+                touch(p);
+            }
+        }
+
+        /* The directory is gone */
+        if ( !key.reset() ) {
+            dirs.remove(key);
+        }
+    }
+
+    /* Note that a file has changed, restarting its settle time */
+    void touch (Path p) {
+        Pending f = pending.get(p);
+
+        if (f == null) {
+            pending.put(p, f = new Pending());
+        }
+        f.since = System.nanoTime();
+    }
+
+    /* Take the files whose size and date haven't changed for the settle time */
+    List<Path> settled () {
+        List<Path> ready = new ArrayList<Path>();
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+
+        while ( it.hasNext() ) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending f = e.getValue();
+            long size, mtime;
+
+            try {
+                size = Files.size( e.getKey() );
+                mtime = Files.getLastModifiedTime( e.getKey() ).toMillis();
+            }
+            catch (IOException ex) {
+                /* Removed or renamed before it settled */
+                it.remove();
+                continue;
+            }
+
+            if (size != f.size || mtime != f.mtime) {
+                f.size = size;
+                f.mtime = mtime;
+                f.since = now;
+            }
+            else if (now - f.since >= settle_ns) {
+                ready.add( e.getKey() );
+                it.remove();
+            }
+        }
+        return ready;
+    }
+}
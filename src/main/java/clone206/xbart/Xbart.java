@@ -17,9 +17,14 @@
 package clone206.xbart;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.*;
 import java.nio.file.*;
 import org.bytedeco.javacpp.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.*;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avcodec.AVCodecContext.FF_COMPLIANCE_EXPERIMENTAL;
@@ -45,29 +50,92 @@ public class Xbart {
         .relativize( Paths.get(System.getProperty("user.dir")) );
     /* The output bit rate in kbit/s, applies to mp3 only for now */
     public static final int OUTPUT_BIT_RATE = 320000;
+    /*
+     * AVERROR(EAGAIN) is a native call in the bindings, so the hot loops read it from here. It's
+     * looked up the first time one does, so loading this class doesn't load ffmpeg.
+     */
+    static final class AvError {
+        static final int EAGAIN = AVERROR_EAGAIN();
+    }
 
     /* GLOBALS */
-    public static int max_sr                = 0;
-    public static String args_sr            = "";
-    public static String outfile_ext        = "";
-    public static String vol_boost          = "";
+    /* The outputs to produce from each input file */
+    public static List<Target> targets      = new ArrayList<Target>();
     public static String filter_descr;
-    static AVFormatContext inp_fmt_ctx      = new AVFormatContext(null),
-                           out_fmt_ctx      = new AVFormatContext(null);
-    static AVCodecContext dec_ctx           = new AVCodecContext(null),
-                          enc_ctx           = new AVCodecContext(null);
-    static AVFilterContext buffersink_ctx   = new AVFilterContext(),
-                           buffersrc_ctx    = new AVFilterContext();
-    static AVFilterGraph filter_graph       = new AVFilterGraph();
-    static int audio_stream_index           = -1;
-    static AVCodec output_codec             = new AVCodec(null);
-    /* Global timestamp for the audio frames */
-    static long pts                         = 0;
+    /* Number of files converted concurrently */
+    public static int jobs                  = Runtime.getRuntime().availableProcessors();
+    /* Cores shared between the files converted at once and the threads within each, and the most threads a file gets (0 for no limit) */
+    public static int cores                 = Runtime.getRuntime().availableProcessors();
+    public static int codec_threads         = 0;
+    /* Hash source contents so touched but unchanged files aren't re-converted */
+    public static boolean hash_sources      = false;
+    /* Remove outputs of deleted sources */
+    public static boolean prune             = false;
+    /* Number of segments to split long files into, transcoded concurrently */
+    public static int segments              = 1;
+    /* Decode, filter and encode each file on separate threads */
+    public static boolean pipeline          = false;
+    /* Frames queued between pipeline stages */
+    public static int queue_depth           = 8;
+    /* Only print the plan, don't convert anything */
+    public static boolean plan_only         = false;
+    /* Write a JSON and CSV report of the run to the output directory */
+    public static boolean report            = false;
+    /* Resampling engine, quality preset and dither method (null for the resampler's default) */
+    public static String resampler         = "swr";
+    public static String resample_quality  = "standard";
+    public static String dither;
+    /* Always resample through a filter graph, even where libswresample could be used directly */
+    public static boolean filter_graph      = false;
+    /* What turns raw DSD into PCM: ffmpeg's decoder, or the Java decimator */
+    public static String dsd_engine        = "ffmpeg";
+    /* How input files are read: by ffmpeg, or through a FileChannel mapped or read ahead */
+    public static String input_io          = "ffmpeg";
+    /* Bytes per input read, and blocks read ahead of the demuxer */
+    public static int io_buffer             = 256 * 1024;
+    public static int read_ahead            = 4;
+    /* Local directory to encode outputs in before copying them to a slow destination, if any */
+    public static Path staging_dir;
+    /* Threads copying staged outputs to their destination */
+    public static int writers               = 2;
+    static StagedWriter stager;
+    /* Keep running after the batch, converting new and changed files as they arrive */
+    public static boolean watch             = false;
+    /* Seconds a file must stop changing for before it's converted in watch mode */
+    public static double settle             = 2;
+    /* Seconds between checkpoints of long conversions which could carry on from one, or 0 for none */
+    public static double checkpoint_every   = 30;
+    /* Link the outputs of sources with the same contents, or audio, to one conversion (null for off) */
+    public static String dedup_mode;
+    static Dedup dedup;
+    /* Where auto gain puts the true peak (dBTP), the loudness it aims for if any (LUFS), and the bytes it spools in memory */
+    public static double gain_ceiling       = -1;
+    public static double target_loudness    = Double.NaN;
+    public static long spool_memory         = 1024L << 20;
+    /* Where to keep the decoded audio of DSD sources for later runs (null for nowhere), and the most bytes kept there */
+    public static Path pcm_cache_dir;
+    public static long pcm_cache_size       = 100L << 30;
+    static PcmCache pcm_cache;
+    /* Share the work with other processes converting the same tree to the same outputs, and the seconds their claims last unrenewed */
+    public static boolean shared_run        = false;
+    public static double lease              = 60;
+    static SharedRun shared;
+    /* Re-encode outputs which could be copied from their input as they are */
+    public static boolean reencode          = false;
+    /* Convert standard input to standard output instead of the files in the current directory */
+    public static boolean stream            = false;
+    /* Time and count the work on each file, for the report or a JFR recording */
+    static boolean keep_stats               = false;
+    static Manifest manifest;
     static boolean error                    = false;
+    /* When main() started, as wall clock millis and as nanoTime(), and the nanoTime() of the first audio written */
+    static long main_ms, main_ns;
+    static final AtomicLong first_write_ns  = new AtomicLong();
 
     public static void printUsage () {
             System.err.println("");
-            System.err.println("USAGE: java -jar xbart.jar <sample_rate> <outfile_ext> [vol_adjust_db]");
+            System.err.println("USAGE: java -jar xbart.jar [options] <sample_rate> <outfile_ext> [vol_adjust_db]");
+            System.err.println("       java -jar xbart.jar [options] <sample_rate>:<outfile_ext>[:vol_adjust_db] ...");
             System.err.println("");
             System.err.println(
                 "Converts all supported audio files in the current directory to the format corresponding "
@@ -86,11 +154,56 @@ public class Xbart {
             );
             System.err.println("");
             System.err.println("An optional volume adjust (in dB) can be given (positive number for boost, ");
-            System.err.println("negative for cut). ");
+            System.err.println("negative for cut), or 'auto' to bring each file's true peak up to the ceiling (see --gain-ceiling). ");
             System.err.println("");
             System.err.println("Renames file basenames on conversion and doesn't re-convert already ");
             System.err.println("converted files on subsequent runs.");
             System.err.println("");
+            System.err.println("Several targets can be given in the second form, eg. '96000m:flac 44100:mp3:-3'. ");
+            System.err.println("Each input is then decoded once and written out in all of the formats.");
+            System.err.println("");
+            System.err.println("Options:");
+            System.err.println("  --jobs N    Number of files to convert concurrently (default: --cores)");
+            System.err.println("  --cores N   Cores to use, shared between the files converted at once and the codec threads");
+            System.err.println("              within each; spare cores go to files whose decoder is threaded (default: all)");
+            System.err.println("  --codec-threads N  Most threads a single file gets out of --cores; 1 for none (default: no limit)");
+            System.err.println("  --hash      Compare source contents, not just size and date, to detect changes");
+            System.err.println("  --prune     Delete outputs whose source files no longer exist");
+            System.err.println("  --plan      Probe the files and print the estimated work without converting");
+            System.err.println("  --segments K  Split long files into up to K segments which are transcoded concurrently");
+            System.err.println("  --pipeline  Decode, filter and encode each file on separate threads");
+            System.err.println("  --queue-depth N  Frames queued between pipeline stages (default: 8)");
+            System.err.println("  --report    Write a JSON and CSV report with per-file timings to the output directory");
+            System.err.println("  --resampler swr|soxr  Resampling engine (default: swr; soxr needs an ffmpeg built with it)");
+            System.err.println("  --quality fast|standard|high|best  Resampling quality preset (default: standard)");
+            System.err.println("  --dither METHOD  Dither for bit depth reductions, eg. triangular, shibata or none");
+            System.err.println("  --filter-graph  Resample through a libavfilter graph even where it isn't needed");
+            System.err.println("  --dsd-engine ffmpeg|java  Decode DSD with ffmpeg, or decimate it straight to the output rate in Java");
+            System.err.println("  --input-io ffmpeg|auto|mmap|readahead  How to read input files (default: ffmpeg)");
+            System.err.println("  --io-buffer KB  Size of each read with --input-io (default: 256)");
+            System.err.println("  --read-ahead N  Blocks read ahead with --input-io readahead (default: 4)");
+            System.err.println("  --staging DIR  Encode in a local directory, then copy the outputs across in the background");
+            System.err.println("  --writers N  Number of outputs copied from the staging directory at once (default: 2)");
+            System.err.println("  --watch     After converting, keep watching for new and changed files and convert them too");
+            System.err.println("  --settle S  Seconds a file must stop changing for before --watch converts it (default: 2)");
+            System.err.println("  --gain-ceiling DB  True peak that an 'auto' volume adjust brings files up to (default: -1 dBTP)");
+            System.err.println("  --loudness LUFS  Integrated loudness an 'auto' volume adjust aims for instead, within the ceiling");
+            System.err.println("  --spool-memory MB  Memory for audio held while an 'auto' volume adjust is measured, beyond");
+            System.err.println("              which it goes to a temporary file (default: 1024)");
+            System.err.println("  --checkpoint S  Seconds between checkpoints of wav and aiff conversions, which a run that's cut short");
+            System.err.println("              carries on from next time; 0 for none (default: 30)");
+            System.err.println("  --dedup file|audio  Convert sources with the same contents (or the same audio) once, linking");
+            System.err.println("              the other outputs to the first");
+            System.err.println("  --pcm-cache DIR  Keep the decoded audio of DSD files in DIR, as FLAC, so that converting");
+            System.err.println("              them again to other targets skips the DSD decoding");
+            System.err.println("  --pcm-cache-size GB  Size the PCM cache is kept to, dropping what was least recently used (default: 100)");
+            System.err.println("  --shared    Share the work with other xbart processes, on this host or others, converting the");
+            System.err.println("              same tree to the same targets and output directory; each file is converted once");
+            System.err.println("  --lease S   Seconds after which the files claimed by a --shared process which has died are");
+            System.err.println("              taken over by the others (default: 60)");
+            System.err.println("  --reencode  Re-encode lossless files even where they're already in the target format and rate");
+            System.err.println("  --stream    Convert standard input to standard output, to a single flac, wav, aiff or mp3 target");
+            System.err.println("");
             System.err.println("Supported infile types: flac,dsf,dff,wav,aiff,m4a,mp3");
             System.err.println("Supported outfile types: flac,wav,aiff,m4a(alac),mp3");
             System.err.println("");
@@ -98,9 +211,19 @@ public class Xbart {
 
     /* Custom implementation of missing av_err2str() ffmpeg function */
     static String my_av_err2str (int err) {
-        BytePointer e = new BytePointer(512);
-        av_strerror(err, e, 512);
-        return e.getString().substring(0, (int) BytePointer.strlen(e));
+        /* Without a JavaCPP capacity, getString() stops at the terminating null */
+        BytePointer e = new BytePointer( av_malloc(512) );
+
+        if ( e.isNull() ) {
+            return "error " + err;
+        }
+        try {
+            av_strerror(err, e, 512);
+            return e.getString().substring(0, (int) BytePointer.strlen(e));
+        }
+        finally {
+            av_free(e);
+        }
     }
     
     /* Check for error code returned by ffmpeg func and throw error */
@@ -110,390 +233,15 @@ public class Xbart {
         }
     }
 
-    /* Open an input file and the required decoder. */
-    static void openInputFile (String filename) {
-        AVCodec dec = new AVCodec();
-        
-        /* Open the input file to read from it. */
-        check( avformat_open_input(inp_fmt_ctx, filename, null, null) );
-        /* Get information on the input file (number of streams etc.). */
-        check( avformat_find_stream_info(inp_fmt_ctx, (PointerPointer) null) );
-
-        /* Select the audio stream */
-        check( audio_stream_index = av_find_best_stream(inp_fmt_ctx, AVMEDIA_TYPE_AUDIO, -1, -1, dec, 0) );
-
-        /* Create decoding context */
-        dec_ctx = avcodec_alloc_context3(dec);
-
-        if (dec_ctx.isNull()) {
-            throw new RuntimeException( "Error: " + my_av_err2str(AVERROR_ENOMEM()) );
-        }
-
-        check( avcodec_parameters_to_context(dec_ctx, inp_fmt_ctx.streams(audio_stream_index).codecpar()) );
-        av_opt_set_int(dec_ctx, "refcounted_frames", 1, 0);
-
-        /* Init the audio decoder */
-        check( avcodec_open2(dec_ctx, dec, (AVDictionary) null) );
-    }
-
-    /*
-     * Open the output file and set the encoder context fields accordingly
-     */
-    static void openOutputFile (String filename) {
-        AVIOContext output_io_context = new AVIOContext(null);
-        AVStream stream = new AVStream(null);
-        Hashtable<String, Integer> codecs = new Hashtable<String, Integer>() {
-            {
-                put("flac", AV_CODEC_ID_FLAC);
-                put("m4a", AV_CODEC_ID_ALAC);
-                put("mp3", AV_CODEC_ID_MP3);
-            }
-        };
-        String dec_name = dec_ctx.codec().name().getString();
-
-        /* Determine original bit depth. Explicitly set it to 24 bits if we have a DSD file as input */
-        int input_bits = (dec_name.matches("^dsd_.*") || dec_name.equals("dst"))
-            ? 24
-            : dec_ctx.bits_per_raw_sample();
-
-        /* Multiple codecs for certain file extensions, depending on bit depth */
-        if (outfile_ext.equals("wav")) {
-            switch (input_bits) {
-                case 64: codecs.put("wav", AV_CODEC_ID_PCM_S64LE);
-                         break;
-                case 32: codecs.put("wav", AV_CODEC_ID_PCM_S32LE);
-                         break;
-                case 24: codecs.put("wav", AV_CODEC_ID_PCM_S24LE);
-                         break;
-                case 16: codecs.put("wav", AV_CODEC_ID_PCM_S16LE);
-                         break;
-                case 8:  codecs.put("wav", AV_CODEC_ID_PCM_S8);
-                         break;
-                default: codecs.put("wav", AV_CODEC_ID_PCM_S16LE);
-                         break;
-            }
-        }
-
-        if (outfile_ext.equals("aiff")) {
-            switch (input_bits) {
-                case 64: codecs.put("aiff", AV_CODEC_ID_PCM_S64BE);
-                         break;
-                case 32: codecs.put("aiff", AV_CODEC_ID_PCM_S32BE);
-                         break;
-                case 24: codecs.put("aiff", AV_CODEC_ID_PCM_S24BE);
-                         break;
-                case 16: codecs.put("aiff", AV_CODEC_ID_PCM_S16BE);
-                         break;
-                case 8:  codecs.put("aiff", AV_CODEC_ID_PCM_S8);
-                         break;
-                default: codecs.put("aiff", AV_CODEC_ID_PCM_S16BE);
-                         break;
-            }
-        }
-
-        /* Create a new format context for the output container format. */
-        check( avformat_alloc_output_context2(out_fmt_ctx, null, null, filename) );
-        /* Open the output file to write to it. */
-        check( avio_open(output_io_context, filename, AVIO_FLAG_WRITE) );
-        /* Associate the output file (pointer) with the container format context. */
-        out_fmt_ctx.pb( output_io_context );
-
-        /* Find the encoder to be used by its name. */
-        if ( (output_codec = avcodec_find_encoder(codecs.get(outfile_ext))).isNull() ) {
-            throw new RuntimeException("Could not find an appropriate encoder");
-        }
-        
-        /* Create a new audio stream in the output file container. */
-        if ( (stream = avformat_new_stream(out_fmt_ctx, null)).isNull() ) {
-            throw new RuntimeException("Could not create new stream");
-        }
-
-        if ( (enc_ctx = avcodec_alloc_context3(output_codec)).isNull() ) {
-            throw new RuntimeException("Could not allocate an encoding context");
-        }
-
-        /*
-         * Set the basic encoder parameters.
-         * The input file's sample rate is used to avoid a sample rate conversion.
-         */
-        enc_ctx.channels(dec_ctx.channels());
-        enc_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
-        enc_ctx.sample_rate(max_sr);
-
-        /* Handle cases where a codec supports multiple sample formats */
-        if ( outfile_ext.equals("flac") ) {
-            switch (input_bits) {
-                case 64:
-                case 32:
-                case 24: enc_ctx.sample_fmt(AV_SAMPLE_FMT_S32);
-                         break;
-                case 16: enc_ctx.sample_fmt(AV_SAMPLE_FMT_S16);
-                         break;
-                default: enc_ctx.sample_fmt(output_codec.sample_fmts().get(0));
-                         break;
-            }  
-        }
-        else if ( outfile_ext.equals("m4a") ) {
-            switch (input_bits) {
-                case 64:
-                case 32:
-                case 24: enc_ctx.sample_fmt(AV_SAMPLE_FMT_S32P);
-                         break;
-                case 16: enc_ctx.sample_fmt(AV_SAMPLE_FMT_S16P);
-                         break;
-                default: enc_ctx.sample_fmt(output_codec.sample_fmts().get(0));
-                         break;
-            }  
-        }
-        else {
-            enc_ctx.sample_fmt(output_codec.sample_fmts().get(0));
-        }
-
-        if ( outfile_ext.equals("mp3") ) {
-            enc_ctx.bit_rate(OUTPUT_BIT_RATE);
-        }
-
-        /* Allow the use of the experimental AAC encoder */
-        enc_ctx.strict_std_compliance(FF_COMPLIANCE_EXPERIMENTAL);
-
-        /* Set the sample rate for the container. */
-        stream.time_base(new AVRational());
-        stream.time_base().den( max_sr );
-        stream.time_base().num( 1 );
-
-        /*
-         * Some container formats (like MP4) require global headers to be present
-         * Mark the encoder so that it behaves accordingly.
-         */
-        if ( (out_fmt_ctx.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
-            enc_ctx.flags( enc_ctx.flags() | AV_CODEC_FLAG_GLOBAL_HEADER );
-        }
-
-        /* Open the encoder for the audio stream to use it later. */
-        System.err.println("Opening the encoder.");
-        check( avcodec_open2(enc_ctx, output_codec, (AVDictionary) null) );
-        /* Initialize stream params */
-        check( avcodec_parameters_from_context(stream.codecpar(), enc_ctx) );
-    }
-
-    /* 
-     * Initialize the filter chain based on the description string, configuring the src and sink
-     * so that they are compatible with the decoder and encoder, respectively
-     */
-    static void initFilters () {
-        AVFilterInOut outputs = avfilter_inout_alloc(),
-                      inputs  = avfilter_inout_alloc();
-        AVFilterLink outlink  = new AVFilterLink(),
-                     inlink   = new AVFilterLink();
-        AVRational time_base = inp_fmt_ctx.streams(audio_stream_index).time_base();
-        filter_graph = avfilter_graph_alloc();
-        String filters_descr;
-
-        if (outputs.isNull() || inputs.isNull() || filter_graph.isNull()) {
-            throw new RuntimeException(my_av_err2str( AVERROR_ENOMEM() ) + ":" + AVERROR_ENOMEM());
-        }
-
-        try {
-            /* 
-             * Some pointers to arrays for setting binary filter options for the buffersink.  
-             * These should match our encoder sample format/ch layout/sample rate
-             */
-            BytePointer out_sample_fmts = new BytePointer(8);
-            out_sample_fmts.putInt(0, enc_ctx.sample_fmt());
-            out_sample_fmts.putInt(4, -1);
-
-            BytePointer out_channel_layouts = new BytePointer(16);
-            out_channel_layouts.putLong(0, enc_ctx.channel_layout());
-            out_channel_layouts.putLong(8, -1);
-            
-            BytePointer out_sample_rates = new BytePointer(8);
-            out_sample_rates.putInt(0, enc_ctx.sample_rate());
-            out_sample_rates.putInt(4, -1);
-
-            /* Buffer audio source: the decoded frames from the decoder will be inserted here. */ 
-            if (dec_ctx.channel_layout() == 0) {
-                dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
-            }
-
-            /* The buffersrc sample fmt, sample rate, and ch layout should match decoder output */
-            filters_descr = (String.format(
-                        "abuffer@in=time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=0x%x,",
-                        time_base.num(), time_base.den(), dec_ctx.sample_rate(),
-                        av_get_sample_fmt_name(dec_ctx.sample_fmt()).getString(), dec_ctx.channel_layout()
-            )) +  "aresample=" + max_sr + (vol_boost.length() > 0 ? (",volume=" + vol_boost) : "") + ",abuffersink@out";
-
-            /* Add a graph described by a string. */
-            check( avfilter_graph_parse2(filter_graph, filters_descr, inputs, outputs) );
-
-            /* Get buffer contexts from parsed graph */
-            buffersink_ctx = avfilter_graph_get_filter(filter_graph, "abuffersink@out");
-            buffersrc_ctx = avfilter_graph_get_filter(filter_graph, "abuffer@in");
-
-            /* Set binary options for buffersink */
-            check( av_opt_set_bin(buffersink_ctx, "sample_fmts", out_sample_fmts, 4, AV_OPT_SEARCH_CHILDREN) );
-            check( av_opt_set_bin(buffersink_ctx, "channel_layouts", out_channel_layouts, 8, AV_OPT_SEARCH_CHILDREN) );
-            check( av_opt_set_bin(buffersink_ctx, "sample_rates", out_sample_rates, 4, AV_OPT_SEARCH_CHILDREN) );
-
-            /* Set correct frame size on buffersink so that it matches that of the encoder */
-            av_buffersink_set_frame_size(buffersink_ctx, enc_ctx.frame_size());
-
-            /* Check validity and configure all the links and formats in the graph. */
-            check( avfilter_graph_config(filter_graph, null) );
-
-            /* Print summary of the src and sink buffers */
-            inlink = buffersrc_ctx.outputs(0);
-            outlink = buffersink_ctx.inputs(0);
-
-            System.err.println(
-                "Input: srate:" + inlink.sample_rate() + "Hz fmt:" 
-                + ( av_get_sample_fmt_name( inlink.format() ) ).getString()
-                + " Channels num: " + inlink.channels()
-            );
-            System.err.println(
-                "Output: srate:" + outlink.sample_rate() + "Hz fmt:" 
-                + ( av_get_sample_fmt_name( outlink.format() ) ).getString()
-                + " Channels num: " + outlink.channels()
-            );
-        }
-        finally {
-            avfilter_inout_free(inputs);
-            avfilter_inout_free(outputs);
-        }
-    }
-
     /* Convert the input filename into a suitable output filename */
-    static String filenameConv (Path p, String suffix) {
+    static String filenameConv (Path p, String suffix, String outfile_ext) {
         return p.toString().replaceFirst(
             "\\.(?:flac|dsf|dff|wav|aiff|m4a|mp3)$", 
             suffix + "." + outfile_ext
         );
     }
 
-    /* Transcode the already-open infile, writing to the given outfile path */
-    static void transcode (String outfile_path) {
-        AVPacket input_packet   = new AVPacket(),
-                 output_packet  = new AVPacket();
-        AVFrame frame           = av_frame_alloc(),
-                filt_frame      = av_frame_alloc();
-        int ret                 = 0;
-
-         if (frame.isNull() || filt_frame.isNull()) {
-             throw new RuntimeException("Could not allocate frame");
-         }
-             
-         try {
-             System.err.println("Opening output file: " + outfile_path);
-             openOutputFile(outfile_path);
-             
-             initFilters();
-
-             /* Write the header of the output file container. */
-             check( avformat_write_header(out_fmt_ctx, (AVDictionary) null) );
-
-             System.err.println("Transcoding...");
-             /* Read all packets */
-             while (true) {
-                 if ( (ret = av_read_frame(inp_fmt_ctx, input_packet)) < 0) {
-                     break;
-                 }
-
-                 if (input_packet.stream_index() == audio_stream_index) {
-                     if ( (ret = avcodec_send_packet(dec_ctx, input_packet)) < 0) {
-                         System.err.println("Error while sending a packet to the decoder");
-                         break;
-                     }
-
-                     while (ret >= 0) {
-                         /* Push the audio data from decoded frame into the filtergraph */
-                         ret = avcodec_receive_frame(dec_ctx, frame);
-
-                         if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
-                             break;
-                         }
-                         else if (ret < 0) {
-                             throw new RuntimeException("Error while receiving frame from the decoder");
-                         }
-
-                         if (ret >= 0) {
-                             /* Push the audio data from decoded frame into the filtergraph */
-                             if (av_buffersrc_add_frame_flags(buffersrc_ctx, frame, AV_BUFFERSRC_FLAG_KEEP_REF) < 0) {
-                                 System.err.println("Error while feeding the audio filtergraph");
-                                 break;
-                             }
-
-                             /* Pull filtered audio from the filtergraph */
-                             while (true) {
-                                 ret = av_buffersink_get_frame(buffersink_ctx, filt_frame);
-
-                                 if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
-                                     break;
-                                 }
-                                 if (ret < 0) {
-                                     throw new RuntimeException("Couldn't get frame from filtergraph");
-                                 }
-                                 /* Set the packet data and size so that it is recognized as being empty. */
-                                 output_packet.data(null);
-                                 output_packet.size(0);
-                                 av_init_packet(output_packet);
-
-                                 if ( !filt_frame.isNull() ) {
-                                     filt_frame.pts( pts );
-                                     pts += filt_frame.nb_samples();
-                                 }
-
-                                 check( avcodec_send_frame(enc_ctx, filt_frame) );
-
-                                 while (true) {
-                                     ret = avcodec_receive_packet(enc_ctx, output_packet);
-
-                                     if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
-                                         break;
-                                     }
-                                     if (ret < 0) {
-                                         throw new RuntimeException("Couldn't read data from the encoder");
-                                     }
-
-                                     /* Write one audio frame from the encoded packet to the output file. */
-                                     try {
-                                         check( ret = av_write_frame(out_fmt_ctx, output_packet) );
-                                     }
-                                     finally {
-                                         av_packet_unref(output_packet);
-                                     }
-                                 }
-                                 av_frame_unref(filt_frame);
-                             }
-                             av_frame_unref(frame);
-                         }
-                     }
-                 }
-                 av_packet_unref(input_packet);
-             }
-             /* Flush buffers */
-             check( avcodec_send_packet(dec_ctx, null) );
-             check( avcodec_send_frame(enc_ctx, null) );
-
-             /* Write the trailer of the output file container. */
-             check( av_write_trailer(out_fmt_ctx) );
-        }
-        /* Cleanup */
-        finally {
-            avfilter_graph_free(filter_graph);
-            avcodec_free_context(enc_ctx);
-            avformat_close_input(out_fmt_ctx);
-            av_frame_free(frame);
-            av_frame_free(filt_frame);
-
-            if (ret < 0 && ret != AVERROR_EOF) {
-                System.err.println("Error occurred: " + my_av_err2str(ret));
-                error = true;
-            }
-
-        }
-
-    }
-
-    static int recalcSR (int infile_sr, int lowest_factor) {
+    static int recalcSR (String args_sr, int infile_sr, int lowest_factor) {
         int this_max_sr = Integer.parseInt( args_sr.replaceFirst("m$", "") );
 
         if ( (this_max_sr % 44100) != 0 && (this_max_sr % 48000) != 0 ) {
@@ -534,107 +282,437 @@ public class Xbart {
         }
     }
 
-    /* Convert a file at the specified path */
-    static void conv (Path p) {
-        Path op                 = OUT_PATH.resolve(p).normalize();
-        String infile_path      = p.toString();
-        int lowest_factor       = 0;
-        String suffix           = "";
-
-         try {
-             av_register_all();
-             avfilter_register_all();
-
-             System.err.println("Opening input file: " + infile_path);
-             openInputFile(infile_path);
-
-             /* If user appended an "m" for "maximum" to the end of
-              * the sample rate param, find nearest even multiple of
-              * this infile's sample rate
-              */
-             if ( args_sr.matches(".*m$") ) {
-                 System.err.println("Maximum sample rate specified for output. Recalculating destination sample rate");
-
-                 /* Get lowest factor from infile sr and skip this file on error */
-                 if ( (lowest_factor = findLowestFactor(dec_ctx.sample_rate())) == 0 ) {
-                     System.err.println("SKIPPING " + infile_path + "...");
-                     return;
-                 }
-                 max_sr = recalcSR(dec_ctx.sample_rate(), lowest_factor);
-             }
-             else {
-                 max_sr = Integer.parseInt(args_sr);
-             }
-
-             suffix = "_ff" + (max_sr / 1000) + "k";
-             String outfile_path     = filenameConv(op, suffix);
-             File of                 = new File(outfile_path);
-         
-             if ( of.exists() ) {
-                System.err.println("Output file already exists!");
-                System.err.println("SKIPPING " + outfile_path);
-             }
-             else {
-                 transcode(outfile_path);
-             }
-         }
-         /* Cleanup */
-         finally {
-             avcodec_free_context(dec_ctx);
-             avformat_close_input(inp_fmt_ctx);
-         }
+    /* Parse the leading options, returning the remaining positional args */
+    static List<String> parseArgs (String[] args) {
+        List<String> positional = new ArrayList<String>();
+        boolean jobs_given = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if ( args[i].equals("--jobs") || args[i].equals("-j") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                jobs = Integer.parseInt(args[i]);
+                jobs_given = true;
+
+                if (jobs < 1) {
+                    throw new IllegalArgumentException("Number of jobs must be at least 1");
+                }
+            }
+            else if ( args[i].equals("--hash") ) {
+                hash_sources = true;
+            }
+            else if ( args[i].equals("--prune") ) {
+                prune = true;
+            }
+            else if ( args[i].equals("--plan") ) {
+                plan_only = true;
+            }
+            else if ( args[i].equals("--report") ) {
+                report = true;
+            }
+            else if ( args[i].equals("--resampler") ) {
+                resampler = optionValue(args, ++i, SwrResampler.ENGINES);
+
+                if ( resampler.equals("soxr") && !SwrResampler.hasSoxr() ) {
+                    throw new IllegalArgumentException("This build of ffmpeg doesn't include the soxr resampler");
+                }
+            }
+            else if ( args[i].equals("--quality") ) {
+                resample_quality = optionValue(args, ++i, SwrResampler.QUALITIES);
+            }
+            else if ( args[i].equals("--dither") ) {
+                dither = optionValue(args, ++i, SwrResampler.DITHERS);
+            }
+            else if ( args[i].equals("--filter-graph") ) {
+                filter_graph = true;
+            }
+            else if ( args[i].equals("--dsd-engine") ) {
+                dsd_engine = optionValue(args, ++i, DsdDecimator.ENGINES);
+            }
+            else if ( args[i].equals("--input-io") ) {
+                input_io = optionValue(args, ++i, ChannelInput.MODES);
+            }
+            else if ( args[i].equals("--io-buffer") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                io_buffer = Integer.parseInt(args[i]) * 1024;
+
+                if (io_buffer < 4096 || io_buffer > (1 << 30)) {
+                    throw new IllegalArgumentException("I/O buffer must be from 4 KB to 1 GB");
+                }
+            }
+            else if ( args[i].equals("--read-ahead") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                read_ahead = Integer.parseInt(args[i]);
+
+                if (read_ahead < 1) {
+                    throw new IllegalArgumentException("Read-ahead must be at least 1 block");
+                }
+            }
+            else if ( args[i].equals("--pcm-cache") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                pcm_cache_dir = Paths.get(args[i]);
+            }
+            else if ( args[i].equals("--pcm-cache-size") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                pcm_cache_size = (long) (Double.parseDouble(args[i]) * (1L << 30));
+
+                if (pcm_cache_size <= 0) {
+                    throw new IllegalArgumentException("PCM cache size must be above 0");
+                }
+            }
+            else if ( args[i].equals("--shared") ) {
+                shared_run = true;
+            }
+            else if ( args[i].equals("--lease") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                lease = Double.parseDouble(args[i]);
+
+                if (lease < 1) {
+                    throw new IllegalArgumentException("Lease must be at least 1 second");
+                }
+            }
+            else if ( args[i].equals("--staging") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                staging_dir = Paths.get(args[i]);
+            }
+            else if ( args[i].equals("--writers") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                writers = Integer.parseInt(args[i]);
+
+                if (writers < 1) {
+                    throw new IllegalArgumentException("Number of writers must be at least 1");
+                }
+            }
+            else if ( args[i].equals("--dedup") ) {
+                dedup_mode = optionValue(args, ++i, Dedup.MODES);
+            }
+            else if ( args[i].equals("--reencode") ) {
+                reencode = true;
+            }
+            else if ( args[i].equals("--stream") ) {
+                stream = true;
+            }
+            else if ( args[i].equals("--watch") ) {
+                watch = true;
+            }
+            else if ( args[i].equals("--settle") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                settle = Double.parseDouble(args[i]);
+
+                if (settle < 0) {
+                    throw new IllegalArgumentException("Settle time can't be negative");
+                }
+            }
+            else if ( args[i].equals("--gain-ceiling") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                gain_ceiling = Double.parseDouble(args[i]);
+
+                if (gain_ceiling > 0) {
+                    throw new IllegalArgumentException("Gain ceiling can't be above 0 dBTP");
+                }
+            }
+            else if ( args[i].equals("--loudness") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                target_loudness = Double.parseDouble(args[i]);
+
+                if (target_loudness >= 0) {
+                    throw new IllegalArgumentException("Target loudness must be below 0 LUFS");
+                }
+            }
+            else if ( args[i].equals("--spool-memory") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                spool_memory = Long.parseLong(args[i]) << 20;
+
+                if (spool_memory < 0) {
+                    throw new IllegalArgumentException("Spool memory can't be negative");
+                }
+            }
+            else if ( args[i].equals("--checkpoint") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                checkpoint_every = Double.parseDouble(args[i]);
+
+                if (checkpoint_every < 0) {
+                    throw new IllegalArgumentException("Checkpoint interval can't be negative");
+                }
+            }
+            else if ( args[i].equals("--pipeline") ) {
+                pipeline = true;
+            }
+            else if ( args[i].equals("--queue-depth") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                queue_depth = Integer.parseInt(args[i]);
+
+                if (queue_depth < 1) {
+                    throw new IllegalArgumentException("Queue depth must be at least 1");
+                }
+            }
+            else if ( args[i].equals("--cores") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                cores = Integer.parseInt(args[i]);
+
+                if (cores < 1) {
+                    throw new IllegalArgumentException("Number of cores must be at least 1");
+                }
+            }
+            else if ( args[i].equals("--codec-threads") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                codec_threads = Integer.parseInt(args[i]);
+
+                if (codec_threads < 0) {
+                    throw new IllegalArgumentException("Number of codec threads can't be negative");
+                }
+            }
+            else if ( args[i].equals("--segments") ) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException(args[i - 1] + " requires a value");
+                }
+                segments = Integer.parseInt(args[i]);
+
+                if (segments < 1) {
+                    throw new IllegalArgumentException("Number of segments must be at least 1");
+                }
+            }
+            else {
+                positional.add(args[i]);
+            }
+        }
+        /* One file per core, unless told otherwise */
+        if (!jobs_given) {
+            jobs = cores;
+        }
+        if (watch && plan_only) {
+            throw new IllegalArgumentException("--watch and --plan can't be used together");
+        }
+        if ( stream && (watch || plan_only) ) {
+            throw new IllegalArgumentException("--stream can't be used with --watch or --plan");
+        }
+        if ( shared_run && (watch || stream) ) {
+            throw new IllegalArgumentException("--shared can't be used with --watch or --stream");
+        }
+        return positional;
+    }
+
+    /* The value of the option before args[i], which must be one of the choices */
+    static String optionValue (String[] args, int i, List<String> choices) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " requires a value");
+        }
+        if ( !choices.contains(args[i]) ) {
+            throw new IllegalArgumentException(args[i - 1] + " must be one of: " + String.join(", ", choices));
+        }
+        return args[i];
+    }
+
+    /* Whether a file is of a supported input type */
+    static boolean supported (Path p) {
+        return p.toString().matches(".*\\.(?:flac|dsf|dff|wav|aiff|m4a|mp3)$");
+    }
+
+    /*
+     * Probe a batch of files and convert them, or just print the plan, returning the
+     * scheduler for the outcome. The caller saves the manifest.
+     */
+    static Scheduler runBatch (List<Path> files) throws IOException, InterruptedException {
+        Scheduler scheduler = new Scheduler(jobs);
+        RunReport run_report = report ? new RunReport() : null;
+        List<Job> planned = scheduler.plan(files);
+
+        if (dedup != null) {
+            dedup.assign(planned, jobs);
+            Collections.sort(planned);
+        }
+
+        if (plan_only) {
+            Scheduler.printPlan(planned);
+        }
+        else {
+            scheduler.run(planned);
+            scheduler.printSummary( files.size() );
+
+            if (run_report != null) {
+                System.err.println("Report written to " + run_report.write(OUT_PATH, files.size(), planned, scheduler));
+            }
+        }
+        return scheduler;
     }
 
-    /* Make a single directory from a given path */
-    static void mkdirP (Path dir) {
+    /* Convert standard input to standard output, exiting with the outcome */
+    static void runStream () {
+        if (targets.size() != 1) {
+            System.err.println("--stream takes a single target");
+            System.exit(-1);
+        }
+        Target t = targets.get(0);
+
         try {
-            Files.createDirectories(dir);
+            TranscodeResult r = new Transcoder(1).transcode(new TranscodeRequest(
+                Channels.newChannel(System.in), t.args_sr, t.ext, t.vol,
+                new FileOutputStream(FileDescriptor.out).getChannel()
+            ));
+
+            System.err.println(r);
+            System.exit(0);
         }
-        catch(IOException e) {
-            error = true;
+        catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(-1);
         }
     }
 
-    /* Creates the output dir structure */
-    static void mkDirsIfNotEx () throws IOException {
-        Files.find(
-            CWD,
-            999,
-            (p, bfa) -> bfa.isDirectory() && p.toString().length() > 1 
-        ).forEach( 
-            p -> mkdirP( OUT_PATH.resolve(p).normalize() ) 
-        );
+    /* Seconds from the JVM starting to a nanoTime() reading taken since main() started */
+    static double sinceLaunch (long ns) {
+        return ( main_ms - ManagementFactory.getRuntimeMXBean().getStartTime() ) / 1e3 + (ns - main_ns) / 1e9;
+    }
+
+    /* Seconds from the JVM starting to the first audio written, or NaN if there's been none, or no main() */
+    static double timeToFirstFrame () {
+        long ns = first_write_ns.get();
+
+        return main_ns != 0 && ns != 0 ? sinceLaunch(ns) : Double.NaN;
     }
 
     public static void main (String[] args) throws IOException {
+        List<String> positional = null;
+
+        main_ms = System.currentTimeMillis();
+        main_ns = System.nanoTime();
+
+        try {
+            positional = parseArgs(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+
         /* Args sanity check */
-        if (args.length < 2) {
+        if ( positional == null || positional.isEmpty()
+             || (positional.size() < 2 && !positional.get(0).contains(":")) ) {
             printUsage();
             System.exit(-1);
         }
 
-        /* Set some globals */
-        args_sr = args[0];
-        outfile_ext = args[1];
+        /* Set the targets, given either as a list of <sr>:<ext>[:vol], or as <sr> <ext> [vol] */
+        try {
+            if ( positional.get(0).contains(":") ) {
+                for (String spec : positional) {
+                    targets.add( Target.parse(spec) );
+                }
+            }
+            else {
+                targets.add( new Target(
+                    positional.get(0), positional.get(1), positional.size() >= 3 ? positional.get(2) : ""
+                ) );
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(-1);
+        }
 
-        /* Check for/set volume boost arg */
-        if (args.length >= 3 && args[2].length() > 0) {
-            vol_boost = args[2];
+        if (stream) {
+            runStream();
+            return;
         }
 
+        /* Load and register ffmpeg while the tree is searched and the manifest read */
+        Thread loader = new Thread(Transcoder::init, "xbart-init");
+
+        loader.setDaemon(true);
+        loader.start();
+
         try {
-            /* Recreate dir structure in output dir */
-            mkDirsIfNotEx();
-                    
-            /* Find and process each file of a supported type */
-            Files.find(
-                CWD,
-                999,
-                (p, bfa) -> p.toString().matches(".*\\.(?:flac|dsf|dff|wav|aiff|m4a|mp3)$")
-            ).forEach( p -> conv(p) );
+            /* Other output dirs get created as the files in them are converted */
+            Files.createDirectories(OUT_PATH);
+
+            /* Joined before loading the manifest, so that the last process to finish waits for this one */
+            if (shared_run && !plan_only) {
+                shared = new SharedRun(OUT_PATH, lease);
+                shared.join();
+            }
+            manifest = Manifest.load(OUT_PATH, hash_sources);
+
+            if (pcm_cache_dir != null) {
+                pcm_cache = new PcmCache(pcm_cache_dir, pcm_cache_size);
+            }
+            if (staging_dir != null) {
+                stager = new StagedWriter(staging_dir, writers);
+            }
+            if (dedup_mode != null) {
+                dedup = new Dedup(manifest, dedup_mode);
+            }
+
+            /* Find each file of a supported type */
+            List<Path> files;
+            Scheduler scheduler = null;
+            try (Stream<Path> found = Files.find( CWD, 999, (p, bfa) -> supported(p) )) {
+                files = found.collect(Collectors.toList());
+            }
+
+            /* Waits for the loader, as registration isn't safe to race */
+            Transcoder.init();
+
+            /* Probe them all, then process them biggest first */
+            keep_stats = report || JfrEvents.enabled();
+
+            try {
+                scheduler = runBatch(files);
+
+                if (prune && !plan_only) {
+                    System.err.println("Pruned " + manifest.prune(CWD) + " outputs of deleted sources.");
+                }
+
+                if ( !scheduler.failures.isEmpty() ) {
+                    error = true;
+                }
+            }
+            finally {
+                manifest.save();
+
+                if (shared != null) {
+                    shared.leave(scheduler);
+                }
+            }
+
+            /* Runs until the process is stopped */
+            if (watch) {
+                new Watcher( CWD, (long) (settle * 1e9) ).run();
+            }
         }
         catch (Throwable t) {
             t.printStackTrace();
+            error = true;
         }
         finally {
             /* Exit with proper status */
@@ -0,0 +1,94 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times a cold batch of 100 one second clips to 48k FLAC, as the CLI runs it: each fork
+ * converts the batch once, in a fresh JVM, so that the timing takes in loading the native
+ * libraries and registering ffmpeg, and the first conversions of every class, along with
+ * the conversions themselves. It's where the cost of starting up, rather than of converting,
+ * shows.
+ *
+ * @author Kevin Witmer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class BatchBenchmark {
+    static final int CLIPS  = 100;
+
+    List<Path> clips;
+    Path manifest_dir;
+    PrintStream saved_err;
+
+    /* Only the fixtures: xbart itself isn't touched until the batch is timed */
+    @Setup(Level.Trial)
+    public void setupTrial () throws IOException {
+        clips = Fixtures.clips(CLIPS);
+        removeOutputs();
+        manifest_dir = Files.createTempDirectory("xbart-bench-manifest");
+
+        /* The per-file logging would only be noise in the results */
+        saved_err = System.err;
+        System.setErr( new PrintStream(new OutputStream() {
+            public void write (int b) {}
+            public void write (byte[] b, int off, int len) {}
+        }) );
+    }
+
+    @Benchmark
+    public int batch () throws Exception {
+        Xbart.targets = Collections.singletonList( new Target("48000", "flac", "") );
+        Xbart.manifest = Manifest.load(manifest_dir, false);
+        Transcoder.init();
+
+        return Xbart.runBatch(clips).converted.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial () throws IOException {
+        System.setErr(saved_err);
+        removeOutputs();
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(manifest_dir)) {
+            for (Path p : ds) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(manifest_dir);
+    }
+
+    /* Remove the outputs beside the clips, so that the next fork converts them again */
+    void removeOutputs () throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream( Fixtures.DIR.resolve("clips") )) {
+            for (Path p : ds) {
+                if ( !p.getFileName().toString().endsWith(".wav") ) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+}
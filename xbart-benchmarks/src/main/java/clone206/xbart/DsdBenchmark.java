@@ -0,0 +1,149 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * Times DSD64 conversions with each DSD engine, and the Java decimator on its own, over the
+ * raw DSD of the fixture already in memory, with no ffmpeg calls at all. Both report
+ * audio_seconds, the realtime factor, as TranscodeBenchmark does.
+ *
+ * @author Kevin Witmer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DsdBenchmark {
+    /* Bytes before the audio in the fixture: the DSD, fmt and data chunk headers */
+    static final int DSF_HEADER = 28 + 52 + 12;
+
+    @State(Scope.Benchmark)
+    public static class Conversion {
+        @Param({"ffmpeg", "java"})
+        public String engine;
+
+        @Param({"flac", "wav"})
+        public String ext;
+
+        @Param({"96000m", "48000"})
+        public String rate;
+
+        Path fixture;
+        Job job;
+        PrintStream saved_err;
+
+        @Setup(Level.Trial)
+        public void setupTrial () throws IOException {
+            av_register_all();
+            avfilter_register_all();
+
+            fixture = Fixtures.get("dsf_dsd64");
+            Xbart.jobs = 1;
+            Xbart.dsd_engine = engine;
+            Xbart.targets = Collections.singletonList( new Target(rate, ext, "") );
+            Xbart.manifest = Manifest.load(Fixtures.DIR, false);
+
+            av_log_set_level(AV_LOG_ERROR);
+            saved_err = System.err;
+            System.setErr( new PrintStream(new OutputStream() {
+                public void write (int b) {}
+                public void write (byte[] b, int off, int len) {}
+            }) );
+        }
+
+        @Setup(Level.Invocation)
+        public void probe () throws IOException {
+            job = new TranscodeSession(fixture).probe();
+        }
+
+        @TearDown(Level.Invocation)
+        public void removeOutput () throws IOException {
+            for (Output o : job.outputs) {
+                Files.deleteIfExists( Paths.get(o.outfile_path) );
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDownTrial () {
+            System.setErr(saved_err);
+            Xbart.dsd_engine = "ffmpeg";
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Decimation {
+        /* The lowest output rate, which decides the decimation factor */
+        @Param({"44100", "88200", "176400"})
+        public int rate;
+
+        /* The fixture's blocks, each a packet of planar LSB first DSD as the demuxer gives them */
+        byte[] dsd;
+
+        @Setup(Level.Trial)
+        public void load () throws IOException {
+            byte[] file = Files.readAllBytes( Fixtures.get("dsf_dsd64") );
+
+            dsd = Arrays.copyOfRange(file, DSF_HEADER, file.length);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Realtime {
+        public double audio_seconds;
+
+        @Setup(Level.Iteration)
+        public void reset () {
+            audio_seconds = 0;
+        }
+    }
+
+    @Benchmark
+    public void transcode (Conversion c, Realtime realtime) throws IOException {
+        new TranscodeSession(c.fixture).conv(c.job);
+        realtime.audio_seconds += c.job.duration;
+    }
+
+    @Benchmark
+    public float decimate (Decimation d, Realtime realtime) {
+        int packet = Fixtures.DSF_BLOCK * Fixtures.CHANNELS;
+        DsdDecimator dsd = new DsdDecimator("dsd_lsbf_planar", Fixtures.CHANNELS, Fixtures.DSD64_RATE, d.rate, false);
+        float[][] out = new float[Fixtures.CHANNELS][dsd.maxOutput( Math.max(packet, dsd.flushSize()) )];
+        byte[] buf = new byte[packet];
+        float sum = 0;
+
+        for (int off = 0; off + packet <= d.dsd.length; off += packet) {
+            System.arraycopy(d.dsd, off, buf, 0, packet);
+            sum += out[0][ Math.max(0, dsd.decimate(buf, packet, out) - 1) ];
+        }
+        sum += dsd.flush(out);
+        realtime.audio_seconds += Fixtures.SECONDS;
+        /* Returned so that JMH doesn't find the work unused */
+        return sum;
+    }
+}
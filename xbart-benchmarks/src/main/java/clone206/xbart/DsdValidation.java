@@ -0,0 +1,184 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * Checks the Java DSD engine against ffmpeg's. Each tone fixture is converted to 88.2k WAV
+ * with both, and the tone is fitted to the middle of the output by least squares, which
+ * gives its level (the frequency response, at that frequency) and leaves the rest of the
+ * audio as the residual: the modulator's noise, plus whatever the decoder and filters add.
+ * Both engines get the same DSD, so their levels should agree to a small fraction of a dB,
+ * and the residuals to within a dB or so.
+ *
+ * @author Kevin Witmer
+ */
+public class DsdValidation {
+    static final int[] TONES        = { 100, 1000, 5000, 10000, 15000, 20000, 30000, 40000 };
+    static final String[] ENGINES   = { "ffmpeg", "java" };
+
+    public static void main (String[] args) throws IOException {
+        av_register_all();
+        avfilter_register_all();
+        av_log_set_level(AV_LOG_ERROR);
+
+        Xbart.jobs = 1;
+        Xbart.targets = Collections.singletonList( new Target("96000m", "wav", "") );
+        Xbart.manifest = Manifest.load(Fixtures.DIR, false);
+
+        System.out.println("tone Hz\tengine\tlevel dBFS\tresidual dBFS");
+
+        for (int hz : TONES) {
+            Path fixture = Fixtures.get("dsf_tone_" + hz);
+
+            for (String engine : ENGINES) {
+                double[] fit;
+
+                Xbart.dsd_engine = engine;
+                fit = measure( convert(fixture), hz );
+                System.out.println(String.format(
+                    "%d\t%s\t%.3f\t%.1f", hz, engine, 20 * Math.log10(fit[0]), 20 * Math.log10(fit[1])
+                ));
+            }
+        }
+        Xbart.dsd_engine = "ffmpeg";
+    }
+
+    /* Convert a fixture, returning the left channel of the output and its rate, then removing it */
+    static double[] convert (Path fixture) throws IOException {
+        PrintStream saved_err = System.err;
+        Job job;
+        Path out;
+
+        System.setErr( new PrintStream(new OutputStream() {
+            public void write (int b) {}
+            public void write (byte[] b, int off, int len) {}
+        }) );
+
+        try {
+            job = new TranscodeSession(fixture).probe();
+            new TranscodeSession(fixture).conv(job);
+        }
+        finally {
+            System.setErr(saved_err);
+        }
+        out = Paths.get( job.outputs.get(0).outfile_path );
+
+        try {
+            return readWav(out);
+        }
+        finally {
+            Files.delete(out);
+        }
+    }
+
+    /*
+     * The left channel of a 16 or 24 bit WAV file, as full scale fractions, with the rate
+     * after them. Only the data chunk is read, wherever it is.
+     */
+    static double[] readWav (Path p) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap( Files.readAllBytes(p) ).order(ByteOrder.LITTLE_ENDIAN);
+        int channels = 0, rate = 0, bits = 0;
+
+        buf.position(12);
+
+        while (buf.remaining() >= 8) {
+            byte[] id = new byte[4];
+            int size;
+
+            buf.get(id);
+            size = buf.getInt();
+
+            if ( new String(id, "US-ASCII").equals("fmt ") ) {
+                int start = buf.position();
+
+                buf.getShort();
+                channels = buf.getShort();
+                rate = buf.getInt();
+                buf.position(start + 14);
+                bits = buf.getShort();
+                buf.position(start + size);
+            }
+            else if ( new String(id, "US-ASCII").equals("data") ) {
+                int bytes = bits / 8,
+                    n = Math.min(size, buf.remaining()) / (bytes * channels);
+                double[] samples = new double[n + 1];
+                double full_scale = 1L << (bits - 1);
+
+                for (int i = 0; i < n; i++) {
+                    int pos = buf.position() + i * bytes * channels,
+                        s = 0;
+
+                    for (int b = 0; b < bytes; b++) {
+                        s |= (buf.get(pos + b) & 0xff) << (8 * b + 32 - bits);
+                    }
+                    samples[i] = (s >> (32 - bits)) / full_scale;
+                }
+                samples[n] = rate;
+                return samples;
+            }
+            else {
+                buf.position( buf.position() + size + (size & 1) );
+            }
+        }
+        throw new IOException("No audio in " + p);
+    }
+
+    /*
+     * Fit a tone to the middle half of a channel, leaving out the start and the end where
+     * the filters ramp up and down. Returns the tone's amplitude and the RMS of what's left.
+     */
+    static double[] measure (double[] samples, int hz) {
+        int n = samples.length - 1,
+            from = n / 4,
+            to = 3 * n / 4;
+        double rate = samples[n],
+               sc = 0, ss = 0, cc = 0, sn = 0, cs = 0,
+               a, b, residual = 0;
+
+        for (int i = from; i < to; i++) {
+            double w = 2 * Math.PI * hz * i / rate,
+                   s = Math.sin(w),
+                   c = Math.cos(w);
+
+            sc += samples[i] * s;
+            cs += samples[i] * c;
+            ss += s * s;
+            cc += c * c;
+            sn += s * c;
+        }
+        /* The sine and cosine amplitudes, from the normal equations */
+        a = (sc * cc - cs * sn) / (ss * cc - sn * sn);
+        b = (cs * ss - sc * sn) / (ss * cc - sn * sn);
+
+        for (int i = from; i < to; i++) {
+            double w = 2 * Math.PI * hz * i / rate,
+                   e = samples[i] - a * Math.sin(w) - b * Math.cos(w);
+
+            residual += e * e;
+        }
+        return new double[] { Math.hypot(a, b), Math.sqrt( residual / (to - from) ) };
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * Checks that the ways of converting a file which are meant to give the same output as the
+ * plain sequential path do so, byte for byte. Each long fixture is converted to each of a
+ * variant's targets with the default settings and then with the variant's, and the two
+ * files' digests compared. Exits with 1 if any differ. Arguments, if any, pick the variants
+ * whose names contain one of them.
+ *
+ * @author Kevin Witmer
+ */
+public class EquivalenceCheck {
+    static final String[] INPUTS    = { "wav16_44k_long", "wav24_96k_long", "dsf_dsd64_long" };
+
+    /*
+     * Settings which shouldn't change the output, and the targets to check them with. The
+     * output is compared with the default settings', or with those of the base settings
+     * where they're given (as for the resampler options, which the settings are added to).
+     */
+    static class Variant {
+        final String name;
+        final String base_name;
+        final Runnable base;
+        final Runnable settings;
+        final String[] targets;
+
+        Variant (String name, Runnable settings, String... targets) {
+            this(name, "", () -> {}, settings, targets);
+        }
+
+        Variant (String name, String base_name, Runnable base, Runnable settings, String... targets) {
+            this.name = base_name.isEmpty() ? name : name + " " + base_name;
+            this.base_name = base_name;
+            this.base = base;
+            this.settings = settings;
+            this.targets = targets;
+        }
+    }
+
+    static final List<Variant> VARIANTS = Arrays.asList(
+        new Variant( "--segments 4", () -> Xbart.segments = 4, "48000:wav", "48000:aiff:2", "88200m:flac", "96000m:m4a:-3" ),
+        new Variant( "--pipeline --queue-depth 1", () -> {
+            Xbart.pipeline = true;
+            Xbart.queue_depth = 1;
+        }, "88200m:flac", "48000:mp3:2" ),
+        new Variant(
+            "--filter-graph", () -> Xbart.filter_graph = true,
+            "48000:flac", "96000m:m4a", "48000:mp3", "88200m:wav", "48000:aiff"
+        ),
+        new Variant( "--filter-graph", "--quality high --dither triangular", () -> {
+            Xbart.resample_quality = "high";
+            Xbart.dither = "triangular";
+        }, () -> Xbart.filter_graph = true, "48000:flac", "48000:mp3" ),
+        new Variant( "--filter-graph", "--quality best --dither shibata", () -> {
+            Xbart.resample_quality = "best";
+            Xbart.dither = "shibata";
+        }, () -> Xbart.filter_graph = true, "48000:flac", "48000:mp3" ),
+        new Variant( "--filter-graph", "--quality fast --dither none", () -> {
+            Xbart.resample_quality = "fast";
+            Xbart.dither = "none";
+        }, () -> Xbart.filter_graph = true, "48000:flac", "48000:mp3" ),
+        new Variant( "--input-io mmap", () -> Xbart.input_io = "mmap", "48000:flac", "88200m:wav" ),
+        new Variant( "--input-io readahead", () -> Xbart.input_io = "readahead", "48000:flac", "88200m:wav" ),
+        new Variant( "--input-io mmap", "--segments 4", () -> Xbart.segments = 4, () -> Xbart.input_io = "mmap", "48000:flac" ),
+        new Variant( "--input-io readahead", "--segments 4", () -> Xbart.segments = 4, () -> Xbart.input_io = "readahead", "48000:flac" ),
+        new Variant( "--input-io mmap", "--pipeline", () -> Xbart.pipeline = true, () -> Xbart.input_io = "mmap", "48000:flac" ),
+        new Variant( "--input-io readahead", "--pipeline", () -> Xbart.pipeline = true, () -> Xbart.input_io = "readahead", "48000:flac" )
+    );
+
+    public static void main (String[] args) throws IOException {
+        Map<String, String> plain = new HashMap<String, String>();
+        Path manifest_dir = Files.createTempDirectory("xbart-equivalence");
+        int differ = 0;
+
+        av_register_all();
+        avfilter_register_all();
+        av_log_set_level(AV_LOG_ERROR);
+
+        Xbart.jobs = 1;
+        /* Enough cores for every variant's path to get the threads it takes, on any machine */
+        Xbart.cores = 16;
+        /* Its own, as every conversion is journaled, and the manifest is never saved */
+        Xbart.manifest = Manifest.load(manifest_dir, false);
+
+        System.out.println("variant\tinput\ttarget\tresult");
+
+        for (Variant v : VARIANTS) {
+            if ( args.length > 0 && Arrays.stream(args).noneMatch(v.name::contains) ) {
+                continue;
+            }
+            for (String input : INPUTS) {
+                Path fixture = Fixtures.get(input);
+
+                for (String target : v.targets) {
+                    String key = v.base_name + " " + input + " " + target,
+                           expected = plain.get(key),
+                           got;
+
+                    defaults();
+                    v.base.run();
+
+                    if (expected == null) {
+                        expected = convert(fixture, target);
+                        plain.put(key, expected);
+                    }
+                    v.settings.run();
+                    got = convert(fixture, target);
+                    defaults();
+
+                    if ( !got.equals(expected) ) {
+                        differ++;
+                    }
+                    System.out.println(v.name + "\t" + input + "\t" + target + "\t" + (got.equals(expected) ? "same" : "DIFFERENT"));
+                }
+            }
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(manifest_dir)) {
+            for (Path p : ds) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(manifest_dir);
+        System.out.println(differ == 0 ? "All outputs are the same." : differ + " outputs differ.");
+        System.exit(differ == 0 ? 0 : 1);
+    }
+
+    /* The settings the variants are compared with */
+    static void defaults () {
+        Xbart.segments = 1;
+        Xbart.pipeline = false;
+        Xbart.queue_depth = 8;
+        Xbart.filter_graph = false;
+        Xbart.resample_quality = "standard";
+        Xbart.dither = null;
+        Xbart.input_io = "ffmpeg";
+    }
+
+    /* Convert a fixture to a target, returning the SHA-256 of the output, then removing it */
+    static String convert (Path fixture, String target) throws IOException {
+        PrintStream saved_err = System.err;
+        TranscodeSession session;
+        Job job;
+        Path out;
+
+        Xbart.targets = Collections.singletonList( Target.parse(target) );
+        System.setErr( new PrintStream(new OutputStream() {
+            public void write (int b) {}
+            public void write (byte[] b, int off, int len) {}
+        }) );
+
+        try {
+            job = new TranscodeSession(fixture).probe();
+            session = new TranscodeSession(fixture);
+            /* All the threads it can use, so that the segmented and pipelined paths are taken */
+            session.threads = job.max_threads;
+            session.conv(job);
+        }
+        finally {
+            System.setErr(saved_err);
+        }
+        out = Paths.get( job.outputs.get(0).outfile_path );
+
+        try (InputStream in = Files.newInputStream(out)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[1 << 16];
+            int n;
+
+            while ( (n = in.read(buf)) > 0 ) {
+                md.update(buf, 0, n);
+            }
+            return Manifest.hex( md.digest() );
+        }
+        catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        finally {
+            Files.delete(out);
+        }
+    }
+}
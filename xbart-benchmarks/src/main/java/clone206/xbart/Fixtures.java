@@ -0,0 +1,264 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Input files for the benchmarks, synthesised on first use so that nothing has to be
+ * downloaded or checked in. The audio is a couple of tones plus a little noise, which keeps
+ * the encoders from taking shortcuts on digital silence; the DSD tone fixtures are a single
+ * sine wave, for measuring decoders by. Fixtures are kept in the temp directory and reused
+ * by later runs.
+ *
+ * @author Kevin Witmer
+ */
+class Fixtures {
+    /* Length of each fixture in seconds */
+    static final int SECONDS    = 10;
+    /* Length of the _long fixtures, enough to be split into --segments */
+    static final int LONG_SECONDS = 150;
+    static final int CHANNELS   = 2;
+    static final int DSD64_RATE = 2822400;
+    /* Bytes per channel per block in a DSF file */
+    static final int DSF_BLOCK  = 4096;
+    static final Path DIR       = Paths.get( System.getProperty("java.io.tmpdir") ).resolve("xbart-bench-fixtures");
+    /* Level of the tone fixtures, half of full scale */
+    static final double TONE    = 0.5;
+
+    /* Audio for a fixture: a channel's sample at a position, in the range -0.5 to 0.5 */
+    interface Signal {
+        double at (int channel, long n, int rate, Random noise);
+    }
+
+    /* The fixture for a benchmark input name, creating it if need be */
+    static synchronized Path get (String name) throws IOException {
+        Files.createDirectories(DIR);
+
+        if (name.equals("wav24_192k")) {
+            Path p = DIR.resolve("wav24_192k.wav");
+
+            if ( !Files.exists(p) ) {
+                writeWav(p, 192000, 24);
+            }
+            return p;
+        }
+        else if (name.equals("flac16_44k")) {
+            Path p = DIR.resolve("flac16_44k.flac");
+
+            if ( !Files.exists(p) ) {
+                Path wav = DIR.resolve("flac16_44k.wav");
+
+                writeWav(wav, 44100, 16);
+                toFlac(wav, p);
+                Files.delete(wav);
+            }
+            return p;
+        }
+        else if ( name.equals("wav16_44k_long") || name.equals("wav24_96k_long") ) {
+            Path p = DIR.resolve(name + ".wav");
+
+            if ( !Files.exists(p) ) {
+                writeWav( p, name.startsWith("wav16") ? 44100 : 96000, name.startsWith("wav16") ? 16 : 24, LONG_SECONDS );
+            }
+            return p;
+        }
+        else if (name.equals("dsf_dsd64_long")) {
+            Path p = DIR.resolve("dsf_dsd64_long.dsf");
+
+            if ( !Files.exists(p) ) {
+                writeDsf(p, Fixtures::signal, LONG_SECONDS);
+            }
+            return p;
+        }
+        else if (name.equals("dsf_dsd64")) {
+            Path p = DIR.resolve("dsf_dsd64.dsf");
+
+            if ( !Files.exists(p) ) {
+                writeDsf(p, Fixtures::signal);
+            }
+            return p;
+        }
+        else if (name.startsWith("dsf_tone_")) {
+            final int hz = Integer.parseInt( name.substring("dsf_tone_".length()) );
+            Path p = DIR.resolve(name + ".dsf");
+
+            if ( !Files.exists(p) ) {
+                writeDsf( p, (channel, n, rate, noise) -> TONE * Math.sin(2 * Math.PI * hz * n / rate) );
+            }
+            return p;
+        }
+        throw new IllegalArgumentException("Unknown fixture: " + name);
+    }
+
+    /* A batch of one second 16/44.1 WAV clips, creating them if need be */
+    static synchronized List<Path> clips (int count) throws IOException {
+        Path dir = DIR.resolve("clips");
+        List<Path> clips = new ArrayList<Path>();
+
+        Files.createDirectories(dir);
+
+        for (int i = 0; i < count; i++) {
+            Path p = dir.resolve( String.format("clip_%03d.wav", i) );
+
+            if ( !Files.exists(p) ) {
+                writeWav(p, 44100, 16, 1);
+            }
+            clips.add(p);
+        }
+        return clips;
+    }
+
+    /* The test signal for a channel at a sample position */
+    static double signal (int channel, long n, int rate, Random noise) {
+        return 0.3 * Math.sin(2 * Math.PI * (channel == 0 ? 997 : 3001) * n / rate)
+            + 0.15 * Math.sin(2 * Math.PI * 15000 * n / rate)
+            + 0.05 * (noise.nextDouble() - 0.5);
+    }
+
+    /* Write a stereo PCM WAV file of the given rate and bit depth */
+    static void writeWav (Path p, int rate, int bits) throws IOException {
+        writeWav(p, rate, bits, SECONDS);
+    }
+
+    static void writeWav (Path p, int rate, int bits, int seconds) throws IOException {
+        int bytes_per_sample    = bits / 8;
+        long samples            = (long) seconds * rate;
+        long data_size          = samples * CHANNELS * bytes_per_sample;
+        double full_scale       = (1L << (bits - 1)) - 1;
+        Random noise            = new Random(1);
+        ByteBuffer header       = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer buf          = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put( "RIFF".getBytes("US-ASCII") ).putInt( (int) (36 + data_size) ).put( "WAVE".getBytes("US-ASCII") )
+            .put( "fmt ".getBytes("US-ASCII") ).putInt(16).putShort( (short) 1 ).putShort( (short) CHANNELS )
+            .putInt(rate).putInt(rate * CHANNELS * bytes_per_sample).putShort( (short) (CHANNELS * bytes_per_sample) )
+            .putShort( (short) bits ).put( "data".getBytes("US-ASCII") ).putInt( (int) data_size );
+        header.flip();
+
+        try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, header);
+
+            for (long n = 0; n < samples; n++) {
+                for (int c = 0; c < CHANNELS; c++) {
+                    long s = (long) (signal(c, n, rate, noise) * full_scale);
+
+                    for (int b = 0; b < bytes_per_sample; b++) {
+                        buf.put( (byte) (s >> (8 * b)) );
+                    }
+                }
+                if (buf.remaining() < CHANNELS * bytes_per_sample) {
+                    buf.flip();
+                    writeFully(out, buf);
+                    buf.clear();
+                }
+            }
+            buf.flip();
+            writeFully(out, buf);
+        }
+    }
+
+    /*
+     * Write a stereo DSD64 DSF file of a signal. The 1-bit stream comes from a second order
+     * sigma-delta modulator, which is crude next to a real SACD master but decodes to the
+     * same tones.
+     */
+    static void writeDsf (Path p, Signal signal) throws IOException {
+        writeDsf(p, signal, SECONDS);
+    }
+
+    static void writeDsf (Path p, Signal signal, int seconds) throws IOException {
+        long samples            = (long) seconds * DSD64_RATE;
+        long blocks             = (samples / 8 + DSF_BLOCK - 1) / DSF_BLOCK;
+        long data_size          = blocks * DSF_BLOCK * CHANNELS;
+        double[] integ1         = new double[CHANNELS],
+                 integ2         = new double[CHANNELS],
+                 fb             = new double[CHANNELS];
+        Random noise            = new Random(1);
+        ByteBuffer header       = ByteBuffer.allocate(28 + 52 + 12).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer block        = ByteBuffer.allocate(DSF_BLOCK * CHANNELS);
+        long n                  = 0;
+
+        /* DSD chunk, fmt chunk (version 1, raw DSD, stereo, LSB first), then the data chunk header */
+        header.put( "DSD ".getBytes("US-ASCII") ).putLong(28).putLong(28 + 52 + 12 + data_size).putLong(0)
+            .put( "fmt ".getBytes("US-ASCII") ).putLong(52).putInt(1).putInt(0).putInt(2).putInt(CHANNELS)
+            .putInt(DSD64_RATE).putInt(1).putLong(samples).putInt(DSF_BLOCK).putInt(0)
+            .put( "data".getBytes("US-ASCII") ).putLong(12 + data_size);
+        header.flip();
+
+        try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, header);
+
+            for (long b = 0; b < blocks; b++) {
+                byte[][] bits = new byte[CHANNELS][DSF_BLOCK];
+
+                for (int k = 0; k < DSF_BLOCK * 8; k++, n++) {
+                    for (int c = 0; c < CHANNELS; c++) {
+                        double x = n < samples ? 0.8 * signal.at(c, n, DSD64_RATE, noise) : 0;
+
+                        integ1[c] += x - fb[c];
+                        integ2[c] += integ1[c] - fb[c];
+                        fb[c] = integ2[c] >= 0 ? 1 : -1;
+
+                        if (fb[c] > 0) {
+                            bits[c][k >> 3] |= 1 << (k & 7);
+                        }
+                    }
+                }
+                block.clear();
+
+                for (int c = 0; c < CHANNELS; c++) {
+                    block.put(bits[c]);
+                }
+                block.flip();
+                writeFully(out, block);
+            }
+        }
+    }
+
+    /* Encode a WAV fixture to FLAC with xbart itself */
+    static void toFlac (Path wav, Path flac) throws IOException {
+        List<Target> saved_targets  = Xbart.targets;
+        Manifest saved_manifest     = Xbart.manifest;
+
+        try {
+            Xbart.targets = Collections.singletonList( new Target("44100", "flac", "") );
+            Xbart.manifest = Manifest.load(DIR, false);
+
+            Job job = new TranscodeSession(wav).probe();
+
+            new TranscodeSession(wav).conv(job);
+            Files.move( Paths.get( job.outputs.get(0).outfile_path ), flac, StandardCopyOption.REPLACE_EXISTING );
+        }
+        finally {
+            Xbart.targets = saved_targets;
+            Xbart.manifest = saved_manifest;
+        }
+    }
+
+    static void writeFully (FileChannel out, ByteBuffer buf) throws IOException {
+        while ( buf.hasRemaining() ) {
+            out.write(buf);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.xbart;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.avfilter.*;
+
+/**
+ * Times the conversion of one fixture file to one target, through the same probe and
+ * conv() calls the CLI makes, across input formats, output types, rates and volume
+ * adjustments.
+ *
+ * Besides the conversions per second, each run reports audio_seconds: seconds of audio
+ * converted per wall clock second, ie. the realtime factor. Run with "-prof gc" for the
+ * Java allocation rate.
+ *
+ * @author Kevin Witmer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TranscodeBenchmark {
+    @Param({"flac16_44k", "wav24_192k", "dsf_dsd64"})
+    public String input;
+
+    @Param({"flac", "wav", "aiff", "m4a", "mp3"})
+    public String ext;
+
+    @Param({"48000", "96000m"})
+    public String rate;
+
+    /* Volume adjust in dB, 0 for none */
+    @Param({"0", "3"})
+    public String vol;
+
+    Path fixture;
+    Job job;
+    PrintStream saved_err;
+
+    /* Seconds of audio converted, reported by JMH as a rate alongside the score */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Realtime {
+        public double audio_seconds;
+
+        @Setup(Level.Iteration)
+        public void reset () {
+            audio_seconds = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial () throws IOException {
+        av_register_all();
+        avfilter_register_all();
+
+        fixture = Fixtures.get(input);
+        Xbart.jobs = 1;
+        /* Time the conversion, not a copy, where the fixture is already in the target format */
+        Xbart.reencode = true;
+        Xbart.targets = Collections.singletonList( new Target(rate, ext, vol.equals("0") ? "" : vol) );
+        /* Never saved; it's only there for probe() to consult */
+        Xbart.manifest = Manifest.load(Fixtures.DIR, false);
+
+        /* The per-file logging would only be noise in the results */
+        av_log_set_level(AV_LOG_ERROR);
+        saved_err = System.err;
+        System.setErr( new PrintStream(new OutputStream() {
+            public void write (int b) {}
+            public void write (byte[] b, int off, int len) {}
+        }) );
+    }
+
+    /* Probing is planning, not conversion, so it stays out of the timings */
+    @Setup(Level.Invocation)
+    public void probe () throws IOException {
+        job = new TranscodeSession(fixture).probe();
+    }
+
+    @Benchmark
+    public void transcode (Realtime realtime) throws IOException {
+        new TranscodeSession(fixture).conv(job);
+        realtime.audio_seconds += job.duration;
+    }
+
+    /* Remove the output so that the next probe doesn't skip the file */
+    @TearDown(Level.Invocation)
+    public void removeOutput () throws IOException {
+        for (Output o : job.outputs) {
+            Files.deleteIfExists( Paths.get(o.outfile_path) );
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial () {
+        System.setErr(saved_err);
+    }
+}